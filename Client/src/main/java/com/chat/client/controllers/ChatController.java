@@ -4,19 +4,18 @@ import com.chat.client.models.User;
 import com.chat.client.models.DisplayMessage;
 import com.chat.shared.ChatMessage;
 import com.chat.shared.MessageType;
+import com.chat.shared.PresenceUpdate;
 import com.chat.client.services.ConnectionService;
 import com.chat.client.services.FileTransferService;
+import javafx.animation.AnimationTimer;
 import javafx.application.Platform;
 import javafx.collections.FXCollections;
 import javafx.collections.ObservableList;
 import javafx.concurrent.Task;
 import javafx.fxml.FXML;
-import javafx.geometry.Pos;
+import javafx.geometry.Orientation;
 import javafx.scene.Node;
 import javafx.scene.control.*;
-import javafx.scene.image.Image;
-import javafx.scene.image.ImageView;
-import javafx.scene.layout.HBox;
 import javafx.scene.layout.VBox;
 import javafx.stage.FileChooser;
 import javafx.stage.Stage;
@@ -28,7 +27,21 @@ import java.time.Instant;
 import java.time.LocalDateTime;
 import java.time.ZoneId;
 import java.time.format.DateTimeFormatter;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.prefs.Preferences;
 
 public class ChatController {
     @FXML private ListView<DisplayMessage> messageListView;
@@ -40,16 +53,8 @@ public class ChatController {
     @FXML private ProgressBar downloadProgressBar;
     @FXML private VBox chatContainer;
     public void initialize() {
-        Image icon = new Image(getClass().getResource("/assets/send.png").toExternalForm());
-        ImageView imageView = new ImageView(icon);
-        imageView.setFitWidth(20);
-        imageView.setFitHeight(20);
-        sendButton.setGraphic(imageView);
-        Image upload = new Image(getClass().getResource("/assets/files.png").toExternalForm());
-        ImageView imageView1 = new ImageView(upload);
-        imageView1.setFitWidth(20);
-        imageView1.setFitHeight(20);
-        sendFileButton.setGraphic(imageView1);
+        sendButton.setGraphic(Icons.view("/assets/send.png", 20));
+        sendFileButton.setGraphic(Icons.view("/assets/files.png", 20));
 
         sendButton.setOnAction(event -> handleSendMessage());
         sendFileButton.setOnAction(event -> handleSendFile());
@@ -65,7 +70,39 @@ public class ChatController {
 
     private ConnectionService connectionService;
     private final ObservableList<DisplayMessage> messages = FXCollections.observableArrayList();
+    // Messages scrolled out of the list, oldest first; paged back in when the user scrolls to the top
+    private final Deque<DisplayMessage> olderMessages = new ArrayDeque<>();
+    private static final int VISIBLE_MESSAGES = 1000;
+    private static final int KEPT_MESSAGES = 100_000;
+    private static final int MESSAGE_PAGE = 200;
+    // Incoming messages wait here for the next pulse, which applies them all and scrolls once
+    private final Queue<ChatMessage> inbound = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean drainScheduled = new AtomicBoolean();
+    private final AnimationTimer inboundDrain = new AnimationTimer() {
+        @Override
+        public void handle(long now) {
+            drainInbound();
+        }
+    };
+    private static final int MAX_MESSAGES_PER_PULSE = 2000;
+    private final List<DisplayMessage> pendingMessages = new ArrayList<>();
+    private final List<User> joinedUsers = new ArrayList<>();
+    private final Set<User> leftUsers = new HashSet<>();
     private final ObservableList<User> users = FXCollections.observableArrayList();
+    private final Map<String, User> usersByName = new HashMap<>();
+    private long presenceVersion = -1; // -1 until the first snapshot arrives
+    private static final Preferences history = Preferences.userNodeForPackage(ChatController.class);
+    private static final int SEEN_SEQUENCES = 1024;
+    // Replayed history can overlap messages delivered live around login
+    private final Set<Long> seenSequences = Collections.newSetFromMap(new LinkedHashMap<>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, Boolean> eldest) {
+            return size() > SEEN_SEQUENCES;
+        }
+    });
+    private String currentRoom; // where unaddressed messages go, null for everyone
+    private String historyKey;
+    private long lastSequence;
     private String username;
     private Stage stage;
     private static final double MB_TO_BYTES = 1024.0 * 1024.0;
@@ -76,6 +113,10 @@ public class ChatController {
                 port,
                 username,
                 this::handleIncomingMessage);
+        // Preference keys are limited to 80 characters
+        this.historyKey = "lastSequence." + Integer.toHexString((serverAddress + ":" + port + "/" + username).hashCode());
+        this.lastSequence = history.getLong(historyKey, 0);
+        connectionService.setHistoryFrom(lastSequence);
 
         if (connectionService.connect()) {
             setupUI();
@@ -87,67 +128,116 @@ public class ChatController {
     private void setupUI() {
         messageListView.setItems(messages);
 
-        messageListView.setCellFactory(listView -> new ListCell<DisplayMessage>() {
-
-            public void updateItem(DisplayMessage msg, boolean empty) {
-                super.updateItem(msg, empty);
-                if (empty || msg == null) {
-                    setText(null);
-                    setGraphic(null);
-                } else {
-                    Node contentNode = msg.getContent();
-                    HBox container = new HBox(contentNode);
-
-
-                    if (msg.isSelf()) {
-                        container.setAlignment(Pos.BOTTOM_RIGHT);
-                        if (contentNode instanceof Label label) {
-                            label.setStyle("-fx-background-color: lightblue; -fx-padding: 8px; -fx-background-radius: 8px;");
-                            label.setWrapText(true);
-                        }
-                    } else {
-                        container.setAlignment(Pos.BOTTOM_LEFT);
-                        if (contentNode instanceof Label label) {
-                            label.setStyle("-fx-background-color: lightgray; -fx-padding: 8px; -fx-background-radius: 8px;");
-                            label.setWrapText(true);
-                        }
-                    }
-
-                    setGraphic(container);
-                }
-
-            }
-        });
+        messageListView.setCellFactory(listView -> new MessageCell(this::saveReceivedFile));
+        // The scroll bar only exists once the list has a skin
+        messageListView.skinProperty().addListener((obs, oldSkin, skin) -> watchScrollTop());
         userListView.setItems(users);
 
-        userListView.getSelectionModel().selectedItemProperty().addListener((obs, oldVal, newVal) ->
-                messageField.setPromptText(newVal != null ?
-                        "Private message to " + newVal.getUsername() :
-                        "Type your message here...")
-        );
+        userListView.getSelectionModel().selectedItemProperty().addListener((obs, oldVal, newVal) -> updatePrompt());
+    }
+
+    private void updatePrompt() {
+        User selectedUser = userListView.getSelectionModel().getSelectedItem();
+        if (selectedUser != null) {
+            messageField.setPromptText("Private message to " + selectedUser.getUsername());
+        } else if (currentRoom != null) {
+            messageField.setPromptText("Message #" + currentRoom + " (/leave to go back)");
+        } else {
+            messageField.setPromptText("Type your message here...");
+        }
     }
 
 
+    // Called on the connection's reading thread
     private void handleIncomingMessage(ChatMessage message) {
         if (message == null) {
             Platform.runLater(() ->
                     showError("Protocol Error", "Received empty message"));
             return;
         }
-        Platform.runLater(() -> {
+        inbound.add(message);
+        scheduleDrain();
+    }
+
+    // At most one pending start at a time, so a burst costs a single hop to the FX thread
+    private void scheduleDrain() {
+        if (drainScheduled.compareAndSet(false, true)) {
+            Platform.runLater(inboundDrain::start);
+        }
+    }
+
+    /**
+     * Applies what arrived since the last pulse, then shows the new messages and user list
+     * changes in one go. The timer stops once nothing is left.
+     */
+    private void drainInbound() {
+        ChatMessage message;
+        for (int i = 0; i < MAX_MESSAGES_PER_PULSE && (message = inbound.poll()) != null; i++) {
+            if (!isNew(message)) continue;
             switch (message.getType()) {
                 case TEXT -> handleTextMessage(message);
                 case FILE, AUDIO, VIDEO, NOTE ->notifyFileReceived(message);
+                case PRESENCE -> handlePresence(message);
+                case JOIN, LEAVE, ROOMS -> handleRoomMessage(message);
+            }
+        }
+        showPending();
+
+        if (inbound.isEmpty()) {
+            inboundDrain.stop();
+            drainScheduled.set(false);
+            // Something may have been queued after the last poll but before the reset
+            if (!inbound.isEmpty()) {
+                scheduleDrain();
             }
-        });
+        }
     }
 
     private void handleTextMessage(ChatMessage message) {
-        if (message.getText().startsWith("USERLIST:")) {
-            updateUserList(message.getText().substring(9));
-        } else {
-            displayMessage(message);
+        displayMessage(message);
+    }
+
+    private void handleRoomMessage(ChatMessage message) {
+        boolean self = username.equals(message.getSender());
+        switch (message.getType()) {
+            case JOIN -> {
+                if (self) {
+                    currentRoom = message.getRoom();
+                    updatePrompt();
+                }
+                showNote(message.getSender() + " joined #" + message.getRoom());
+            }
+            case LEAVE -> {
+                if (self && message.getRoom().equals(currentRoom)) {
+                    currentRoom = null;
+                    updatePrompt();
+                }
+                showNote(message.getSender() + " left #" + message.getRoom());
+            }
+            case ROOMS -> showNote(message.getText().isEmpty()
+                    ? "No rooms yet, /join one to create it"
+                    : "Rooms (name:members):\n" + message.getText());
+        }
+    }
+
+    private void showNote(String text) {
+        ChatMessage note = new ChatMessage(MessageType.TEXT, "Server");
+        note.setText(text);
+        displayMessage(note);
+    }
+
+    /**
+     * Tracks logged messages by sequence number, remembering the newest for the next login.
+     */
+    private boolean isNew(ChatMessage message) {
+        long sequence = message.getSequence();
+        if (sequence == 0) return true;
+        if (!seenSequences.add(sequence)) return false;
+        if (sequence > lastSequence) {
+            lastSequence = sequence;
+            history.putLong(historyKey, sequence);
         }
+        return true;
     }
 
     private void displayMessage(ChatMessage message) {
@@ -156,16 +246,74 @@ public class ChatController {
         if(message.getSender().equals("Server")){
             user= "";
         }
-        String prefix = message.getRecipient() != null ?
-                "\n  from " + user + " " :
-                " \n" + user + " ";
+        String prefix = message.getRecipient() != null ? "\n  from " + user + " "
+                : message.getRoom() != null ? " \n#" + message.getRoom() + " " + user + " "
+                : " \n" + user + " ";
         boolean isSelf = message.getSender().equals(username);
-        Label label=new Label(message.getText()+"\n"+timestamp + " " + prefix );
-        messages.add(new DisplayMessage(label, isSelf));
+        addMessage(new DisplayMessage(message.getText() + "\n" + timestamp + " " + prefix, isSelf));
+    }
+
+    /**
+     * Queues a message for the list; it shows on the next pulse.
+     */
+    private void addMessage(DisplayMessage message) {
+        pendingMessages.add(message);
+        scheduleDrain();
+    }
 
+    /**
+     * Adds the queued messages and user list changes, moving the list's oldest entries out
+     * once it holds {@link #VISIBLE_MESSAGES}.
+     */
+    private void showPending() {
+        if (!leftUsers.isEmpty()) {
+            users.removeAll(leftUsers);
+            leftUsers.clear();
+        }
+        if (!joinedUsers.isEmpty()) {
+            users.addAll(joinedUsers);
+            joinedUsers.clear();
+        }
+        if (pendingMessages.isEmpty()) return;
+
+        messages.addAll(pendingMessages);
+        pendingMessages.clear();
+        int excess = messages.size() - VISIBLE_MESSAGES;
+        if (excess > 0) {
+            olderMessages.addAll(messages.subList(0, excess));
+            messages.remove(0, excess);
+            while (olderMessages.size() > KEPT_MESSAGES) {
+                olderMessages.removeFirst();
+            }
+        }
         scrollToLatestMessage();
     }
 
+    private void watchScrollTop() {
+        for (Node node : messageListView.lookupAll(".scroll-bar")) {
+            if (node instanceof ScrollBar bar && bar.getOrientation() == Orientation.VERTICAL) {
+                bar.valueProperty().addListener((obs, oldValue, value) -> {
+                    if (value.doubleValue() <= bar.getMin() && !olderMessages.isEmpty()) {
+                        showOlderMessages();
+                    }
+                });
+            }
+        }
+    }
+
+    /**
+     * Puts a page of the messages moved out back at the top, keeping the row that was first in view.
+     */
+    private void showOlderMessages() {
+        List<DisplayMessage> page = new ArrayList<>(MESSAGE_PAGE);
+        while (page.size() < MESSAGE_PAGE && !olderMessages.isEmpty()) {
+            page.add(olderMessages.removeLast());
+        }
+        Collections.reverse(page);
+        messages.addAll(0, page);
+        messageListView.scrollTo(page.size());
+    }
+
     private String formatTimestamp(long timestamp) {
         return LocalDateTime.ofInstant(
                 Instant.ofEpochMilli(timestamp),
@@ -177,13 +325,54 @@ public class ChatController {
         messageListView.scrollTo(messages.size() - 1);
     }
 
-    private void updateUserList(String userList) {
-        users.clear();
-        for (String name : userList.split(",")) {
-            User user = new User(name);
-            user.setOnline(true);
-            users.add(user);
+    private void handlePresence(ChatMessage message) {
+        PresenceUpdate update;
+        try {
+            update = PresenceUpdate.parse(message.getText());
+        } catch (IllegalArgumentException e) {
+            showError("Protocol Error", "Bad user list update: " + e.getMessage());
+            return;
+        }
+        if (update.isSnapshot()) {
+            usersByName.clear();
+            List<User> online = new ArrayList<>();
+            for (String name : update.getJoined()) {
+                User user = new User(name);
+                usersByName.put(name, user);
+                online.add(user);
+            }
+            joinedUsers.clear();
+            leftUsers.clear();
+            users.setAll(online);
+            presenceVersion = update.getVersion();
+            return;
+        }
+
+        // Before the first snapshot, or already covered by it
+        if (presenceVersion < 0 || update.getVersion() <= presenceVersion) return;
+
+        if (update.getFromVersion() != presenceVersion) {
+            // Missed an update: ask for a full list and ignore deltas until it arrives
+            presenceVersion = -1;
+            connectionService.sendMessage(new ChatMessage(MessageType.PRESENCE, username));
+            return;
+        }
+
+        // Applied to the list by the next showPending()
+        for (String name : update.getLeft()) {
+            User user = usersByName.remove(name);
+            if (user != null && !joinedUsers.remove(user)) {
+                leftUsers.add(user);
+            }
         }
+        for (String name : update.getJoined()) {
+            if (!usersByName.containsKey(name)) {
+                User user = new User(name);
+                usersByName.put(name, user);
+                joinedUsers.add(user);
+            }
+        }
+        presenceVersion = update.getVersion();
     }
 
     private void saveReceivedFile(ChatMessage message) {
@@ -193,9 +382,19 @@ public class ChatController {
 
         if (saveFile != null) {
             Path saveDir = saveFile.getParentFile().toPath();
-            Task<Void> saveTask = FileTransferService.createFileSaveTask(message, saveDir);
+            Task<Void> saveTask = new Task<>() {
+                @Override
+                protected Void call() throws Exception {
+                    connectionService.getFileTransfers().saveFile(message, saveDir, this::updateProgress);
+                    return null;
+                }
+            };
 
             downloadProgressBar.progressProperty().bind(saveTask.progressProperty());
+            saveTask.setOnFailed(e -> {
+                downloadProgressBar.progressProperty().unbind();
+                showError("Download Failed", saveTask.getException().getMessage());
+            });
             new Thread(saveTask).start();
 
             notifyFileReceived(message);
@@ -208,23 +407,7 @@ public class ChatController {
         double size = (message.getFileSize() / MB_TO_BYTES);
         String fileSize=String.format("%.2f",size);
 
-        boolean isSelf = false;
-
-        Label label = new Label(fileName + " (" + type + ", " + fileSize + " MB)\n");
-
-        Image icon = new Image(getClass().getResource("/assets/download.png").toExternalForm());
-        ImageView iconView = new ImageView(icon);
-        iconView.setFitHeight(16);
-        iconView.setFitWidth(16);
-        Button downloadButton = new Button("Download", iconView);
-        downloadButton.setOnAction(e -> saveReceivedFile(message));
-
-        VBox messageBox = new VBox(label, downloadButton);
-        messageBox.setSpacing(5);
-
-        messages.add(new DisplayMessage(messageBox, isSelf));
-
-        scrollToLatestMessage();
+        addMessage(new DisplayMessage(fileName + " (" + type + ", " + fileSize + " MB)\n", false, message));
     }
 
 
@@ -232,6 +415,11 @@ public class ChatController {
     private void handleSendMessage() {
         String text = messageField.getText().trim();
         if (text.isEmpty()) return;
+        if (text.startsWith("/")) {
+            handleCommand(text);
+            messageField.clear();
+            return;
+        }
 
         ChatMessage message = createTextMessage(text);
         connectionService.sendMessage(message);
@@ -246,8 +434,51 @@ public class ChatController {
         User selectedUser = userListView.getSelectionModel().getSelectedItem();
         if (selectedUser != null) {
             message.setRecipient(selectedUser.getUsername());
+        } else if (currentRoom != null) {
+            message.setRoom(currentRoom);
+        }
+
+        return message;
+    }
+
+    /**
+     * Room commands: {@code /join name}, {@code /leave} and {@code /rooms}.
+     */
+    private void handleCommand(String text) {
+        String[] parts = text.split("\\s+", 2);
+        String argument = parts.length > 1 ? parts[1] : null;
+        ChatMessage command;
+        switch (parts[0]) {
+            case "/join" -> {
+                if (argument == null) {
+                    showNote("Usage: /join room");
+                    return;
+                }
+                if (currentRoom != null && !currentRoom.equals(argument)) {
+                    connectionService.sendMessage(roomMessage(MessageType.LEAVE, currentRoom));
+                }
+                command = roomMessage(MessageType.JOIN, argument);
+            }
+            case "/leave" -> {
+                String room = argument != null ? argument : currentRoom;
+                if (room == null) {
+                    showNote("You are not in a room");
+                    return;
+                }
+                command = roomMessage(MessageType.LEAVE, room);
+            }
+            case "/rooms" -> command = new ChatMessage(MessageType.ROOMS, username);
+            default -> {
+                showNote("Unknown command " + parts[0] + ", try /join, /leave or /rooms");
+                return;
+            }
         }
+        connectionService.sendMessage(command);
+    }
 
+    private ChatMessage roomMessage(MessageType type, String room) {
+        ChatMessage message = new ChatMessage(type, username);
+        message.setRoom(room);
         return message;
     }
 
@@ -257,18 +488,18 @@ public class ChatController {
         File file = fileChooser.showOpenDialog(stage);
 
         if (file != null) {
-            Task<ChatMessage> sendTask = FileTransferService.createFileSendTask(
-                    file,
-                    username,
-                    getSelectedRecipient(),
-                    FileTransferService.determineFileType(file.getName())
-            );
-
+            String recipient = getSelectedRecipient();
+            Task<ChatMessage> sendTask = new Task<>() {
+                @Override
+                protected ChatMessage call() throws Exception {
+                    return connectionService.getFileTransfers().sendFile(file, username, recipient,
+                            FileTransferService.determineFileType(file.getName()), this::updateProgress);
+                }
+            };
 
             uploadProgressBar.progressProperty().bind(sendTask.progressProperty());
 
             sendTask.setOnSucceeded(e -> {
-                connectionService.sendMessage(sendTask.getValue());
                 uploadProgressBar.progressProperty().unbind();
                 notifyFileSent(file, sendTask.getValue().getType());
             });
@@ -288,14 +519,10 @@ public class ChatController {
     }
 
     private void notifyFileSent(File file, MessageType type) {
-        Label displayMsg = new Label(String.format("Sent %s file: %s (%.2f MB)",
+        addMessage(new DisplayMessage(String.format("Sent %s file: %s (%.2f MB)",
                 type.toString().toLowerCase(),
                 file.getName(),
-                file.length() / MB_TO_BYTES));
-
-        boolean isSelf = true;
-        messages.add(new DisplayMessage(displayMsg, isSelf));
-        scrollToLatestMessage();
+                file.length() / MB_TO_BYTES), true));
     }
 
     private void showError(String title, String message) {
@@ -314,8 +541,7 @@ public class ChatController {
 
     private void disconnectCleanly() {
         if (connectionService != null && connectionService.isConnected()) {
-            connectionService.sendMessage(new ChatMessage(MessageType.LOGOUT, username));
-            connectionService.disconnect();
+            connectionService.disconnect(); // says LOGOUT first
         }
     }
 }
\ No newline at end of file
@@ -0,0 +1,32 @@
+package com.chat.client.controllers;
+
+import javafx.scene.image.Image;
+import javafx.scene.image.ImageView;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Images from the classpath, each loaded once and shared by every view that shows it.
+ * FX thread only.
+ */
+final class Icons {
+    private static final Map<String, Image> images = new HashMap<>();
+
+    private Icons() {
+    }
+
+    static Image get(String path) {
+        return images.computeIfAbsent(path, key -> new Image(Icons.class.getResource(key).toExternalForm()));
+    }
+
+    /**
+     * A new view of a shared image, scaled to a square of the given size.
+     */
+    static ImageView view(String path, double size) {
+        ImageView view = new ImageView(get(path));
+        view.setFitWidth(size);
+        view.setFitHeight(size);
+        return view;
+    }
+}
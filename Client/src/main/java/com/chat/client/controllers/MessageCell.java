@@ -0,0 +1,58 @@
+package com.chat.client.controllers;
+
+import com.chat.client.models.DisplayMessage;
+import com.chat.shared.ChatMessage;
+import javafx.geometry.Pos;
+import javafx.scene.control.Button;
+import javafx.scene.control.Label;
+import javafx.scene.control.ListCell;
+import javafx.scene.layout.HBox;
+import javafx.scene.layout.VBox;
+
+import java.util.function.Consumer;
+
+/**
+ * A row of the message list. Its nodes are built once and refilled with whichever message the
+ * list scrolls into it, so the scene graph only ever holds the visible rows. Colours come from
+ * the {@code message-bubble} style classes in the stylesheet.
+ */
+class MessageCell extends ListCell<DisplayMessage> {
+    private static final String SELF = "self";
+
+    private final HBox row = new HBox();
+    private final VBox bubble = new VBox(5);
+    private final Label label = new Label();
+    private final Button downloadButton = new Button("Download", Icons.view("/assets/download.png", 16));
+    private ChatMessage download;
+
+    MessageCell(Consumer<ChatMessage> onDownload) {
+        label.setWrapText(true);
+        bubble.getStyleClass().add("message-bubble");
+        bubble.getChildren().addAll(label, downloadButton);
+        row.getChildren().add(bubble);
+        downloadButton.setOnAction(event -> {
+            if (download != null) onDownload.accept(download);
+        });
+    }
+
+    @Override
+    protected void updateItem(DisplayMessage msg, boolean empty) {
+        super.updateItem(msg, empty);
+        if (empty || msg == null) {
+            download = null;
+            setGraphic(null);
+            return;
+        }
+
+        label.setText(msg.getText());
+        download = msg.getDownload();
+        downloadButton.setVisible(download != null);
+        downloadButton.setManaged(download != null);
+        row.setAlignment(msg.isSelf() ? Pos.BOTTOM_RIGHT : Pos.BOTTOM_LEFT);
+        bubble.getStyleClass().remove(SELF);
+        if (msg.isSelf()) {
+            bubble.getStyleClass().add(SELF);
+        }
+        setGraphic(row);
+    }
+}
@@ -0,0 +1,44 @@
+package com.chat.client.load;
+
+import java.util.Locale;
+
+/**
+ * What a simulated user does next.
+ */
+enum Action {
+    BROADCAST, PRIVATE, FILE, PING;
+
+    private static final Action[] ACTIONS = values();
+
+    /**
+     * Cumulative weights of the actions, for {@link #pick}.
+     */
+    static double[] parseMix(String mix) {
+        double[] weights = new double[ACTIONS.length];
+        for (String pair : mix.split(",")) {
+            String[] parts = pair.trim().split("=");
+            if (parts.length != 2) {
+                throw new IllegalArgumentException("Expected action=weight, got " + pair);
+            }
+            weights[valueOf(parts[0].trim().toUpperCase(Locale.ROOT)).ordinal()] = Double.parseDouble(parts[1].trim());
+        }
+        for (int i = 1; i < weights.length; i++) {
+            weights[i] += weights[i - 1];
+        }
+        if (weights[weights.length - 1] <= 0) {
+            throw new IllegalArgumentException("No action has a weight: " + mix);
+        }
+        return weights;
+    }
+
+    /**
+     * @param random uniform in [0, 1)
+     */
+    static Action pick(double[] cumulative, double random) {
+        double target = random * cumulative[cumulative.length - 1];
+        for (int i = 0; i < cumulative.length; i++) {
+            if (target < cumulative[i]) return ACTIONS[i];
+        }
+        return ACTIONS[ACTIONS.length - 1];
+    }
+}
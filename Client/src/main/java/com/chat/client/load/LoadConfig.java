@@ -0,0 +1,33 @@
+package com.chat.client.load;
+
+/**
+ * Load generator settings, read from system properties (e.g. {@code -Dload.users=500}).
+ */
+final class LoadConfig {
+    static final String HOST = System.getProperty("load.host", "localhost");
+    static final int PORT = Integer.getInteger("load.port", 5555);
+
+    /** Simulated users, logged in evenly over the ramp-up, in seconds. */
+    static final int USERS = Integer.getInteger("load.users", 100);
+    static final long RAMP_UP = Long.getLong("load.rampUp", 10);
+
+    /** Seconds to run once everyone is logged in (0: until interrupted), and between reports. */
+    static final long DURATION = Long.getLong("load.duration", 60);
+    static final long REPORT_INTERVAL = Long.getLong("load.reportInterval", 10);
+
+    /** Actions per second per user, at random intervals averaging this rate. */
+    static final double RATE = Double.parseDouble(System.getProperty("load.rate", "1"));
+
+    /**
+     * Relative weights of the actions a user picks from, as {@code action=weight} pairs:
+     * {@code broadcast}, {@code private}, {@code file} (private) and {@code ping}.
+     */
+    static final String MIX = System.getProperty("load.mix", "broadcast=10,private=75,file=5,ping=10");
+
+    /** Length of the text of each chat message, and size of each file; every file is new content. */
+    static final int TEXT_LENGTH = Integer.getInteger("load.textLength", 100);
+    static final int FILE_BYTES = Integer.getInteger("load.fileBytes", 256 * 1024);
+
+    private LoadConfig() {
+    }
+}
@@ -0,0 +1,100 @@
+package com.chat.client.load;
+
+import com.chat.shared.FrameCompression;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Headless load generator: {@link LoadConfig#USERS} simulated users, each on a virtual thread
+ * with its own connection, broadcasting, sending private messages and files, and pinging in
+ * the configured mix. Prints throughput and delivery latencies every report interval, and
+ * totals at the end or on Ctrl-C.
+ */
+public final class LoadGenerator {
+    private static final long STOP_TIMEOUT = 5; // seconds, for users to log out
+    private static volatile boolean stopped;
+
+    private LoadGenerator() {
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (LoadConfig.USERS < 2) {
+            System.err.println("load.users must be at least 2");
+            System.exit(1);
+        }
+        double[] mix = Action.parseMix(LoadConfig.MIX);
+        String runId = Integer.toHexString(ThreadLocalRandom.current().nextInt(0x100000, 0x1000000));
+        List<String> usernames = new ArrayList<>(LoadConfig.USERS);
+        for (int i = 0; i < LoadConfig.USERS; i++) {
+            usernames.add("load-" + runId + "-" + i);
+        }
+        Path fileDir = Files.createTempDirectory("chat-load");
+        LoadStats stats = new LoadStats();
+
+        System.out.printf(Locale.ROOT, "%d users on %s:%d, %.2f actions/s each (%s), ramp-up %ds, duration %s%n",
+                LoadConfig.USERS, LoadConfig.HOST, LoadConfig.PORT, LoadConfig.RATE, LoadConfig.MIX,
+                LoadConfig.RAMP_UP, LoadConfig.DURATION > 0 ? LoadConfig.DURATION + "s" : "until interrupted");
+
+        ExecutorService users = Executors.newVirtualThreadPerTaskExecutor();
+        long rampUpMillis = TimeUnit.SECONDS.toMillis(LoadConfig.RAMP_UP);
+        for (int i = 0; i < LoadConfig.USERS; i++) {
+            long startDelay = rampUpMillis * i / LoadConfig.USERS;
+            users.execute(new SimulatedUser(i, usernames, runId, mix, startDelay, fileDir, stats));
+        }
+
+        long start = System.nanoTime();
+        Thread stopper = new Thread(() -> stop(users, stats, start, fileDir), "load-stop");
+        Runtime.getRuntime().addShutdownHook(stopper);
+
+        long interval = TimeUnit.SECONDS.toNanos(LoadConfig.REPORT_INTERVAL);
+        long end = LoadConfig.DURATION > 0
+                ? start + TimeUnit.SECONDS.toNanos(LoadConfig.RAMP_UP + LoadConfig.DURATION)
+                : Long.MAX_VALUE;
+        long lastReport = start;
+        while (true) {
+            long next = Math.min(lastReport + interval, end);
+            TimeUnit.NANOSECONDS.sleep(next - System.nanoTime());
+            if (stopped) return; // interrupted, the shutdown hook reports
+            long now = System.nanoTime();
+            System.out.println(stats.report(TimeUnit.NANOSECONDS.toSeconds(now - start), (now - lastReport) / 1e9));
+            lastReport = now;
+            if (now >= end) break;
+        }
+
+        Runtime.getRuntime().removeShutdownHook(stopper);
+        stop(users, stats, start, fileDir);
+        System.exit(0);
+    }
+
+    private static void stop(ExecutorService users, LoadStats stats, long start, Path fileDir) {
+        stopped = true;
+        double seconds = (System.nanoTime() - start) / 1e9;
+        users.shutdownNow();
+        try {
+            users.awaitTermination(STOP_TIMEOUT, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        System.out.print(stats.summary(seconds));
+        System.out.println(FrameCompression.summary());
+        deleteQuietly(fileDir);
+    }
+
+    private static void deleteQuietly(Path dir) {
+        try (Stream<Path> files = Files.walk(dir)) {
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        } catch (IOException e) {
+            System.err.println("Cannot remove " + dir + ": " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package com.chat.client.load;
+
+import com.chat.shared.LatencyHistogram;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts and latencies across all simulated users, in microseconds: broadcast and private
+ * messages from being sent to being received, files from the upload starting to its last chunk
+ * going out, and pings to their pong. Reports cover the interval since the last one;
+ * the summary covers the whole run.
+ */
+final class LoadStats {
+    private static final Action[] ACTIONS = Action.values();
+
+    private final LongAdder[] sent = adders();
+    private final LongAdder[] completed = adders();
+    private final LatencyHistogram[] interval = histograms();
+    private final LatencyHistogram[] total = histograms();
+    private final LongAdder delivered = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private final AtomicInteger online = new AtomicInteger();
+    private volatile String lastError;
+    private long lastSent;
+    private long lastDelivered;
+
+    void loggedIn() {
+        online.incrementAndGet();
+    }
+
+    void loggedOut() {
+        online.decrementAndGet();
+    }
+
+    void sent(Action action) {
+        sent[action.ordinal()].increment();
+    }
+
+    /**
+     * A message received by one of its recipients, or a file or ping finished, {@code micros} after it started.
+     */
+    void completed(Action action, long micros) {
+        completed[action.ordinal()].increment();
+        interval[action.ordinal()].record(micros);
+        total[action.ordinal()].record(micros);
+        if (action == Action.BROADCAST || action == Action.PRIVATE) {
+            delivered.increment();
+        }
+    }
+
+    void error(String message) {
+        errors.increment();
+        lastError = message;
+    }
+
+    /**
+     * Throughput and latencies since the previous report, {@code seconds} ago.
+     */
+    String report(long elapsed, double seconds) {
+        long sentNow = sum(sent);
+        long deliveredNow = delivered.sum();
+        StringBuilder sb = new StringBuilder(256);
+        sb.append(String.format(Locale.ROOT, "[%5ds] users=%d sent=%.0f/s delivered=%.0f/s errors=%d",
+                elapsed, online.get(),
+                (sentNow - lastSent) / seconds,
+                (deliveredNow - lastDelivered) / seconds,
+                errors.sum()));
+        lastSent = sentNow;
+        lastDelivered = deliveredNow;
+        for (Action action : ACTIONS) {
+            appendLatency(sb, " | " + name(action), interval[action.ordinal()].snapshotAndReset());
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Totals for the run so far, {@code seconds} long.
+     */
+    String summary(double seconds) {
+        StringBuilder sb = new StringBuilder(512);
+        sb.append(String.format(Locale.ROOT, "%.0f s: %d sent (%.0f/s), %d delivered (%.0f/s), %d errors%n",
+                seconds, sum(sent), sum(sent) / seconds, delivered.sum(), delivered.sum() / seconds, errors.sum()));
+        for (Action action : ACTIONS) {
+            LatencyHistogram.Snapshot snapshot = total[action.ordinal()].snapshot();
+            sb.append(String.format(Locale.ROOT, "  %-9s sent=%d completed=%d", name(action),
+                    sent[action.ordinal()].sum(), completed[action.ordinal()].sum()));
+            appendLatency(sb, "", snapshot);
+            sb.append(System.lineSeparator());
+        }
+        if (lastError != null) {
+            sb.append("  last error: ").append(lastError).append(System.lineSeparator());
+        }
+        return sb.toString();
+    }
+
+    private static void appendLatency(StringBuilder sb, String label, LatencyHistogram.Snapshot snapshot) {
+        if (snapshot.count() == 0) return;
+        sb.append(String.format(Locale.ROOT, "%s p50=%dus p99=%dus p999=%dus",
+                label, snapshot.percentile(0.5), snapshot.percentile(0.99), snapshot.percentile(0.999)));
+    }
+
+    private static String name(Action action) {
+        return action.name().toLowerCase(Locale.ROOT);
+    }
+
+    private static long sum(LongAdder[] adders) {
+        long sum = 0;
+        for (LongAdder adder : adders) {
+            sum += adder.sum();
+        }
+        return sum;
+    }
+
+    private static LongAdder[] adders() {
+        LongAdder[] adders = new LongAdder[ACTIONS.length];
+        for (int i = 0; i < adders.length; i++) {
+            adders[i] = new LongAdder();
+        }
+        return adders;
+    }
+
+    private static LatencyHistogram[] histograms() {
+        LatencyHistogram[] histograms = new LatencyHistogram[ACTIONS.length];
+        for (int i = 0; i < histograms.length; i++) {
+            histograms[i] = new LatencyHistogram();
+        }
+        return histograms;
+    }
+}
@@ -0,0 +1,155 @@
+package com.chat.client.load;
+
+import com.chat.client.services.ConnectionService;
+import com.chat.shared.ChatMessage;
+import com.chat.shared.MessageType;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One user on its own {@link ConnectionService}: logs in after its share of the ramp-up, then
+ * keeps picking an action from the mix at random intervals until its thread is interrupted.
+ * Chat messages carry the run and their send time in their text, so whoever receives one can
+ * tell how long it took; anything else received (history, other runs) is ignored.
+ */
+final class SimulatedUser implements Runnable {
+    private final int index;
+    private final String username;
+    private final List<String> usernames;
+    private final String tag;
+    private final double[] mix;
+    private final long startDelay; // ms
+    private final Path fileDir;
+    private final LoadStats stats;
+    private final String padding;
+    private volatile long loggedInAt;
+    private volatile long pingSentAt;
+    private ConnectionService connection;
+
+    SimulatedUser(int index, List<String> usernames, String runId, double[] mix, long startDelay,
+                  Path fileDir, LoadStats stats) {
+        this.index = index;
+        this.username = usernames.get(index);
+        this.usernames = usernames;
+        this.tag = "load " + runId + " ";
+        this.mix = mix;
+        this.startDelay = startDelay;
+        this.fileDir = fileDir;
+        this.stats = stats;
+        this.padding = " " + "x".repeat(Math.max(0, LoadConfig.TEXT_LENGTH - tag.length() - 21));
+    }
+
+    @Override
+    public void run() {
+        try {
+            Thread.sleep(startDelay);
+        } catch (InterruptedException e) {
+            return;
+        }
+
+        loggedInAt = System.nanoTime();
+        connection = new ConnectionService(LoadConfig.HOST, LoadConfig.PORT, username, this::receive);
+        if (!connection.connect()) {
+            stats.error(username + " could not connect");
+            return;
+        }
+        stats.loggedIn();
+        try {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            while (connection.isConnected()) {
+                // Exponential gaps: actions arrive as a Poisson process at the configured rate
+                double seconds = -Math.log(1 - random.nextDouble()) / LoadConfig.RATE;
+                TimeUnit.NANOSECONDS.sleep((long) (seconds * 1e9));
+                act(Action.pick(mix, random.nextDouble()));
+            }
+            stats.error(username + " was disconnected");
+        } catch (InterruptedException e) {
+            // Stopped
+        } finally {
+            stats.loggedOut();
+            connection.disconnect();
+        }
+    }
+
+    private void act(Action action) throws InterruptedException {
+        stats.sent(action);
+        switch (action) {
+            case BROADCAST -> connection.sendMessage(chat(null));
+            case PRIVATE -> connection.sendMessage(chat(someoneElse()));
+            case FILE -> sendFile(someoneElse());
+            case PING -> {
+                pingSentAt = System.nanoTime();
+                connection.sendMessage(new ChatMessage(MessageType.PING, username));
+            }
+        }
+    }
+
+    private ChatMessage chat(String recipient) {
+        ChatMessage message = new ChatMessage(MessageType.TEXT, username);
+        message.setRecipient(recipient);
+        message.setText(tag + System.nanoTime() + padding);
+        return message;
+    }
+
+    // New content every time, so the server stores and relays the whole file
+    private void sendFile(String recipient) throws InterruptedException {
+        Path file = null;
+        try {
+            file = Files.createTempFile(fileDir, username, ".bin");
+            byte[] content = new byte[LoadConfig.FILE_BYTES];
+            ThreadLocalRandom.current().nextBytes(content);
+            Files.write(file, content);
+
+            long start = System.nanoTime();
+            connection.getFileTransfers().sendFile(file.toFile(), username, recipient, MessageType.FILE, (done, total) -> {
+            });
+            stats.completed(Action.FILE, (System.nanoTime() - start) / 1000);
+        } catch (IOException e) {
+            stats.error(username + " could not send a file: " + e.getMessage());
+        } finally {
+            if (file != null) {
+                try {
+                    Files.deleteIfExists(file);
+                } catch (IOException ignored) {
+                    // Still being read; the directory goes at exit
+                }
+            }
+        }
+    }
+
+    private String someoneElse() {
+        int other = ThreadLocalRandom.current().nextInt(usernames.size() - 1);
+        return usernames.get(other >= index ? other + 1 : other);
+    }
+
+    // On the connection's reading thread
+    private void receive(ChatMessage message) {
+        long now = System.nanoTime();
+        switch (message.getType()) {
+            case TEXT -> {
+                String text = message.getText();
+                if (text == null || !text.startsWith(tag)) return;
+                int end = text.indexOf(' ', tag.length());
+                long sentAt = Long.parseLong(text.substring(tag.length(), end));
+                if (sentAt < loggedInAt) return; // replayed history
+                Action action = message.getRecipient() != null ? Action.PRIVATE : Action.BROADCAST;
+                stats.completed(action, (now - sentAt) / 1000);
+            }
+            case PONG -> {
+                long sentAt = pingSentAt;
+                if (sentAt != 0) {
+                    pingSentAt = 0;
+                    stats.completed(Action.PING, (now - sentAt) / 1000);
+                }
+            }
+            case ERROR -> stats.error(username + ": " + message.getText());
+            default -> {
+                // Presence, file notices, room traffic
+            }
+        }
+    }
+}
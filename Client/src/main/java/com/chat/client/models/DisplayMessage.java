@@ -1,21 +1,38 @@
 package com.chat.client.models;
 
-import javafx.scene.Node;
+import com.chat.shared.ChatMessage;
 
+/**
+ * One entry in the message list, as plain data: the cells that show it build and reuse their
+ * own nodes, so keeping a long history costs no scene graph.
+ */
 public class DisplayMessage {
-    private final Node content;
+    private final String text;
     private final boolean isSelf;
+    private final ChatMessage download;
 
-    public DisplayMessage(Node content, boolean isSelf) {
-        this.content = content;
+    public DisplayMessage(String text, boolean isSelf) {
+        this(text, isSelf, null);
+    }
+
+    /**
+     * @param download a file notice the user can save, or null
+     */
+    public DisplayMessage(String text, boolean isSelf, ChatMessage download) {
+        this.text = text;
         this.isSelf = isSelf;
+        this.download = download;
     }
 
-    public Node getContent() {
-        return content;
+    public String getText() {
+        return text;
     }
 
     public boolean isSelf() {
         return isSelf;
     }
+
+    public ChatMessage getDownload() {
+        return download;
+    }
 }
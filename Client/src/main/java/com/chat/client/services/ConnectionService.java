@@ -1,30 +1,74 @@
 package com.chat.client.services;
 
 import com.chat.shared.ChatMessage;
+import com.chat.shared.FrameCodec;
+import com.chat.shared.FrameCompression;
 import com.chat.shared.MessageType;
-import javafx.application.Platform;
+import com.chat.shared.WireFormat;
 import java.io.*;
 import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Consumer;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSocket;
 
 public class ConnectionService {
     private static final int CONNECTION_TIMEOUT = 5000;
     private static final int PING_INTERVAL = 15000; // 15 seconds
+    private static final int CLOSE_TIMEOUT = 2000; // for the LOGOUT to go out
+    // -Dchat.tls=true: the server's certificate is checked against the default trust store, or
+    // -Djavax.net.ssl.trustStore. Sessions are cached per process, so reconnecting resumes one.
+    private static final boolean TLS = Boolean.getBoolean("chat.tls");
+    // Marks the end of what the writer sends before closing
+    private static final Send CLOSE = () -> {
+    };
 
+    private SocketChannel channel;
     private Socket socket;
-    private ObjectOutputStream output;
-    private ObjectInputStream input;
+    private byte[] chunkBuffer; // writer thread only, for file chunks over TLS
+    private DataOutputStream output;
+    private DataInputStream input;
     private final String serverAddress;
     private final int port;
     private final String username;
     private final Consumer<ChatMessage> messageConsumer;
     private volatile boolean isConnected = false;
+    // DEFLATE once the server agrees to it; frames from the server are decoded whatever they use
+    private volatile WireFormat wireFormat = WireFormat.BINARY;
+    private long historyFrom;
     private final ExecutorService executor = Executors.newCachedThreadPool();
-    private Thread pingThread;
+    // One writer thread keeps frames in order within each priority: file chunks must reach the
+    // server in sequence. It only flushes once nothing else is queued, so a burst of sends goes
+    // out in as few writes as possible.
+    private final List<Queue<Send>> outbound = newQueues();
+    private final Semaphore queued = new Semaphore(0);
+    private volatile boolean writerDone;
+    private final FileTransferService fileTransfers = new FileTransferService(this);
+    // Shared by every connection in the process, instead of a sleeping thread each
+    private static final ScheduledExecutorService timers = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "chat-timer");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private ScheduledFuture<?> pingTask;
 
+    /**
+     * @param messageConsumer gets each incoming message on the thread reading the connection
+     */
     public ConnectionService(String serverAddress, int port, String username,
                              Consumer<ChatMessage> messageConsumer) {
         this.serverAddress = serverAddress;
@@ -35,21 +79,30 @@ public class ConnectionService {
 
     public boolean connect() {
         try {
-            socket = new Socket();
+            // A blocking channel still offers streams, and lets file chunks go out via transferTo
+            channel = SocketChannel.open();
+            socket = channel.socket();
             socket.connect(new InetSocketAddress(serverAddress, port), CONNECTION_TIMEOUT);
             socket.setKeepAlive(true);
             socket.setTcpNoDelay(true);
+            if (TLS) {
+                socket = startTls(socket);
+            }
 
-            output = new ObjectOutputStream(socket.getOutputStream());
-            output.flush();
-
-            input = new ObjectInputStream(socket.getInputStream());
+            output = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            input = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
 
             isConnected = true;
 
             System.out.println("Connected to server at " + serverAddress + ":" + port);
-            sendMessage(new ChatMessage(MessageType.LOGIN, username));
+            ChatMessage login = new ChatMessage(MessageType.LOGIN, username);
+            login.setSequence(historyFrom);
+            login.setText(FrameCompression.DEFLATE);
+            sendMessage(login);
 
+            Thread writer = new Thread(this::writeLoop, "chat-writer");
+            writer.setDaemon(true);
+            writer.start();
             executor.execute(this::listenForMessages);
             startPingService();
 
@@ -61,17 +114,37 @@ public class ConnectionService {
         }
     }
 
+    private SSLSocket startTls(Socket plain) throws Exception {
+        SSLSocket tls = (SSLSocket) SSLContext.getDefault().getSocketFactory()
+                .createSocket(plain, serverAddress, port, true);
+        SSLParameters parameters = tls.getSSLParameters();
+        parameters.setEndpointIdentificationAlgorithm("HTTPS");
+        tls.setSSLParameters(parameters);
+        tls.setSoTimeout(CONNECTION_TIMEOUT);
+        tls.startHandshake();
+        tls.setSoTimeout(0);
+        return tls;
+    }
+
     private void listenForMessages() {
         try {
             while (isConnected) {
                 try {
-                    Object obj = input.readObject();
-                    if (obj instanceof ChatMessage) {
-                        ChatMessage message = (ChatMessage) obj;
-                        System.out.println("Received: " + message.getType() + " - " + message.getText());
-                        Platform.runLater(() -> messageConsumer.accept(message));
+                    ChatMessage message = FrameCodec.read(input);
+                    if (message.getType() == MessageType.PING) {
+                        sendMessage(new ChatMessage(MessageType.PONG, username));
+                        continue;
                     }
-                } catch (ClassNotFoundException e) {
+                    if (message.getType() == MessageType.LOGIN) {
+                        if (FrameCompression.DEFLATE.equals(message.getText())) {
+                            wireFormat = WireFormat.DEFLATE;
+                        }
+                        continue;
+                    }
+                    ChatMessage display = fileTransfers.handleIncoming(message);
+                    if (display == null) continue;
+                    messageConsumer.accept(display);
+                } catch (InvalidObjectException e) {
                     System.err.println("Protocol mismatch: " + e.getMessage());
                     disconnect();
                 } catch (EOFException e) {
@@ -88,68 +161,183 @@ public class ConnectionService {
                 // Create error message for UI
                 ChatMessage errorMsg = new ChatMessage(MessageType.ERROR, "System");
                 errorMsg.setText("Connection lost: " + e.getMessage());
-                Platform.runLater(() -> {
-                    try {
-                        messageConsumer.accept(errorMsg);
-                    } catch (Exception ex) {
-                        System.err.println("Error delivering error message: " + ex.getMessage());
-                    }
-                });
+                try {
+                    messageConsumer.accept(errorMsg);
+                } catch (Exception ex) {
+                    System.err.println("Error delivering error message: " + ex.getMessage());
+                }
 
                 disconnect();
             }
         }
     }
 
-    public synchronized void sendMessage(ChatMessage message) {
+    public void sendMessage(ChatMessage message) {
         if (!isConnected) {
             System.err.println("Cannot send message - not connected");
             return;
         }
+        enqueue(priorityOf(message), () -> FrameCodec.write(output, message, wireFormat));
+    }
+
+    /**
+     * Sends a FILE_CHUNK whose payload is {@code length} bytes of {@code file} at {@code position}.
+     * The bytes go from the file to the socket with {@link FileChannel#transferTo}, never
+     * passing through the Java heap, unless they have to be encrypted for TLS. The file must
+     * stay open until {@link #afterPendingSends}.
+     */
+    void sendFileChunk(ChatMessage chunk, FileChannel file, long position, int length) {
+        if (!isConnected) {
+            System.err.println("Cannot send chunk - not connected");
+            return;
+        }
 
-        executor.execute(() -> {
-            try {
-                System.out.println("Sending: " + message.getType() + " - " + message.getText());
-                output.writeObject(message);
-                output.flush();
-            } catch (IOException e) {
-                System.err.println("Send failed: " + e.getMessage());
-                disconnect();
+        enqueue(Priority.BULK, () -> {
+            ByteBuffer header = FrameCodec.encodeHeader(chunk, length);
+            output.write(header.array(), header.arrayOffset() + header.position(), header.remaining());
+            if (TLS) {
+                writeChunk(file, position, length);
+                return;
+            }
+            output.flush();
+            long sent = 0;
+            while (sent < length) {
+                long n = file.transferTo(position + sent, length - sent, channel);
+                if (n <= 0) throw new EOFException("File truncated while sending");
+                sent += n;
             }
         });
     }
 
-    private void startPingService() {
-        pingThread = new Thread(() -> {
-            while (isConnected) {
-                try {
-                    Thread.sleep(PING_INTERVAL);
-                    sendMessage(new ChatMessage(MessageType.PING, username));
-                } catch (InterruptedException e) {
-                    Thread.currentThread().interrupt();
-                } catch (Exception e) {
-                    System.err.println("Ping failed: " + e.getMessage());
-                    disconnect();
-                    break;
-                }
+    private void writeChunk(FileChannel file, long position, int length) throws IOException {
+        if (chunkBuffer == null || chunkBuffer.length < length) {
+            chunkBuffer = new byte[length];
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(chunkBuffer, 0, length);
+        while (buffer.hasRemaining()) {
+            if (file.read(buffer, position + buffer.position()) < 0) {
+                throw new EOFException("File truncated while sending");
+            }
+        }
+        output.write(chunkBuffer, 0, length);
+    }
+
+    /**
+     * Runs a task on the writer once every file chunk queued before it has been written, or
+     * straight away if the connection closes first.
+     */
+    void afterPendingSends(Runnable task) {
+        enqueue(Priority.BULK, new Send() {
+            @Override
+            public void write() {
+                task.run();
+            }
+
+            @Override
+            public void abandon() {
+                task.run();
             }
         });
-        pingThread.setDaemon(true);
-        pingThread.start();
     }
 
-    public synchronized void disconnect() {
-        if (!isConnected) return;
+    private void enqueue(Priority priority, Send send) {
+        outbound.get(priority.ordinal()).add(send);
+        queued.release();
+        if (writerDone) {
+            abandonQueued(); // nothing left to write it
+        }
+    }
 
-        isConnected = false;
+    private void writeLoop() {
         try {
-            if (output != null) {
-                sendMessage(new ChatMessage(MessageType.LOGOUT, username));
+            while (true) {
+                if (!queued.tryAcquire()) {
+                    output.flush();
+                    queued.acquire();
+                }
+                Send next = pollNext();
+                if (next == CLOSE) {
+                    output.flush();
+                    break;
+                }
+                next.write();
+            }
+        } catch (IOException e) {
+            if (isConnected) {
+                System.err.println("Send failed: " + e.getMessage());
+                disconnect();
             }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         } finally {
+            writerDone = true;
             closeResources();
-            executor.shutdown();
+            abandonQueued();
+        }
+    }
+
+    // Permits match queued sends, so after acquiring one some queue has an entry
+    private Send pollNext() {
+        for (Queue<Send> queue : outbound) {
+            Send next = queue.poll();
+            if (next != null) return next;
+        }
+        throw new IllegalStateException("Outbound queues out of step");
+    }
+
+    private void abandonQueued() {
+        for (Queue<Send> queue : outbound) {
+            Send send;
+            while ((send = queue.poll()) != null) {
+                send.abandon();
+            }
+        }
+    }
+
+    private static Priority priorityOf(ChatMessage message) {
+        return switch (message.getType()) {
+            case PING, PONG -> Priority.CONTROL;
+            case FILE_CHUNK, FILE_END -> Priority.BULK;
+            default -> Priority.MESSAGE;
+        };
+    }
+
+    // One per priority, in priority order
+    private static List<Queue<Send>> newQueues() {
+        List<Queue<Send>> queues = new ArrayList<>();
+        for (int i = 0; i < Priority.values().length; i++) {
+            queues.add(new ConcurrentLinkedQueue<>());
+        }
+        return List.copyOf(queues);
+    }
+
+    private void startPingService() {
+        pingTask = timers.scheduleAtFixedRate(() -> {
+            if (isConnected) {
+                sendMessage(new ChatMessage(MessageType.PING, username));
+            }
+        }, PING_INTERVAL, PING_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Says LOGOUT after the messages already queued, then closes. File chunks still queued are
+     * dropped; if the writer cannot finish within {@link #CLOSE_TIMEOUT} the socket is closed anyway.
+     */
+    public synchronized void disconnect() {
+        if (!isConnected) return;
+
+        isConnected = false;
+        if (pingTask != null) {
+            pingTask.cancel(false);
         }
+        fileTransfers.close();
+        if (output != null) {
+            ChatMessage logout = new ChatMessage(MessageType.LOGOUT, username);
+            enqueue(Priority.MESSAGE, () -> FrameCodec.write(output, logout, wireFormat));
+            enqueue(Priority.MESSAGE, CLOSE);
+            timers.schedule(this::closeResources, CLOSE_TIMEOUT, TimeUnit.MILLISECONDS);
+        }
+        executor.shutdown();
     }
 
     private void closeResources() {
@@ -175,4 +363,35 @@ public class ConnectionService {
     public boolean isConnected() {
         return isConnected;
     }
-}
\ No newline at end of file
+
+    /**
+     * Asks the server, at login, for the history after this sequence number (0: recent history).
+     */
+    public void setHistoryFrom(long sequence) {
+        this.historyFrom = sequence;
+    }
+
+    public String getUsername() {
+        return username;
+    }
+
+    public FileTransferService getFileTransfers() {
+        return fileTransfers;
+    }
+
+    /**
+     * Outbound frames by urgency. Pings and pongs go first, so a long upload cannot make the
+     * connection look dead; chat and LOGOUT go ahead of file chunks but never overtake each other.
+     */
+    private enum Priority { CONTROL, MESSAGE, BULK }
+
+    // One queued write, run on the writer thread
+    @FunctionalInterface
+    private interface Send {
+        void write() throws IOException;
+
+        // Called instead of write() if the connection closes first
+        default void abandon() {
+        }
+    }
+}
@@ -1,76 +1,305 @@
 package com.chat.client.services;
 
-import javafx.concurrent.Task;
 import com.chat.shared.MessageType;
 import com.chat.shared.ChatMessage;
+import com.chat.shared.TransferProtocol;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
+/**
+ * Uploads and downloads files by content hash ({@link TransferProtocol}), in chunks so neither
+ * side ever holds a whole file in memory. Outgoing chunks go from the file to the socket with
+ * transferTo. Downloads are spooled under the temp directory by hash, so an interrupted one
+ * resumes where it stopped, even from a later connection.
+ * <p>
+ * Transfers block the calling thread until they finish, reporting their {@link Progress} as
+ * they go; the UI runs them as background tasks.
+ */
 public class FileTransferService {
-    private static final int CHUNK_SIZE = 8192;
+    private static final int ACK_TIMEOUT = 30; // seconds
+    private static final Path SPOOL = Path.of(System.getProperty("java.io.tmpdir"), "chat-downloads");
+
+    private final ConnectionService connection;
+    private final Map<String, Upload> uploads = new ConcurrentHashMap<>();
+    private final Map<String, Download> downloads = new ConcurrentHashMap<>();
+    private final Map<String, Path> saved = new ConcurrentHashMap<>();
+
+    private static final class Upload {
+        final CompletableFuture<Long> resumeAt = new CompletableFuture<>();
+        final Semaphore window = new Semaphore(TransferProtocol.WINDOW);
+    }
+
+    private static final class Download {
+        final FileChannel channel;
+        final CompletableFuture<Void> done = new CompletableFuture<>();
+        volatile long received; // written by the listener thread only
+        volatile long lastActive = System.currentTimeMillis();
+
+        Download(FileChannel channel, long received) {
+            this.channel = channel;
+            this.received = received;
+        }
+    }
+
+    /**
+     * Bytes transferred so far out of the total, reported from the thread running the transfer.
+     */
+    @FunctionalInterface
+    public interface Progress {
+        void update(long done, long total);
+    }
+
+    public FileTransferService(ConnectionService connection) {
+        this.connection = connection;
+    }
 
     public static ChatMessage prepareFileMessage(File file, String sender, String recipient, MessageType type) throws IOException {
         ChatMessage message = new ChatMessage(type, sender);
         message.setRecipient(recipient);
         message.setFilename(file.getName());
         message.setFileSize(file.length());
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            message.setTransferId(TransferProtocol.hash(channel, file.length()));
+        }
         return message;
     }
 
-    public static Task<ChatMessage> createFileSendTask(File file, String sender, String recipient, MessageType type) {
-        return new Task<>() {
-            @Override
-            protected ChatMessage call() throws Exception {
-                ChatMessage message = prepareFileMessage(file, sender, recipient, type);
-                long fileSize = file.length();
-                byte[] buffer = new byte[CHUNK_SIZE];
-
-                try (FileInputStream fis = new FileInputStream(file)) {
-                    int bytesRead;
-                    long totalRead = 0;
-
-                    while ((bytesRead = fis.read(buffer)) != -1 && !isCancelled()) {
-                        // For real implementation, we'd send chunks here
-                        // For demo, we'll just build the complete data
-                        byte[] chunk = new byte[bytesRead];
-                        System.arraycopy(buffer, 0, chunk, 0, bytesRead);
-
-                        totalRead += bytesRead;
-                        updateProgress(totalRead, fileSize);
-                        updateMessage(String.format("Sending %.1f/%.1f MB",
-                                totalRead / (1024.0 * 1024.0),
-                                fileSize / (1024.0 * 1024.0)));
-                    }
-
-                    // In real implementation, we gonna remove this and send chunks incrementally
-                    if (!isCancelled()) {
-                        byte[] fileData = Files.readAllBytes(file.toPath());
-                        message.setData(fileData);
-                    }
+    /**
+     * Uploads a file, starting from wherever the server says it has it up to: nothing is sent if
+     * it already stores the content. At most {@link TransferProtocol#WINDOW} chunks are in flight.
+     * Interrupting the thread stops the upload; sending the file again resumes it.
+     *
+     * @return the file message the recipients are shown
+     */
+    public ChatMessage sendFile(File file, String sender, String recipient, MessageType type, Progress progress)
+            throws IOException, InterruptedException {
+        ChatMessage header = prepareFileMessage(file, sender, recipient, type);
+        String hash = header.getTransferId();
+        long fileSize = header.getFileSize();
+
+        Upload upload = new Upload();
+        if (uploads.putIfAbsent(hash, upload) != null) {
+            throw new IOException(file.getName() + " is already being sent");
+        }
+
+        // Queued chunks read from the channel on the writer thread, which also closes it
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        long sent = -1;
+        try {
+            connection.sendMessage(header);
+            sent = upload.resumeAt.get(ACK_TIMEOUT, TimeUnit.SECONDS);
+            progress.update(sent, fileSize);
+
+            while (sent < fileSize && !Thread.currentThread().isInterrupted()) {
+                if (!upload.window.tryAcquire(ACK_TIMEOUT, TimeUnit.SECONDS) || !connection.isConnected()) {
+                    throw new IOException("Transfer stalled");
+                }
+
+                int length = (int) Math.min(TransferProtocol.CHUNK_SIZE, fileSize - sent);
+                ChatMessage chunk = new ChatMessage(MessageType.FILE_CHUNK, sender);
+                chunk.setTransferId(hash);
+                chunk.setOffset(sent);
+                connection.sendFileChunk(chunk, channel, sent, length);
+
+                sent += length;
+                progress.update(sent, fileSize);
+            }
+        } catch (TimeoutException e) {
+            throw new IOException("Server did not accept " + file.getName());
+        } catch (ExecutionException e) {
+            throw new IOException("Server did not accept " + file.getName() + ": " + e.getCause().getMessage());
+        } finally {
+            uploads.remove(hash);
+            if (sent >= 0) {
+                // A cancelled upload stays on the server, so sending the file again resumes it
+                ChatMessage end = new ChatMessage(MessageType.FILE_END, sender);
+                end.setTransferId(hash);
+                if (sent != fileSize) {
+                    end.setText(TransferProtocol.CANCELLED);
                 }
+                connection.sendMessage(end);
+            }
+            connection.afterPendingSends(() -> closeQuietly(channel));
+        }
 
+        return header;
+    }
+
+    /**
+     * Handles a message read from the server.
+     *
+     * @return the message to show, or null if it was transfer traffic
+     */
+    ChatMessage handleIncoming(ChatMessage message) {
+        switch (message.getType()) {
+            case FILE_ACK -> {
+                Upload upload = uploads.get(message.getTransferId());
+                if (upload != null && !upload.resumeAt.complete(message.getOffset())) {
+                    upload.window.release();
+                }
+                return null;
+            }
+            case FILE_CHUNK -> {
+                receiveChunk(message);
+                return null;
+            }
+            case FILE_END -> {
+                Download download = downloads.get(message.getTransferId());
+                if (download == null) return null;
+                if (TransferProtocol.CANCELLED.equals(message.getText())) {
+                    download.done.completeExceptionally(new IOException("The file is no longer on the server"));
+                } else {
+                    download.done.complete(null);
+                }
+                return null;
+            }
+            default -> {
                 return message;
             }
-        };
+        }
     }
 
-    public static Task<Void> createFileSaveTask(ChatMessage message, Path saveDirectory) {
-        return new Task<>() {
-            @Override
-            protected Void call() throws Exception {
-                updateProgress(0, message.getFileSize());
+    private void receiveChunk(ChatMessage chunk) {
+        Download download = downloads.get(chunk.getTransferId());
+        if (download == null || download.done.isDone() || chunk.getData() == null) return;
 
-                Path filePath = saveDirectory.resolve(message.getFilename());
-                Files.write(filePath, message.getData(), StandardOpenOption.CREATE);
+        if (chunk.getOffset() != download.received) {
+            download.done.completeExceptionally(new IOException("Missing data at offset " + download.received));
+            return;
+        }
 
-                updateProgress(message.getFileSize(), message.getFileSize());
-                return null;
+        try {
+            ByteBuffer data = ByteBuffer.wrap(chunk.getData());
+            while (data.hasRemaining()) {
+                download.channel.write(data, download.received + data.position());
             }
-        };
+            download.received += chunk.getData().length;
+            download.lastActive = System.currentTimeMillis();
+        } catch (IOException e) {
+            download.done.completeExceptionally(e);
+            return;
+        }
+
+        ChatMessage ack = new ChatMessage(MessageType.FILE_ACK, connection.getUsername());
+        ack.setTransferId(chunk.getTransferId());
+        ack.setOffset(download.received);
+        connection.sendMessage(ack);
+    }
+
+    /**
+     * Saves a received file: legacy messages carry their data, others are downloaded from the
+     * server into the spool (resuming a partial download) and moved into place.
+     */
+    public void saveFile(ChatMessage message, Path saveDirectory, Progress progress) throws IOException, InterruptedException {
+        long fileSize = message.getFileSize();
+        progress.update(0, fileSize);
+
+        Path filePath = saveDirectory.resolve(message.getFilename());
+        String hash = message.getTransferId();
+        Path previous = hash != null ? saved.get(hash) : null;
+        if (message.getData() != null) {
+            Files.write(filePath, message.getData(), StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+        } else if (previous != null && Files.exists(previous)) {
+            // Saved before: copy that file instead of downloading again
+            if (!previous.equals(filePath)) {
+                Files.copy(previous, filePath, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } else {
+            if (!TransferProtocol.isHash(hash)) {
+                throw new IOException("Invalid file reference");
+            }
+            Path spool = download(message, hash, fileSize, progress);
+            Files.move(spool, filePath, StandardCopyOption.REPLACE_EXISTING);
+            saved.put(hash, filePath);
+        }
+
+        progress.update(fileSize, fileSize);
+    }
+
+    private Path download(ChatMessage message, String hash, long fileSize, Progress progress)
+            throws IOException, InterruptedException {
+        Files.createDirectories(SPOOL);
+        Path spool = SPOOL.resolve(hash + ".part");
+        try (FileChannel channel = FileChannel.open(spool, StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            if (channel.size() > fileSize) {
+                channel.truncate(0);
+            }
+            Download download = new Download(channel, channel.size());
+            if (downloads.putIfAbsent(hash, download) != null) {
+                throw new IOException(message.getFilename() + " is already being downloaded");
+            }
+
+            try {
+                if (download.received < fileSize) {
+                    ChatMessage request = new ChatMessage(MessageType.FILE_REQUEST, connection.getUsername());
+                    request.setTransferId(hash);
+                    request.setOffset(download.received);
+                    connection.sendMessage(request);
+                    awaitDownload(download, fileSize, progress);
+                }
+            } finally {
+                downloads.remove(hash, download);
+            }
+
+            if (download.received != fileSize || !hash.equals(TransferProtocol.hash(channel, fileSize))) {
+                channel.truncate(0);
+                throw new IOException(message.getFilename() + " arrived corrupted, please try again");
+            }
+        }
+        return spool;
+    }
+
+    private void awaitDownload(Download download, long fileSize, Progress progress) throws IOException, InterruptedException {
+        while (true) {
+            try {
+                download.done.get(1, TimeUnit.SECONDS);
+                return;
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof IOException cause) throw cause;
+                throw new IOException(e.getCause());
+            } catch (TimeoutException e) {
+                progress.update(download.received, fileSize);
+                long idle = System.currentTimeMillis() - download.lastActive;
+                if (!connection.isConnected() || idle > TimeUnit.SECONDS.toMillis(ACK_TIMEOUT)) {
+                    throw new IOException("Download interrupted, it will resume next time");
+                }
+            }
+        }
+    }
+
+    /**
+     * Fails transfers in progress; called on disconnect. Partial downloads stay spooled.
+     */
+    void close() {
+        IOException disconnected = new IOException("Disconnected");
+        downloads.values().forEach(download -> download.done.completeExceptionally(disconnected));
+        uploads.values().forEach(upload -> {
+            upload.resumeAt.completeExceptionally(disconnected);
+            upload.window.release(TransferProtocol.WINDOW);
+        });
+    }
+
+    private static void closeQuietly(FileChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            System.err.println("Error closing file: " + e.getMessage());
+        }
     }
 
     public static MessageType determineFileType(String filename) {
@@ -82,4 +311,4 @@ public class FileTransferService {
             default -> MessageType.FILE;
         };
     }
-}
\ No newline at end of file
+}
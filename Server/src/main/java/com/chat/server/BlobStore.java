@@ -0,0 +1,320 @@
+package com.chat.server;
+
+import com.chat.shared.TransferProtocol;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Uploaded files on local disk, named by their content hash so each content is stored once.
+ * An upload is written to a {@code .part} file and renamed into place when complete. Stored
+ * blobs are evicted least recently used first once they and the uploads in progress exceed the
+ * quota; the file's modification time records use, so the order survives restarts. Each blob
+ * has a {@code .users} file next to it listing who uploaded it and who it was sent to, as only
+ * those users may skip uploading it again or download it.
+ */
+final class BlobStore {
+    private static final Logger logger = Logger.getLogger(BlobStore.class.getName());
+    private static final String PART_SUFFIX = ".part";
+    private static final String USERS_SUFFIX = ".users";
+    private static final String EVERYONE = "everyone"; // a line of its own, unlike "reader name"
+
+    private final Path directory;
+    private final long quota;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final LinkedHashMap<String, Blob> blobs = new LinkedHashMap<>(16, 0.75f, true); // LRU order
+    private long totalBytes;
+    private long reservedBytes; // uploads in progress
+
+    // Guarded by lock
+    private static final class Blob {
+        final long size;
+        final Set<String> owners = new HashSet<>();
+        final Set<String> readers = new HashSet<>();
+        boolean everyone; // shared with all, kept apart from usernames
+
+        Blob(long size) {
+            this.size = size;
+        }
+    }
+
+    BlobStore(Path directory, long quota) {
+        this.directory = directory;
+        this.quota = quota;
+        load();
+    }
+
+    static BlobStore fromConfig() {
+        return new BlobStore(ServerConfig.BLOB_DIR, ServerConfig.BLOB_QUOTA);
+    }
+
+    private void load() {
+        List<Path> blobs = new ArrayList<>();
+        try {
+            Files.createDirectories(directory);
+            try (DirectoryStream<Path> entries = Files.newDirectoryStream(directory)) {
+                for (Path entry : entries) {
+                    String name = entry.getFileName().toString();
+                    if (name.endsWith(PART_SUFFIX)) {
+                        // Uploads only resume within one server run
+                        Files.deleteIfExists(entry);
+                    } else if (TransferProtocol.isHash(name)) {
+                        blobs.add(entry);
+                    }
+                }
+            }
+
+            blobs.sort(Comparator.comparing(BlobStore::lastUsed));
+            for (Path path : blobs) {
+                String hash = path.getFileName().toString();
+                Blob blob = new Blob(Files.size(path));
+                loadUsers(hash, blob);
+                this.blobs.put(hash, blob);
+                totalBytes += blob.size;
+            }
+            logger.info("Blob store " + directory.toAbsolutePath() + ": " + this.blobs.size() + " files, "
+                    + totalBytes / (1024 * 1024) + " MB");
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, "Cannot load blob store " + directory, e);
+        }
+    }
+
+    // One "owner name" or "reader name" per line, and "everyone" alone once shared with all;
+    // a blob without the file is nobody's
+    private void loadUsers(String hash, Blob blob) throws IOException {
+        Path path = users(hash);
+        if (!Files.exists(path)) return;
+        for (String line : Files.readAllLines(path, StandardCharsets.UTF_8)) {
+            if (line.equals(EVERYONE)) {
+                blob.everyone = true;
+                continue;
+            }
+            int space = line.indexOf(' ');
+            if (space < 0) continue;
+            String name = line.substring(space + 1);
+            switch (line.substring(0, space)) {
+                case "owner" -> blob.owners.add(name);
+                case "reader" -> blob.readers.add(name);
+                default -> logger.warning("Ignoring line in " + path + ": " + line);
+            }
+        }
+    }
+
+    private void saveUsers(String hash, Blob blob) {
+        List<String> lines = new ArrayList<>(blob.owners.size() + blob.readers.size() + 1);
+        for (String owner : blob.owners) lines.add("owner " + owner);
+        for (String reader : blob.readers) lines.add("reader " + reader);
+        if (blob.everyone) lines.add(EVERYONE);
+        try {
+            Files.write(users(hash), lines, StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Cannot save users of " + hash, e);
+        }
+    }
+
+    private static FileTime lastUsed(Path path) {
+        try {
+            return Files.getLastModifiedTime(path);
+        } catch (IOException e) {
+            return FileTime.fromMillis(0);
+        }
+    }
+
+    /**
+     * Whether {@code user} has already uploaded this content, so need not send it again. Knowing
+     * a hash is not enough: anyone else has to upload the content to prove they have it.
+     */
+    boolean hasCopy(String hash, long size, String user) {
+        lock.lock();
+        try {
+            Blob blob = blobs.get(hash);
+            return blob != null && blob.size == size && blob.owners.contains(user);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Lets {@code recipient} download a stored blob, or everyone if it is null.
+     */
+    void share(String hash, String recipient) {
+        lock.lock();
+        try {
+            Blob blob = blobs.get(hash);
+            if (blob == null) return;
+            boolean added;
+            if (recipient != null) {
+                added = blob.readers.add(recipient);
+            } else {
+                added = !blob.everyone;
+                blob.everyone = true;
+            }
+            if (added) saveUsers(hash, blob);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Whether {@code user} uploaded a stored blob or was sent it.
+     */
+    boolean readable(String hash, String user) {
+        lock.lock();
+        try {
+            Blob blob = blobs.get(hash);
+            return blob != null && (blob.everyone || blob.readers.contains(user)
+                    || blob.owners.contains(user));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Sets aside room for an upload, evicting stored blobs if need be. Fails if the upload is
+     * larger than the whole quota, or there is no room left beside other uploads in progress.
+     */
+    boolean reserve(long bytes) {
+        lock.lock();
+        try {
+            if (bytes > quota) return false;
+            reservedBytes += bytes;
+            evict(null);
+            if (totalBytes + reservedBytes <= quota) return true;
+            reservedBytes -= bytes;
+            return false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Gives back room set aside for an upload that was dropped.
+     */
+    void release(long bytes) {
+        lock.lock();
+        try {
+            reservedBytes -= bytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Opens an upload's part file, emptied.
+     */
+    FileChannel createPart(String hash) throws IOException {
+        return FileChannel.open(part(hash), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.WRITE);
+    }
+
+    void deletePart(String hash) {
+        try {
+            Files.deleteIfExists(part(hash));
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Cannot delete partial upload " + hash, e);
+        }
+    }
+
+    /**
+     * Moves a finished part file into the store as {@code owner}'s, in place of the room
+     * {@link #reserve reserved} for it, then evicts blobs until back under the quota.
+     */
+    void commit(String hash, long reserved, String owner) throws IOException {
+        Path path = blob(hash);
+        Files.move(part(hash), path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        long size = Files.size(path);
+
+        lock.lock();
+        try {
+            reservedBytes -= reserved;
+            Blob blob = new Blob(size);
+            Blob previous = blobs.put(hash, blob);
+            if (previous != null) {
+                totalBytes -= previous.size;
+                blob.owners.addAll(previous.owners);
+                blob.readers.addAll(previous.readers);
+                blob.everyone = previous.everyone;
+            }
+            totalBytes += size;
+            blob.owners.add(owner);
+            saveUsers(hash, blob);
+            evict(hash);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void evict(String keep) {
+        Iterator<Map.Entry<String, Blob>> eldest = blobs.entrySet().iterator();
+        while (totalBytes + reservedBytes > quota && eldest.hasNext()) {
+            Map.Entry<String, Blob> entry = eldest.next();
+            if (entry.getKey().equals(keep)) continue;
+            try {
+                Files.deleteIfExists(blob(entry.getKey()));
+                Files.deleteIfExists(users(entry.getKey()));
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Cannot evict " + entry.getKey(), e);
+                continue;
+            }
+            totalBytes -= entry.getValue().size;
+            eldest.remove();
+            logger.fine("Evicted " + entry.getKey());
+        }
+    }
+
+    /**
+     * Opens a stored blob for reading and marks it used, or returns null if it is not stored.
+     */
+    FileChannel open(String hash) throws IOException {
+        lock.lock();
+        try {
+            if (blobs.get(hash) == null) return null;
+        } finally {
+            lock.unlock();
+        }
+
+        Path blob = blob(hash);
+        FileChannel channel;
+        try {
+            channel = FileChannel.open(blob, StandardOpenOption.READ);
+        } catch (NoSuchFileException e) {
+            return null; // evicted in the meantime
+        }
+        try {
+            Files.setLastModifiedTime(blob, FileTime.fromMillis(System.currentTimeMillis()));
+        } catch (IOException e) {
+            logger.log(Level.FINE, "Cannot touch " + hash, e);
+        }
+        return channel;
+    }
+
+    private Path blob(String hash) {
+        return directory.resolve(hash);
+    }
+
+    private Path part(String hash) {
+        return directory.resolve(hash + PART_SUFFIX);
+    }
+
+    private Path users(String hash) {
+        return directory.resolve(hash + USERS_SUFFIX);
+    }
+}
@@ -0,0 +1,218 @@
+package com.chat.server;
+
+import com.chat.shared.FrameCodec;
+import com.chat.shared.WireFormat;
+import java.io.*;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Thread-per-connection transport over a plain {@link Socket}. Reads happen on the handler's
+ * thread; writes are queued and performed by a dedicated writer thread, so a client with a
+ * full TCP window only ever stalls its own writer. The writer sends whatever is queued as one
+ * flush, up to a byte budget. While frames keep arriving right after each flush it also holds
+ * a batch open for a short linger time; a frame arriving on an idle queue is flushed at once.
+ * <p>
+ * Clients from before framing write a single {@code ObjectOutputStream} stream instead, told
+ * apart by its first bytes. Their messages are read from an object stream and handed on as
+ * serialized frames; frames to them, serialized too, go out as objects of one stream.
+ * <p>
+ * On a plain socket opened from a channel, file chunks being downloaded go from the stored
+ * file to the socket with {@link java.nio.channels.FileChannel#transferTo}.
+ */
+class BlockingConnection implements Connection {
+    private static final Logger logger = Logger.getLogger(BlockingConnection.class.getName());
+
+    private final Socket socket;
+    private final SocketChannel channel; // null under TLS, which has to encrypt in the heap
+    private final DataInputStream input;
+    private final DataOutputStream output;
+    private final OutboundQueue queue = OutboundQueue.fromConfig();
+    private boolean detected; // reading thread only
+    private ObjectInputStream objectInput; // reading thread only, for an object stream client
+    private volatile boolean objectStream;
+    private boolean streamHeaderSent; // writer thread only
+
+    BlockingConnection(Socket socket) throws IOException {
+        this.socket = socket;
+        this.channel = socket.getChannel();
+        this.input = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        this.output = new DataOutputStream(new BufferedOutputStream(new CountingOutputStream(socket.getOutputStream()),
+                ServerConfig.WRITE_BUFFER_SIZE));
+    }
+
+    // Counts the writes that reach the socket, i.e. syscalls
+    private static final class CountingOutputStream extends FilterOutputStream {
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            WriteMetrics.recordWrite();
+            out.write(b, off, len);
+        }
+    }
+
+    ByteBuffer read() throws IOException {
+        if (!detected) {
+            detected = true;
+            if (startsObjectStream()) {
+                objectStream = true;
+                // The client waits for our stream header before it sends anything: an empty frame
+                // gets the writer to send it
+                send(new Frame(new ByteBuffer[0], false, null));
+                objectInput = FrameCodec.openObjectStream(input);
+            }
+        }
+        if (objectInput == null) {
+            return FrameCodec.readBody(input);
+        }
+        // Framed again, so the handler, budgets and metrics treat it like any serialized frame
+        ByteBuffer frame = FrameCodec.encode(FrameCodec.readObject(objectInput), WireFormat.SERIALIZED);
+        return frame.position(FrameCodec.HEADER_SIZE).slice();
+    }
+
+    // A frame length never starts with the stream magic: it would be far over the frame limit
+    private boolean startsObjectStream() throws IOException {
+        input.mark(2);
+        int first = input.read();
+        int second = input.read();
+        input.reset();
+        if (second < 0) throw new EOFException();
+        return (short) (first << 8 | second) == ObjectStreamConstants.STREAM_MAGIC;
+    }
+
+    void startWriter(String name) {
+        Thread.Builder builder = ServerConfig.virtualThreads()
+                ? Thread.ofVirtual()
+                : Thread.ofPlatform().daemon();
+        builder.name(name).start(this::writeLoop);
+    }
+
+    private void writeLoop() {
+        long linger = ServerConfig.WRITE_LINGER_NANOS;
+        long[] queuedAt = new long[64];
+        long lastFlush = System.nanoTime() - linger;
+        try {
+            Frame frame = queue.take();
+            while (frame != null) {
+                // A frame queued soon after the last flush means a burst: hold the batch open
+                // for up to the linger time; otherwise the queue was idle and it goes at once
+                long deadline = queue.takenQueuedAt() - lastFlush < linger ? System.nanoTime() + linger : 0;
+                int count = 0;
+                long bytes = 0;
+                while (frame != null) {
+                    try {
+                        write(frame);
+                        bytes += frame.length();
+                    } finally {
+                        frame.release();
+                    }
+                    if (count == queuedAt.length) queuedAt = Arrays.copyOf(queuedAt, count * 2);
+                    queuedAt[count++] = queue.takenQueuedAt();
+
+                    if (bytes >= ServerConfig.WRITE_BATCH_BYTES) break;
+                    frame = queue.poll();
+                    if (frame == null && deadline != 0) {
+                        frame = queue.poll(deadline - System.nanoTime());
+                    }
+                }
+                output.flush();
+
+                lastFlush = System.nanoTime();
+                for (int i = 0; i < count; i++) {
+                    WriteMetrics.recordSent(queuedAt[i], lastFlush);
+                }
+                frame = queue.take();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            if (!socket.isClosed()) {
+                logger.log(Level.FINE, "Write failed to " + remoteAddress(), e);
+            }
+        } finally {
+            queue.clear();
+            closeSocket();
+        }
+    }
+
+    private void write(Frame frame) throws IOException {
+        if (!objectStream) {
+            if (frame.isFileBacked() && channel != null) {
+                frame.transferTo(output, channel);
+            } else {
+                frame.writeTo(output);
+            }
+            return;
+        }
+        if (!streamHeaderSent) {
+            output.writeShort(ObjectStreamConstants.STREAM_MAGIC);
+            output.writeShort(ObjectStreamConstants.STREAM_VERSION);
+            streamHeaderSent = true;
+        }
+        // Each segment of a serialized frame is a whole frame: a length, then a stream of one
+        // object. Without the two headers, after a reset of the back-reference table, the
+        // object reads as the next one of the client's stream.
+        int skip = FrameCodec.HEADER_SIZE + 4;
+        for (ByteBuffer segment : frame.segments()) {
+            boolean serialized = segment.hasArray() && segment.remaining() > skip
+                    && segment.getShort(segment.position() + FrameCodec.HEADER_SIZE) == ObjectStreamConstants.STREAM_MAGIC;
+            if (!serialized) {
+                throw new IOException("Not a serialized frame for an object stream client");
+            }
+            output.write(ObjectStreamConstants.TC_RESET);
+            output.write(segment.array(), segment.arrayOffset() + segment.position() + skip, segment.remaining() - skip);
+        }
+    }
+
+    @Override
+    public void send(Frame frame) throws IOException {
+        if (!queue.offer(frame)) {
+            closeSocket();
+            throw new IOException("Outbound queue overflow");
+        }
+    }
+
+    @Override
+    public void close() {
+        queue.close();
+    }
+
+    /**
+     * Whether the socket was closed from this side, e.g. after a failed write.
+     */
+    boolean isClosed() {
+        return socket.isClosed();
+    }
+
+    private void closeSocket() {
+        try {
+            if (!socket.isClosed()) {
+                socket.close();
+            }
+        } catch (IOException ignored) {
+            // Nothing left to do with a socket that fails to close
+        }
+    }
+
+    @Override
+    public OutboundQueue outbound() {
+        return queue;
+    }
+
+    @Override
+    public String remoteAddress() {
+        return String.valueOf(socket.getInetAddress());
+    }
+
+    @Override
+    public String remoteHost() {
+        return socket.getInetAddress().getHostAddress();
+    }
+}
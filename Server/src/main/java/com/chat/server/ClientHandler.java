@@ -1,81 +1,117 @@
 package com.chat.server;
 
 import com.chat.shared.ChatMessage;
+import com.chat.shared.FrameCodec;
+import com.chat.shared.FrameCompression;
 import com.chat.shared.MessageType;
+import com.chat.shared.PresenceUpdate;
+import com.chat.shared.WireFormat;
 import java.io.*;
 import java.net.Socket;
-import java.util.Map;
+import java.nio.ByteBuffer;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 public class ClientHandler implements Runnable {
     private static final Logger logger = Logger.getLogger(ClientHandler.class.getName());
-    private static final int MAX_INACTIVE_TIME = 300_000; // 5 minutes
 
-    private final Socket clientSocket;
-    private ObjectOutputStream output;
-    private ObjectInputStream input;
-    private String username;
-    private final Map<String, ClientHandler> clients;
+    private final Connection connection;
+    // Volatile as the wheel thread reads it for timeouts in blocking mode
+    private volatile String username;
+    private final ClientRegistry clients;
+    // Guards writes and close; a ReentrantLock rather than synchronized so virtual threads unmount while blocked
+    private final ReentrantLock lock = new ReentrantLock();
     private volatile boolean running = true;
-    private long lastActivityTime;
+    private volatile long lastActivityTime;
+    // Negotiated at LOGIN: replies use whatever encoding the client logged in with
+    private volatile WireFormat wireFormat = WireFormat.SERIALIZED;
+    private boolean closed;
+    private final Set<String> rooms = ConcurrentHashMap.newKeySet();
+    // One timeout at a time on the shared wheel: login deadline, then ping and idle checks
+    private final long connectedAt = System.currentTimeMillis();
+    private volatile TimingWheel.Timeout timer;
+    private volatile long lastPingTime;
+    private volatile long bytesIn; // reading thread only
+    private final AtomicLong bytesOut = new AtomicLong();
+    // Send budgets: the address's from the start, shared with its other connections, the user's from login
+    private String host;
+    private SendBudget hostBudget;
+    private SendBudget userBudget; // reading thread only
+    private boolean holding; // reading thread only: a frame is waiting for budget, since heldSince
+    private long heldSince;
+    private volatile long throttled;
 
-    public ClientHandler(Socket socket, Map<String, ClientHandler> clients) {
-        this.clientSocket = socket;
+    public ClientHandler(Socket socket, ClientRegistry clients) {
         this.clients = clients;
         this.lastActivityTime = System.currentTimeMillis();
 
+        BlockingConnection blocking = null;
         try {
-            this.output = new ObjectOutputStream(socket.getOutputStream());
-            this.output.flush(); // Critical!
-            this.input = new ObjectInputStream(socket.getInputStream());
+            blocking = new BlockingConnection(socket);
         } catch (IOException ex) {
             logger.log(Level.SEVERE, "Error setting up streams: " + ex.getMessage(), ex);
-            closeConnection();
+            running = false;
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+                // Already failed
+            }
+        }
+        this.connection = blocking;
+        if (blocking != null) {
+            ServerMetrics.connectionOpened();
+            openBudget();
         }
     }
 
-    @Override
-    public void run() {
-        try {
-            // Handle login message
-            ChatMessage loginMessage = (ChatMessage) input.readObject();
-            if (loginMessage.getType() != MessageType.LOGIN || loginMessage.getSender() == null) {
-                sendError("Invalid login message");
-                return;
-            }
+    ClientHandler(Connection connection, ClientRegistry clients) {
+        this.connection = connection;
+        this.clients = clients;
+        this.lastActivityTime = System.currentTimeMillis();
+        ServerMetrics.connectionOpened();
+        openBudget();
+    }
 
-            username = loginMessage.getSender();
-            if (clients.containsKey(username)) {
-                sendError("Username already in use");
-                return;
-            }
+    /**
+     * Starts the login deadline, once the transport can run the timer's check: not from the
+     * constructor, which would hand the wheel a handler still being built.
+     */
+    void startTimers() {
+        scheduleTimer(ServerConfig.LOGIN_TIMEOUT);
+    }
 
-            clients.put(username, this);
-            logger.info(username + " has logged in");
-            sendWelcomeMessage();
-            ServerMain.broadcastUserList();
+    /**
+     * Blocking mode: reads frames from the socket until the client leaves.
+     */
+    @Override
+    public void run() {
+        if (!(connection instanceof BlockingConnection blocking)) {
+            return;
+        }
 
-            // Read and process messages from the client
+        blocking.startWriter("writer-" + blocking.remoteAddress());
+        startTimers();
+        try {
             while (running) {
-                checkInactivity();
-
-                ChatMessage message = (ChatMessage) input.readObject();
-                if (message == null) {
-                    logger.warning("Received null message");
-                    continue;
+                ByteBuffer body = blocking.read();
+                if (awaitBudget(FrameCodec.HEADER_SIZE + body.remaining())) {
+                    handleFrame(body);
                 }
-
-                lastActivityTime = System.currentTimeMillis();
-                processMessage(message);
             }
         } catch (EOFException e) {
             logger.info(username + " disconnected gracefully");
-        } catch (ClassNotFoundException e) {
+        } catch (InvalidObjectException e) {
             logger.log(Level.SEVERE, "Protocol error with " + username, e);
         } catch (IOException e) {
-            if (running) { // Only log unexpected disconnects
+            if (running && blocking.isClosed()) {
+                // The writer closed the socket after a failed write: the client is gone
+                logger.info(username + " disconnected");
+            } else if (running) { // Only log unexpected disconnects
                 logger.log(Level.SEVERE, "I/O error with " + username, e);
             }
         } finally {
@@ -83,24 +119,195 @@ public class ClientHandler implements Runnable {
         }
     }
 
-    private void processMessage(ChatMessage message) {
-        logger.info(String.format("Message from %s [%s]: %s",
-                username, message.getType(), message.getText()));
+    private void openBudget() {
+        host = connection.remoteHost();
+        hostBudget = ServerMain.limits().open(host);
+    }
+
+    /**
+     * Blocking mode: holds the frame, and with it the socket, until the budgets allow it.
+     *
+     * @return false if the connection closed meanwhile
+     */
+    private boolean awaitBudget(int size) throws InterruptedIOException {
+        long wait;
+        while ((wait = throttle(size)) > 0 && running) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(wait);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while throttled");
+            }
+        }
+        return running;
+    }
+
+    /**
+     * Charges a frame of {@code size} bytes, header included, to the user's and the address's
+     * budgets before it is handled. If either has too little left, charges nothing and returns
+     * the nanoseconds to wait before asking again; the transport reads no more from the
+     * client until then.
+     */
+    long throttle(int size) {
+        long now = System.nanoTime();
+        // The address's budget is shared with other connections: charge both or neither
+        long hostWait = hostBudget != null ? hostBudget.tryTake(size, now) : 0;
+        long userWait = 0;
+        if (hostWait == 0 && userBudget != null) {
+            userWait = userBudget.tryTake(size, now);
+            if (userWait > 0 && hostBudget != null) hostBudget.refund(size);
+        }
+        if (hostWait > 0 || userWait > 0) {
+            if (!holding) {
+                holding = true;
+                heldSince = now;
+                throttled++;
+                ServerMetrics.throttled(userWait > 0);
+                logger.fine(() -> (username != null ? username : host) + " is over its send budget");
+            }
+            return Math.max(hostWait, userWait);
+        }
+        if (holding) {
+            holding = false;
+            ServerMetrics.throttledFor(now - heldSince);
+        }
+        return 0;
+    }
 
+    /**
+     * Entry point for every frame body, from either the blocking read loop or an NIO event loop.
+     */
+    void handleFrame(ByteBuffer body) throws IOException {
+        long receivedAt = System.nanoTime();
+        int size = FrameCodec.HEADER_SIZE + body.remaining();
+        bytesIn += size;
+        ServerMetrics.bytesIn(size);
+        if (username == null) {
+            wireFormat = FrameCodec.formatOf(body);
+        }
+        ChatMessage message = FrameCodec.decode(body);
+        handleMessage(message);
+        if (message != null) {
+            ServerMetrics.handled(message.getType(), receivedAt, System.nanoTime());
+        }
+    }
+
+    private void handleMessage(ChatMessage message) {
+        if (message == null) {
+            logger.warning("Received null message");
+            return;
+        }
+
+        if (username == null) {
+            handleLogin(message);
+            return;
+        }
+
+        lastActivityTime = System.currentTimeMillis();
+        // History, inboxes and error routing all go by the sender, so it has to be this client
+        if (!username.equals(message.getSender())) {
+            logger.warning(username + " sent a " + message.getType() + " as " + message.getSender());
+            sendError("Messages must be sent as " + username);
+            return;
+        }
+        processMessage(message);
+    }
+
+    private void handleLogin(ChatMessage loginMessage) {
+        if (loginMessage.getType() != MessageType.LOGIN || loginMessage.getSender() == null) {
+            sendError("Invalid login message");
+            closeConnection();
+            return;
+        }
+        if (!PresenceUpdate.isValidName(loginMessage.getSender())) {
+            sendError("Usernames cannot be blank or contain control characters");
+            closeConnection();
+            return;
+        }
+
+        // Set before registering: broadcasts may see this handler as soon as it is in the registry
+        username = loginMessage.getSender();
+        if (ServerMain.cluster().nodeOf(username) != null || !clients.register(username, this)) {
+            username = null;
+            sendError("Username already in use");
+            closeConnection();
+            return;
+        }
+
+        lastActivityTime = System.currentTimeMillis();
+        userBudget = SendBudget.forUser();
+        negotiateCompression(loginMessage);
+        logger.info(username + " has logged in (" + wireFormat + " protocol)");
+        sendWelcomeMessage();
+        ServerMain.presence().join(this);
+        ServerMain.cluster().userJoined(username);
+        ServerMain.catchUp(this, loginMessage);
+    }
+
+    private void processMessage(ChatMessage message) {
         switch (message.getType()) {
             case TEXT -> handleTextMessage(message);
             case FILE, AUDIO, VIDEO, NOTE -> handleFileMessage(message);
-            case LOGOUT -> running = false;
+            case FILE_CHUNK -> ServerMain.files().chunk(this, message);
+            case FILE_END -> ServerMain.files().end(this, message);
+            case FILE_ACK -> ServerMain.files().acknowledged(this, message);
+            case FILE_REQUEST -> ServerMain.files().request(this, message);
+            case LOGOUT -> {
+                running = false;
+                closeConnection();
+            }
             case PING -> handlePing();
+            case PONG -> {
+                // Answer to our ping; receiving it was the point
+            }
+            case PRESENCE -> ServerMain.presence().sendSnapshot(this);
+            case JOIN -> ServerMain.rooms().join(this, message.getRoom());
+            case LEAVE -> ServerMain.rooms().leave(this, message.getRoom());
+            case ROOMS -> ServerMain.rooms().sendList(this);
             default -> logger.warning("Unknown message type: " + message.getType());
         }
     }
 
-    private void checkInactivity() throws IOException {
-        if (System.currentTimeMillis() - lastActivityTime > MAX_INACTIVE_TIME) {
+    private void scheduleTimer(long delay) {
+        if (!running) return;
+        timer = ServerMain.timers().schedule(() -> connection.execute(this::checkTimers), delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Drops a client that has not logged in by the deadline or has been silent for the idle
+     * timeout, and pings one that has been silent for the ping interval. Activity itself only
+     * stamps a time; the check reschedules itself for whenever the next of these is due.
+     */
+    private void checkTimers() {
+        if (!running) return;
+        long now = System.currentTimeMillis();
+
+        if (username == null) {
+            long left = connectedAt + ServerConfig.LOGIN_TIMEOUT - now;
+            if (left <= 0) {
+                sendError("Login timed out");
+                closeConnection();
+            } else {
+                scheduleTimer(left);
+            }
+            return;
+        }
+
+        long idle = now - lastActivityTime;
+        if (idle >= ServerConfig.IDLE_TIMEOUT) {
             sendError("Disconnected due to inactivity");
-            throw new IOException("Client inactive");
+            closeConnection();
+            return;
         }
+        if (idle < ServerConfig.PING_INTERVAL) {
+            scheduleTimer(ServerConfig.PING_INTERVAL - idle);
+            return;
+        }
+        if (lastPingTime < lastActivityTime) {
+            lastPingTime = now;
+            sendMessage(new ChatMessage(MessageType.PING, "Server"));
+        }
+        scheduleTimer(Math.min(ServerConfig.PING_INTERVAL, ServerConfig.IDLE_TIMEOUT - idle));
     }
 
     private void handlePing() {
@@ -108,19 +315,40 @@ public class ClientHandler implements Runnable {
         sendMessage(pong);
     }
 
+    /**
+     * Switches a binary client that offers {@link FrameCompression#DEFLATE} in its LOGIN text
+     * to compressed frames, and says so with a LOGIN of our own. Frames already encoded for it
+     * stay uncompressed, which the client reads just as well.
+     */
+    private void negotiateCompression(ChatMessage login) {
+        if (wireFormat != WireFormat.BINARY || !ServerConfig.COMPRESSION
+                || !FrameCompression.DEFLATE.equals(login.getText())) {
+            return;
+        }
+        wireFormat = WireFormat.DEFLATE;
+        ChatMessage accepted = new ChatMessage(MessageType.LOGIN, "Server");
+        accepted.setText(FrameCompression.DEFLATE);
+        sendMessage(accepted);
+    }
+
     private void sendWelcomeMessage() {
         ChatMessage welcomeMsg = new ChatMessage(MessageType.TEXT, "Server");
         welcomeMsg.setText("Welcome to the chat, " + username + "!");
         sendMessage(welcomeMsg);
     }
 
-    private void sendError(String error) {
+    void sendError(String error) {
         ChatMessage errorMsg = new ChatMessage(MessageType.ERROR, "Server");
         errorMsg.setText(error);
         sendMessage(errorMsg);
     }
 
     private void handleTextMessage(ChatMessage message) {
+        if (message.getRoom() != null) {
+            ServerMain.rooms().publish(this, message);
+            return;
+        }
+        ServerMain.history().append(message);
         if (message.getRecipient() != null) {
             ServerMain.sendPrivateMessage(message, message.getRecipient());
         } else {
@@ -129,6 +357,12 @@ public class ClientHandler implements Runnable {
     }
 
     private void handleFileMessage(ChatMessage message) {
+        // A header without data offers a chunked upload
+        if (message.getTransferId() != null && message.getData() == null) {
+            ServerMain.files().offer(this, message);
+            return;
+        }
+
         if (message.getData() == null || message.getData().length == 0) {
             logger.warning("Empty file data from " + username);
             return;
@@ -141,15 +375,45 @@ public class ClientHandler implements Runnable {
         }
     }
 
-    public synchronized void sendMessage(ChatMessage message) {
-        if (!running || output == null) return;
+    public void sendMessage(ChatMessage message) {
+        if (!running || connection == null) return;
+
+        Frame frame;
+        try {
+            frame = Frame.encode(message, wireFormat);
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Cannot encode message for " + username, e);
+            return;
+        }
+
+        try {
+            sendFrame(frame);
+        } finally {
+            frame.release();
+        }
+    }
+
+    /**
+     * Sends an already encoded frame; the caller keeps its own reference.
+     */
+    void sendFrame(Frame frame) {
+        if (!running || connection == null) return;
 
+        boolean failed = false;
+        lock.lock();
         try {
-            output.writeObject(message);
-            output.flush();
-            logger.fine("Sent message to " + username + ": " + message.getType());
+            connection.send(frame.retain());
+            bytesOut.addAndGet(frame.length());
+            ServerMetrics.bytesOut(frame.length());
         } catch (IOException e) {
             logger.log(Level.SEVERE, "Send failed to " + username, e);
+            failed = true;
+        } finally {
+            lock.unlock();
+        }
+
+        // Outside the lock: closing broadcasts the user list, which takes the clients lock
+        if (failed) {
             closeConnection();
         }
     }
@@ -158,26 +422,75 @@ public class ClientHandler implements Runnable {
         return username;
     }
 
-    public synchronized void closeConnection() {
+    /**
+     * Names of the rooms this client is in.
+     */
+    Set<String> rooms() {
+        return rooms;
+    }
+
+    boolean isRunning() {
+        return running;
+    }
+
+    WireFormat getWireFormat() {
+        return wireFormat;
+    }
+
+    int getQueueDepth() {
+        return connection != null ? connection.outbound().depth() : 0;
+    }
+
+    long getDroppedFrames() {
+        return connection != null ? connection.outbound().dropped() : 0;
+    }
+
+    long getBytesIn() {
+        return bytesIn;
+    }
+
+    /**
+     * Times a frame from this client had to wait for its send budget.
+     */
+    long getThrottled() {
+        return throttled;
+    }
+
+    /**
+     * Bytes of the frames queued to this client, including any its overflow policy dropped.
+     */
+    long getBytesOut() {
+        return bytesOut.get();
+    }
+
+    public void closeConnection() {
         running = false;
+        lock.lock();
         try {
-            if (username != null) {
-                clients.remove(username);
-                logger.info(username + " disconnected");
-                ServerMain.broadcastUserList();
-            }
+            if (closed) return;
+            closed = true;
+        } finally {
+            lock.unlock();
+        }
 
-            if (output != null) {
-                output.close();
-            }
-            if (input != null) {
-                input.close();
-            }
-            if (clientSocket != null && !clientSocket.isClosed()) {
-                clientSocket.close();
-            }
-        } catch (IOException e) {
-            logger.log(Level.FINE, "Error during cleanup", e);
+        TimingWheel.Timeout pending = timer;
+        if (pending != null) {
+            pending.cancel();
+        }
+        ServerMain.files().clientGone(this);
+        ServerMain.rooms().leaveAll(this);
+        if (username != null && clients.unregister(username, this)) {
+            logger.info(username + " disconnected");
+            ServerMain.presence().leave(username);
+            ServerMain.cluster().userLeft(username);
+        }
+
+        if (connection != null) {
+            connection.close();
+            ServerMetrics.connectionClosed();
+        }
+        if (host != null) {
+            ServerMain.limits().closed(host);
         }
     }
 }
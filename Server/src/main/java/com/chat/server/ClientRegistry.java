@@ -0,0 +1,83 @@
+package com.chat.server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The logged-in users, keyed by username. Registration is an atomic check-and-insert,
+ * lookups never lock, and broadcasts iterate an array snapshot that is only rebuilt
+ * after someone logs in or out. Every change bumps a version; a snapshot records the
+ * version it was built at, so an older array never replaces a newer one.
+ */
+public final class ClientRegistry {
+    private static final ClientHandler[] EMPTY = new ClientHandler[0];
+
+    private final ConcurrentHashMap<String, ClientHandler> clients = new ConcurrentHashMap<>();
+    private final AtomicLong version = new AtomicLong();
+    private final Object rebuildLock = new Object();
+    private volatile Snapshot snapshot = new Snapshot(0, EMPTY);
+
+    private record Snapshot(long version, ClientHandler[] handlers) {
+    }
+
+    /**
+     * @return false if the username is already taken
+     */
+    public boolean register(String username, ClientHandler handler) {
+        if (clients.putIfAbsent(username, handler) != null) {
+            return false;
+        }
+        version.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Removes the user only if it is still registered to this handler.
+     */
+    public boolean unregister(String username, ClientHandler handler) {
+        if (!clients.remove(username, handler)) {
+            return false;
+        }
+        version.incrementAndGet();
+        return true;
+    }
+
+    public ClientHandler get(String username) {
+        return clients.get(username);
+    }
+
+    public boolean contains(String username) {
+        return clients.containsKey(username);
+    }
+
+    public int size() {
+        return clients.size();
+    }
+
+    /**
+     * Everyone logged in at some recent point; callers must tolerate handlers that have
+     * disconnected since (sending to them is a no-op).
+     */
+    public ClientHandler[] snapshot() {
+        Snapshot current = snapshot;
+        if (current.version() == version.get()) {
+            return current.handlers();
+        }
+        synchronized (rebuildLock) {
+            // Read the version before the map: a change made meanwhile bumps it past this one
+            long now = version.get();
+            current = snapshot;
+            if (current.version() != now) {
+                current = new Snapshot(now, clients.values().toArray(EMPTY));
+                snapshot = current;
+            }
+            return current.handlers();
+        }
+    }
+
+    public List<String> usernames() {
+        return new ArrayList<>(clients.keySet());
+    }
+}
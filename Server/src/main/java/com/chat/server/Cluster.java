@@ -0,0 +1,529 @@
+package com.chat.server;
+
+import com.chat.shared.BinaryCodec;
+import com.chat.shared.ChatMessage;
+import com.chat.shared.FrameCodec;
+import com.chat.shared.MessageType;
+import com.chat.shared.PresenceUpdate;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * The other servers this one shares its users with. Each node keeps a connection open to
+ * every peer for what it sends, and accepts one from every peer for what it receives. A
+ * connection opens with the sender's full user list, then carries its logins and logouts,
+ * broadcasts, room messages, and private messages for users on the receiving node. The users
+ * each peer reports make up the directory of who is on which node, and go away with the
+ * connection they came on. A message for other nodes is encoded once, the same bytes go to
+ * every peer, and each node fans it out to its own clients.
+ * <p>
+ * Before any frame, the two ends of a connection prove to each other that they know the
+ * cluster secret: each signs a fresh challenge from the other with HMAC-SHA256, along with
+ * both node ids, and a node only takes connections from the peers it is configured with.
+ * Link frames are the client framing with one extra byte in front of the binary body,
+ * telling the receiver what the message is for.
+ */
+final class Cluster {
+    private static final Logger logger = Logger.getLogger(Cluster.class.getName());
+    private static final byte USERS = 1;
+    private static final byte BROADCAST = 2;
+    private static final byte PRIVATE = 3;
+    private static final byte ROOM = 4;
+    private static final int LINK_HEADER = FrameCodec.HEADER_SIZE + 1;
+    private static final int USERS_PER_FRAME = 10_000;
+    private static final int CONNECT_TIMEOUT = 5000;
+    private static final int HANDSHAKE_TIMEOUT = 5000;
+    private static final int CHALLENGE_BYTES = 32;
+    private static final String MAC_ALGORITHM = "HmacSHA256";
+    private static final SecureRandom random = new SecureRandom();
+
+    private final String nodeId;
+    private final InetSocketAddress address;
+    private final SecretKeySpec secret; // null if none was configured
+    private final Receiver receiver;
+    private final Map<String, Link> links = new HashMap<>();
+    // Username to node, for users on other nodes
+    private final Map<String, String> directory = new ConcurrentHashMap<>();
+    // Held while changing the local users, so every link sees its snapshot before any change after it
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Set<String> localUsers = new HashSet<>();
+    // Node to the connection currently reporting its users, and the users it has reported
+    private final Map<String, Socket> inbound = new ConcurrentHashMap<>();
+    private final Map<String, Set<String>> remoteUsers = new ConcurrentHashMap<>();
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder received = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private volatile boolean running;
+    private ServerSocket serverSocket;
+
+    /**
+     * Where messages from other nodes go. Called on the thread reading the sending node's link,
+     * so a node's messages arrive in the order it sent them.
+     */
+    interface Receiver {
+        void broadcast(ChatMessage message);
+
+        void privateMessage(ChatMessage message);
+
+        void roomMessage(ChatMessage message);
+
+        void userJoined(String username);
+
+        void userLeft(String username);
+    }
+
+    /**
+     * Another node, as {@code id@host:port} with the port it takes cluster connections on.
+     */
+    record Peer(String id, String host, int port) {
+        static Peer parse(String spec) {
+            int at = spec.indexOf('@');
+            int colon = spec.lastIndexOf(':');
+            if (at <= 0 || colon < at) {
+                throw new IllegalArgumentException("Expected id@host:port, got " + spec);
+            }
+            return new Peer(spec.substring(0, at), spec.substring(at + 1, colon),
+                    Integer.parseInt(spec.substring(colon + 1)));
+        }
+    }
+
+    /**
+     * @param address where to take connections from peers
+     * @param secret what peers prove they know, or empty to refuse to start with peers
+     */
+    Cluster(String nodeId, InetSocketAddress address, String secret, Collection<Peer> peers, Receiver receiver) {
+        this.nodeId = nodeId;
+        this.address = address;
+        this.secret = secret.isEmpty() ? null : new SecretKeySpec(secret.getBytes(StandardCharsets.UTF_8), MAC_ALGORITHM);
+        this.receiver = receiver;
+        for (Peer peer : peers) {
+            links.put(peer.id(), new Link(peer));
+        }
+    }
+
+    static Cluster fromConfig(Receiver receiver) {
+        List<Peer> peers = new ArrayList<>();
+        for (String spec : ServerConfig.CLUSTER_PEERS.split(",")) {
+            if (!spec.isBlank()) peers.add(Peer.parse(spec.trim()));
+        }
+        return new Cluster(ServerConfig.NODE_ID, new InetSocketAddress(ServerConfig.CLUSTER_BIND, ServerConfig.CLUSTER_PORT),
+                ServerConfig.CLUSTER_SECRET, peers, receiver);
+    }
+
+    /**
+     * Starts taking connections from peers and connecting to them; a node without peers does nothing.
+     */
+    void start() throws IOException {
+        if (links.isEmpty()) return;
+        if (secret == null) throw new IOException("A node with peers needs chat.cluster.secret");
+
+        running = true;
+        serverSocket = new ServerSocket();
+        serverSocket.bind(address);
+        daemon("cluster-accept", this::acceptLoop).start();
+        for (Link link : links.values()) {
+            daemon("cluster-link-" + link.peer.id(), link::run).start();
+        }
+        logger.info("Node " + nodeId + " takes cluster connections on " + address + ", peers " + links.keySet());
+    }
+
+    void close() {
+        running = false;
+        try {
+            if (serverSocket != null) serverSocket.close();
+        } catch (IOException e) {
+            logger.log(Level.FINE, "Error closing cluster socket", e);
+        }
+        inbound.values().forEach(Cluster::closeQuietly);
+        links.values().forEach(Link::close);
+    }
+
+    /**
+     * @return the node the user is logged in on, or null if it is not on another node
+     */
+    String nodeOf(String username) {
+        return directory.get(username);
+    }
+
+    void userJoined(String username) {
+        changeUsers(List.of(username), List.of());
+    }
+
+    void userLeft(String username) {
+        changeUsers(List.of(), List.of(username));
+    }
+
+    private void changeUsers(List<String> joined, List<String> left) {
+        if (links.isEmpty()) return;
+
+        lock.lock();
+        try {
+            localUsers.addAll(joined);
+            localUsers.removeAll(left);
+            ByteBuffer frame = encode(USERS, usersMessage(PresenceUpdate.delta(0, 0, joined, left)));
+            links.values().forEach(link -> link.offer(frame));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Sends a broadcast to the clients of every other node.
+     */
+    void broadcast(ChatMessage message) {
+        sendToAll(BROADCAST, message);
+    }
+
+    /**
+     * Sends a room message to every other node, for whichever of its clients are in the room.
+     */
+    void publishRoom(ChatMessage message) {
+        sendToAll(ROOM, message);
+    }
+
+    /**
+     * @return false if the recipient is not on another node, or that node cannot be reached
+     */
+    boolean sendPrivate(ChatMessage message, String recipient) {
+        String node = directory.get(recipient);
+        Link link = node != null ? links.get(node) : null;
+        return link != null && link.offer(encode(PRIVATE, message));
+    }
+
+    private void sendToAll(byte kind, ChatMessage message) {
+        if (links.isEmpty()) return;
+
+        ByteBuffer frame = encode(kind, message);
+        for (Link link : links.values()) {
+            link.offer(frame);
+        }
+    }
+
+    private static ByteBuffer encode(byte kind, ChatMessage message) {
+        ByteBuffer frame = BinaryCodec.encode(message, LINK_HEADER);
+        frame.putInt(0, frame.remaining() - FrameCodec.HEADER_SIZE);
+        frame.put(FrameCodec.HEADER_SIZE, kind);
+        return frame;
+    }
+
+    private ChatMessage usersMessage(PresenceUpdate update) {
+        ChatMessage message = new ChatMessage(MessageType.PRESENCE, nodeId);
+        message.setText(update.toText());
+        return message;
+    }
+
+    private void acceptLoop() {
+        while (running) {
+            try {
+                Socket socket = serverSocket.accept();
+                socket.setTcpNoDelay(true);
+                daemon("cluster-in-" + socket.getRemoteSocketAddress(), () -> readLoop(socket)).start();
+            } catch (IOException e) {
+                if (running) logger.log(Level.WARNING, "Cluster accept failed", e);
+            }
+        }
+    }
+
+    private void readLoop(Socket socket) {
+        String node = null;
+        String peer = null;
+        Set<String> users = null;
+        try (socket; DataInputStream in = new DataInputStream(
+                new BufferedInputStream(socket.getInputStream(), ServerConfig.READ_BUFFER_SIZE))) {
+            peer = acceptPeer(socket, in);
+            while (running) {
+                int length = in.readInt();
+                if (length < 1 || length > FrameCodec.MAX_FRAME_SIZE + 1) {
+                    throw new IOException("Bad cluster frame length: " + length);
+                }
+                byte[] body = new byte[length];
+                in.readFully(body);
+                ByteBuffer buffer = ByteBuffer.wrap(body);
+                byte kind = buffer.get();
+                ChatMessage message = BinaryCodec.decode(buffer);
+
+                if (node == null) {
+                    if (kind != USERS) throw new IOException("Cluster link did not start with a user list");
+                    if (!peer.equals(message.getSender())) {
+                        throw new IOException("Node " + peer + " sent users as " + message.getSender());
+                    }
+                    node = peer;
+                    users = remoteUsers.computeIfAbsent(node, key -> ConcurrentHashMap.newKeySet());
+                    Socket previous = inbound.put(node, socket);
+                    if (previous != null) closeQuietly(previous);
+                    logger.info("Node " + node + " connected from " + socket.getRemoteSocketAddress());
+                }
+                received.increment();
+                dispatch(node, kind, message, users);
+            }
+        } catch (EOFException e) {
+            logger.info("Node " + node + " closed its link");
+        } catch (IOException e) {
+            if (running) {
+                logger.log(Level.WARNING, "Link from " + (peer != null ? "node " + peer : socket.getRemoteSocketAddress())
+                        + " failed: " + e.getMessage());
+            }
+        } finally {
+            // A link replaced by a newer one from the same node leaves its users to that one
+            if (node != null && inbound.remove(node, socket)) {
+                for (String username : users) {
+                    users.remove(username);
+                    forget(node, username);
+                }
+            }
+        }
+    }
+
+    private void dispatch(String node, byte kind, ChatMessage message, Set<String> users) {
+        try {
+            switch (kind) {
+                case USERS -> {
+                    PresenceUpdate update = PresenceUpdate.parse(message.getText());
+                    if (update.isSnapshot()) {
+                        // A fresh link: anyone the old one reported and this one does not has gone
+                        Set<String> gone = new HashSet<>(users);
+                        update.getJoined().forEach(gone::remove);
+                        for (String username : gone) {
+                            users.remove(username);
+                            forget(node, username);
+                        }
+                    }
+                    for (String username : update.getJoined()) {
+                        if (!PresenceUpdate.isValidName(username)) continue;
+                        if (users.add(username)) {
+                            directory.put(username, node);
+                            receiver.userJoined(username);
+                        }
+                    }
+                    for (String username : update.getLeft()) {
+                        if (users.remove(username)) forget(node, username);
+                    }
+                }
+                case BROADCAST -> receiver.broadcast(message);
+                case PRIVATE -> receiver.privateMessage(message);
+                case ROOM -> receiver.roomMessage(message);
+                default -> logger.warning("Unknown cluster frame " + kind + " from node " + node);
+            }
+        } catch (RuntimeException e) {
+            logger.log(Level.SEVERE, "Cannot handle cluster frame from node " + node, e);
+        }
+    }
+
+    /**
+     * Challenges a connecting node to prove it knows the secret, answers its challenge in turn,
+     * and returns its id.
+     */
+    private String acceptPeer(Socket socket, DataInputStream in) throws IOException {
+        socket.setSoTimeout(HANDSHAKE_TIMEOUT);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        byte[] challenge = challenge();
+        out.write(challenge);
+        out.flush();
+
+        String peer = in.readUTF();
+        byte[] theirs = new byte[CHALLENGE_BYTES];
+        in.readFully(theirs);
+        byte[] proof = new byte[CHALLENGE_BYTES];
+        in.readFully(proof);
+        if (!links.containsKey(peer)) throw new IOException("Unknown node " + peer);
+        if (!MessageDigest.isEqual(proof, sign(challenge, peer, nodeId))) {
+            throw new IOException("Node " + peer + " does not know the cluster secret");
+        }
+        // Only sign for a peer that has proven itself, so nobody can make this node sign for them
+        out.write(sign(theirs, nodeId, peer));
+        out.flush();
+        socket.setSoTimeout(0);
+        return peer;
+    }
+
+    /**
+     * Proves to the node at the other end that this one knows the secret, and checks that it is
+     * the peer expected there.
+     */
+    private void connectTo(Socket socket, Peer peer) throws IOException {
+        socket.setSoTimeout(HANDSHAKE_TIMEOUT);
+        DataInputStream in = new DataInputStream(socket.getInputStream());
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        byte[] challenge = new byte[CHALLENGE_BYTES];
+        in.readFully(challenge);
+
+        byte[] ours = challenge();
+        out.writeUTF(nodeId);
+        out.write(ours);
+        out.write(sign(challenge, nodeId, peer.id()));
+        out.flush();
+        byte[] proof = new byte[CHALLENGE_BYTES];
+        in.readFully(proof);
+        if (!MessageDigest.isEqual(proof, sign(ours, peer.id(), nodeId))) {
+            String problem = "Node at " + peer.host() + ":" + peer.port() + " is not " + peer.id();
+            logger.warning(problem); // not connected yet, so the link would not say
+            throw new IOException(problem);
+        }
+        socket.setSoTimeout(0);
+    }
+
+    private static byte[] challenge() {
+        byte[] challenge = new byte[CHALLENGE_BYTES];
+        random.nextBytes(challenge);
+        return challenge;
+    }
+
+    // Names both ends, so a proof made for one connection is no use on any other
+    private byte[] sign(byte[] challenge, String from, String to) {
+        try {
+            Mac mac = Mac.getInstance(MAC_ALGORITHM);
+            mac.init(secret);
+            mac.update(challenge);
+            mac.update((from + '\n' + to).getBytes(StandardCharsets.UTF_8));
+            return mac.doFinal();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(MAC_ALGORITHM + " is not available", e);
+        }
+    }
+
+    private void forget(String node, String username) {
+        if (directory.remove(username, node)) {
+            receiver.userLeft(username);
+        }
+    }
+
+    /**
+     * Peers and links up, users on other nodes, and frames sent, received and dropped since start.
+     */
+    String summary() {
+        long up = links.values().stream().filter(link -> link.connected).count();
+        return String.format("cluster: node=%s links=%d/%d remote users=%d frames sent=%d received=%d dropped=%d",
+                nodeId, up, links.size(), directory.size(), sent.sum(), received.sum(), dropped.sum());
+    }
+
+    private static Thread daemon(String name, Runnable task) {
+        Thread thread = new Thread(task, name);
+        thread.setDaemon(true);
+        return thread;
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            logger.log(Level.FINE, "Error closing cluster link", e);
+        }
+    }
+
+    /**
+     * The connection this node sends to one peer on, reconnecting while the node runs. Frames
+     * are only queued while it is up; what a peer misses while unreachable is lost, and its
+     * users drop out of the directory as its own link to this node goes down.
+     */
+    private final class Link {
+        final Peer peer;
+        final BlockingQueue<ByteBuffer> queue = new LinkedBlockingQueue<>(ServerConfig.CLUSTER_QUEUE);
+        volatile boolean connected;
+        volatile Socket socket;
+
+        Link(Peer peer) {
+            this.peer = peer;
+        }
+
+        boolean offer(ByteBuffer frame) {
+            if (connected && queue.offer(frame)) return true;
+            dropped.increment();
+            return false;
+        }
+
+        void run() {
+            while (running) {
+                try (Socket connection = new Socket()) {
+                    connection.connect(new InetSocketAddress(peer.host(), peer.port()), CONNECT_TIMEOUT);
+                    connection.setTcpNoDelay(true);
+                    socket = connection;
+                    connectTo(connection, peer);
+                    OutputStream out = new BufferedOutputStream(connection.getOutputStream(), ServerConfig.WRITE_BUFFER_SIZE);
+                    connected();
+                    logger.info("Connected to node " + peer.id() + " at " + peer.host() + ":" + peer.port());
+                    writeLoop(out);
+                } catch (IOException e) {
+                    if (connected) logger.warning("Lost link to node " + peer.id() + ": " + e.getMessage());
+                } catch (InterruptedException e) {
+                    return;
+                } finally {
+                    connected = false;
+                    queue.clear();
+                }
+
+                try {
+                    TimeUnit.MILLISECONDS.sleep(ServerConfig.CLUSTER_RETRY);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+
+        // The peer must hear who is here before anything else
+        private void connected() {
+            lock.lock();
+            try {
+                queue.clear();
+                List<String> users = new ArrayList<>(localUsers);
+                int first = Math.min(users.size(), USERS_PER_FRAME);
+                queue.add(encode(USERS, usersMessage(PresenceUpdate.snapshot(0, users.subList(0, first)))));
+                for (int i = first; i < users.size(); i += USERS_PER_FRAME) {
+                    List<String> more = users.subList(i, Math.min(users.size(), i + USERS_PER_FRAME));
+                    queue.add(encode(USERS, usersMessage(PresenceUpdate.delta(0, 0, more, List.of()))));
+                }
+                connected = true;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        // Writes whatever has queued up since the last flush, then flushes once
+        private void writeLoop(OutputStream out) throws IOException, InterruptedException {
+            while (running) {
+                ByteBuffer frame = queue.take();
+                int batched = 0;
+                do {
+                    out.write(frame.array(), frame.arrayOffset(), frame.limit());
+                    batched += frame.limit();
+                    sent.increment();
+                } while (batched < ServerConfig.WRITE_BATCH_BYTES && (frame = queue.poll()) != null);
+                out.flush();
+            }
+        }
+
+        void close() {
+            Socket current = socket;
+            if (current != null) closeQuietly(current);
+        }
+    }
+}
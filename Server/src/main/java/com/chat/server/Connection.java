@@ -0,0 +1,36 @@
+package com.chat.server;
+
+import java.io.IOException;
+
+/**
+ * Transport underneath a {@link ClientHandler}. The blocking server writes straight to the
+ * socket, the NIO server queues frames on the connection's event loop.
+ */
+interface Connection {
+    /**
+     * Takes over one reference to the frame and releases it once written or dropped.
+     */
+    void send(Frame frame) throws IOException;
+
+    /**
+     * Closes once the frames queued so far (e.g. a final error message) have been written.
+     */
+    void close();
+
+    OutboundQueue outbound();
+
+    /**
+     * Runs a task where this connection's messages are handled: right away in blocking mode,
+     * on the connection's event loop in NIO mode.
+     */
+    default void execute(Runnable task) {
+        task.run();
+    }
+
+    String remoteAddress();
+
+    /**
+     * The client's IP address alone, which connections share a {@link SendBudget} by.
+     */
+    String remoteHost();
+}
@@ -0,0 +1,137 @@
+package com.chat.server;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.net.ssl.SSLEngine;
+
+/**
+ * One selector thread serving many {@link NioConnection}s. All channel I/O and all
+ * message handling for a connection happens on the loop that owns it; other threads
+ * hand work over through {@link #execute(Runnable)}.
+ */
+class EventLoop implements Runnable {
+    private static final Logger logger = Logger.getLogger(EventLoop.class.getName());
+    private static final long SELECT_TIMEOUT = 1000;
+
+    private final Selector selector;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final Thread thread;
+    private volatile boolean running = true;
+
+    EventLoop(String name) throws IOException {
+        this.selector = Selector.open();
+        this.thread = new Thread(this, name);
+    }
+
+    void start() {
+        thread.start();
+    }
+
+    boolean inEventLoop() {
+        return Thread.currentThread() == thread;
+    }
+
+    void execute(Runnable task) {
+        tasks.add(task);
+        if (!inEventLoop()) {
+            selector.wakeup();
+        }
+    }
+
+    /**
+     * @param engine the TLS engine for the channel, or null for plain text
+     */
+    void register(SocketChannel channel, ClientRegistry clients, SSLEngine engine) {
+        execute(() -> {
+            try {
+                channel.configureBlocking(false);
+                NioConnection connection = new NioConnection(channel, this, clients, engine);
+                connection.attach(channel.register(selector, SelectionKey.OP_READ, connection));
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Failed to register channel", e);
+                try {
+                    channel.close();
+                } catch (IOException ignored) {
+                    // Channel is unusable either way
+                }
+            }
+        });
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            try {
+                // Tasks queued from this thread (e.g. flushes) did not wake the selector
+                if (tasks.isEmpty()) {
+                    selector.select(SELECT_TIMEOUT);
+                } else {
+                    selector.selectNow();
+                }
+                runTasks();
+                processSelectedKeys();
+            } catch (IOException e) {
+                logger.log(Level.SEVERE, "Event loop error", e);
+            }
+        }
+        closeAll();
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                logger.log(Level.SEVERE, "Event loop task failed", e);
+            }
+        }
+    }
+
+    private void processSelectedKeys() {
+        Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+        while (it.hasNext()) {
+            SelectionKey key = it.next();
+            it.remove();
+            NioConnection connection = (NioConnection) key.attachment();
+            try {
+                if (key.isReadable()) {
+                    connection.onReadable();
+                }
+                if (key.isValid() && key.isWritable()) {
+                    connection.onWritable();
+                }
+            } catch (CancelledKeyException e) {
+                connection.closeNow();
+            } catch (RuntimeException e) {
+                // A failing handler must not take the whole loop (and its other clients) down
+                logger.log(Level.SEVERE, "Error handling " + connection.remoteAddress(), e);
+                connection.closeNow();
+            }
+        }
+    }
+
+    private void closeAll() {
+        for (SelectionKey key : selector.keys()) {
+            ((NioConnection) key.attachment()).closeNow();
+        }
+        try {
+            selector.close();
+        } catch (IOException e) {
+            logger.log(Level.FINE, "Error closing selector", e);
+        }
+    }
+
+    void shutdown() {
+        running = false;
+        selector.wakeup();
+    }
+}
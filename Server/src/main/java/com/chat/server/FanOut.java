@@ -0,0 +1,47 @@
+package com.chat.server;
+
+import com.chat.shared.ChatMessage;
+import com.chat.shared.WireFormat;
+import java.io.IOException;
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * Delivery of one message to many connections. The message is encoded at most once per
+ * wire format in use, and every recipient gets the same {@link Frame}.
+ */
+final class FanOut {
+    private final ChatMessage message;
+    private final Map<WireFormat, Frame> frames = new EnumMap<>(WireFormat.class);
+    private long encodeNanos;
+    private long encodedBytes;
+    private long queuedBytes;
+    private int recipients;
+
+    FanOut(ChatMessage message) {
+        this.message = message;
+    }
+
+    void send(ClientHandler client) throws IOException {
+        Frame frame = frames.get(client.getWireFormat());
+        if (frame == null) {
+            long start = System.nanoTime();
+            frame = Frame.encode(message, client.getWireFormat());
+            encodeNanos += System.nanoTime() - start;
+            encodedBytes += frame.length();
+            frames.put(client.getWireFormat(), frame);
+        }
+
+        client.sendFrame(frame);
+        recipients++;
+        queuedBytes += frame.length();
+    }
+
+    /**
+     * Drops this fan-out's own reference to the frames and records its cost.
+     */
+    void complete() {
+        frames.values().forEach(Frame::release);
+        FanOutMetrics.record(encodeNanos, encodedBytes, queuedBytes, recipients);
+    }
+}
@@ -0,0 +1,37 @@
+package com.chat.server;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Running totals for message fan-out: how long encoding takes and how many bytes each
+ * delivery produces versus how many it queues to sockets.
+ */
+final class FanOutMetrics {
+    private static final LongAdder fanOuts = new LongAdder();
+    private static final LongAdder recipients = new LongAdder();
+    private static final LongAdder encodeNanos = new LongAdder();
+    private static final LongAdder encodedBytes = new LongAdder();
+    private static final LongAdder queuedBytes = new LongAdder();
+
+    private FanOutMetrics() {
+    }
+
+    static void record(long encodeTime, long encoded, long queued, int recipientCount) {
+        fanOuts.increment();
+        recipients.add(recipientCount);
+        encodeNanos.add(encodeTime);
+        encodedBytes.add(encoded);
+        queuedBytes.add(queued);
+    }
+
+    static String summary() {
+        long count = Math.max(1, fanOuts.sum());
+        return String.format("fan-outs=%d recipients/fan-out=%.1f encode=%.1fus/fan-out "
+                        + "encoded=%d B/fan-out queued=%d B/fan-out",
+                fanOuts.sum(),
+                recipients.sum() / (double) count,
+                encodeNanos.sum() / 1000.0 / count,
+                encodedBytes.sum() / count,
+                queuedBytes.sum() / count);
+    }
+}
@@ -0,0 +1,457 @@
+package com.chat.server;
+
+import com.chat.shared.ChatMessage;
+import com.chat.shared.FrameCodec;
+import com.chat.shared.MessageType;
+import com.chat.shared.TransferProtocol;
+import com.chat.shared.WireFormat;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Moves files between clients through the {@link BlobStore} (see {@link TransferProtocol}).
+ * A file is uploaded once, however many recipients it has, and not at all if its sender has
+ * stored the same content before; only its recipients may download it, when they ask for it.
+ * Uploads count against the store's quota from the offer on. Both directions resume from
+ * the last acknowledged offset after a dropped connection, and neither ever holds more than
+ * a window of chunks in memory.
+ */
+final class FileRelay {
+    private static final Logger logger = Logger.getLogger(FileRelay.class.getName());
+    // Paused uploads nobody came back for are dropped after this long
+    private static final long UPLOAD_TTL = TimeUnit.HOURS.toMillis(1);
+    private static final long MAP_REGION = 64L * 1024 * 1024;
+
+    private final ClientRegistry clients;
+    private final BlobStore store;
+    private final ConcurrentHashMap<String, Upload> uploads = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<DownloadKey, Download> downloads = new ConcurrentHashMap<>();
+
+    // Fields other than hash are guarded by lock
+    private static final class Upload {
+        final String hash;
+        final ReentrantLock lock = new ReentrantLock();
+        FileChannel channel;
+        MessageDigest digest;
+        ChatMessage header;
+        ClientHandler owner; // null while paused
+        String uploader; // whose bytes are in the part file
+        long size;
+        long reserved; // room set aside in the store
+        long length;
+        long lastActive;
+
+        Upload(String hash) {
+            this.hash = hash;
+        }
+    }
+
+    private record DownloadKey(ClientHandler client, String hash) {
+    }
+
+    // Only touched by the downloading client's own reader thread
+    private static final class Download {
+        final DownloadKey key;
+        final FileChannel channel;
+        final long size;
+        long sent;
+        MappedByteBuffer region;
+        long regionStart;
+        // Chunk frames still queued may read the channel, so it closes after the last of them
+        private final AtomicInteger channelUsers = new AtomicInteger(1);
+        private final AtomicBoolean closed = new AtomicBoolean();
+
+        Download(DownloadKey key, FileChannel channel, long size, long offset) {
+            this.key = key;
+            this.channel = channel;
+            this.size = size;
+            this.sent = offset;
+        }
+
+        void useChannel() {
+            channelUsers.incrementAndGet();
+        }
+
+        void releaseChannel() {
+            if (channelUsers.decrementAndGet() == 0) closeQuietly(channel);
+        }
+
+        void close() {
+            if (closed.compareAndSet(false, true)) releaseChannel();
+        }
+    }
+
+    FileRelay(ClientRegistry clients, BlobStore store) {
+        this.clients = clients;
+        this.store = store;
+    }
+
+    // --- uploads -----------------------------------------------------------------------------
+
+    /**
+     * Handles an upload offer and tells the sender where to resume.
+     */
+    void offer(ClientHandler sender, ChatMessage header) {
+        String hash = header.getTransferId();
+        if (!TransferProtocol.isHash(hash) || header.getFileSize() < 0 || header.getFilename() == null) {
+            sender.sendError("Invalid file transfer");
+            return;
+        }
+        ClientHandler recipient = header.getRecipient() != null ? clients.get(header.getRecipient()) : null;
+        if (recipient != null && !canReceive(recipient)) {
+            sender.sendError(header.getRecipient() + " cannot receive files");
+            return;
+        }
+        if (recipient == null && onAnotherNode(header.getRecipient())) {
+            sender.sendError(header.getRecipient() + " is on another server and cannot receive files from this one");
+            return;
+        }
+
+        if (store.hasCopy(hash, header.getFileSize(), sender.getUsername())) {
+            logger.fine(sender.getUsername() + " sent stored file " + hash);
+            acknowledge(sender, hash, header.getFileSize());
+            announce(sender, header);
+            return;
+        }
+
+        expireUploads();
+        Upload upload;
+        while (true) {
+            upload = uploads.computeIfAbsent(hash, Upload::new);
+            upload.lock.lock();
+            if (uploads.get(hash) == upload) break;
+            upload.lock.unlock(); // finished or discarded meanwhile
+        }
+
+        long resumeAt;
+        try {
+            if (upload.owner != null && upload.owner != sender) {
+                sender.sendError(header.getFilename() + " is already being uploaded");
+                return;
+            }
+            // Someone else's paused upload starts over: finishing it would prove nothing
+            if (upload.channel == null || upload.size != header.getFileSize()
+                    || !sender.getUsername().equals(upload.uploader)) {
+                closeQuietly(upload.channel);
+                upload.channel = null;
+                store.release(upload.reserved);
+                upload.reserved = 0;
+                if (!store.reserve(header.getFileSize())) {
+                    sender.sendError("Server has no room for " + header.getFilename());
+                    discard(upload);
+                    return;
+                }
+                upload.reserved = header.getFileSize();
+                upload.uploader = sender.getUsername();
+                upload.channel = store.createPart(hash);
+                upload.digest = TransferProtocol.newDigest();
+                upload.size = header.getFileSize();
+                upload.length = 0;
+            }
+            upload.owner = sender;
+            upload.header = header;
+            upload.lastActive = System.currentTimeMillis();
+            resumeAt = upload.length;
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Cannot store upload " + hash, e);
+            sender.sendError("Server cannot store " + header.getFilename());
+            discard(upload);
+            return;
+        } finally {
+            upload.lock.unlock();
+        }
+
+        logger.fine(sender.getUsername() + " uploads " + hash + " from " + resumeAt);
+        acknowledge(sender, hash, resumeAt);
+    }
+
+    void chunk(ClientHandler sender, ChatMessage chunk) {
+        Upload upload = uploads.get(chunk.getTransferId());
+        if (upload == null) return;
+
+        long stored;
+        upload.lock.lock();
+        try {
+            if (upload.owner != sender) return;
+
+            byte[] data = chunk.getData();
+            int length = data != null ? data.length : 0;
+            if (chunk.getOffset() != upload.length || length > TransferProtocol.CHUNK_SIZE
+                    || upload.length + length > upload.size) {
+                sender.sendError("Out of sequence chunk for " + upload.header.getFilename());
+                upload.owner = null;
+                return;
+            }
+
+            ByteBuffer buffer = ByteBuffer.wrap(data != null ? data : new byte[0]);
+            while (buffer.hasRemaining()) {
+                upload.channel.write(buffer, upload.length + buffer.position());
+            }
+            upload.digest.update(buffer.flip());
+            upload.length += length;
+            upload.lastActive = System.currentTimeMillis();
+            stored = upload.length;
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Cannot write upload " + upload.hash, e);
+            sender.sendError("Server cannot store " + upload.header.getFilename());
+            discard(upload);
+            return;
+        } finally {
+            upload.lock.unlock();
+        }
+
+        acknowledge(sender, upload.hash, stored);
+    }
+
+    void end(ClientHandler sender, ChatMessage end) {
+        Upload upload = uploads.get(end.getTransferId());
+        if (upload == null) return;
+
+        ChatMessage header;
+        upload.lock.lock();
+        try {
+            if (upload.owner != sender) return;
+            upload.owner = null;
+            if (TransferProtocol.CANCELLED.equals(end.getText())) return; // paused, may resume later
+
+            if (upload.length != upload.size) {
+                sender.sendError(upload.header.getFilename() + " is incomplete");
+                return;
+            }
+            header = upload.header;
+            uploads.remove(upload.hash, upload);
+            upload.channel.close();
+            upload.channel = null;
+            if (!TransferProtocol.toHex(upload.digest).equals(upload.hash)) {
+                sender.sendError(header.getFilename() + " was corrupted in transit");
+                discard(upload);
+                return;
+            }
+            store.commit(upload.hash, upload.reserved, sender.getUsername());
+            upload.reserved = 0;
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Cannot store upload " + upload.hash, e);
+            sender.sendError("Server cannot store " + upload.header.getFilename());
+            discard(upload);
+            return;
+        } finally {
+            upload.lock.unlock();
+        }
+
+        logger.fine(sender.getUsername() + " uploaded " + upload.hash);
+        announce(sender, header);
+    }
+
+    private void acknowledge(ClientHandler client, String hash, long offset) {
+        ChatMessage ack = new ChatMessage(MessageType.FILE_ACK, "Server");
+        ack.setTransferId(hash);
+        ack.setOffset(offset);
+        client.sendMessage(ack);
+    }
+
+    /**
+     * Lets the recipients download a file and tells them it is ready.
+     */
+    private void announce(ClientHandler sender, ChatMessage header) {
+        store.share(header.getTransferId(), header.getRecipient());
+        ServerMain.history().append(header);
+        FanOut fanOut = new FanOut(header);
+        try {
+            if (header.getRecipient() != null) {
+                ClientHandler recipient = clients.get(header.getRecipient());
+                if (recipient == null && onAnotherNode(header.getRecipient())) {
+                    // Moved there during the upload: the file is only here, so an inbox here would misfile it
+                    sender.sendError(header.getRecipient() + " is on another server and cannot receive files from this one");
+                } else if (recipient == null) {
+                    ServerMain.keepOffline(header, header.getRecipient());
+                } else if (canReceive(recipient)) {
+                    fanOut.send(recipient);
+                }
+            } else {
+                for (ClientHandler client : clients.snapshot()) {
+                    if (client != sender && canReceive(client)) fanOut.send(client);
+                }
+            }
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Cannot encode file notice " + header.getTransferId(), e);
+        } finally {
+            fanOut.complete();
+        }
+    }
+
+    // Blobs are kept on the node they were uploaded to, so file notices are not forwarded
+    private static boolean onAnotherNode(String username) {
+        return username != null && ServerMain.cluster().nodeOf(username) != null;
+    }
+
+    // Clients on the legacy protocol don't know about chunks
+    static boolean canReceive(ClientHandler client) {
+        return client != null && client.getWireFormat().isBinary();
+    }
+
+    private void expireUploads() {
+        long cutoff = System.currentTimeMillis() - UPLOAD_TTL;
+        for (Upload upload : uploads.values()) {
+            if (upload.owner == null && upload.lastActive < cutoff && upload.lock.tryLock()) {
+                try {
+                    if (upload.owner == null && upload.lastActive < cutoff) discard(upload);
+                } finally {
+                    upload.lock.unlock();
+                }
+            }
+        }
+    }
+
+    private void discard(Upload upload) {
+        uploads.remove(upload.hash, upload);
+        closeQuietly(upload.channel);
+        upload.channel = null;
+        store.deletePart(upload.hash);
+        store.release(upload.reserved);
+        upload.reserved = 0;
+    }
+
+    // --- downloads ---------------------------------------------------------------------------
+
+    void request(ClientHandler client, ChatMessage request) {
+        String hash = request.getTransferId();
+        if (!TransferProtocol.isHash(hash) || !canReceive(client)) return;
+        if (!store.readable(hash, client.getUsername())) {
+            // Answered as if not stored, so hashes cannot be probed
+            logger.fine(client.getUsername() + " may not download " + hash);
+            finish(client, hash, TransferProtocol.CANCELLED);
+            return;
+        }
+
+        DownloadKey key = new DownloadKey(client, hash);
+        Download previous = downloads.remove(key);
+        if (previous != null) previous.close();
+
+        FileChannel channel = null;
+        Download download = null;
+        try {
+            channel = store.open(hash);
+            long size = channel != null ? channel.size() : -1;
+            if (channel == null || request.getOffset() < 0 || request.getOffset() > size) {
+                closeQuietly(channel);
+                finish(client, hash, TransferProtocol.CANCELLED);
+                return;
+            }
+
+            download = new Download(key, channel, size, request.getOffset());
+            downloads.put(key, download);
+            pump(download, TransferProtocol.WINDOW);
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Cannot read stored file " + hash, e);
+            if (download != null) {
+                downloads.remove(key, download);
+                download.close();
+            } else {
+                closeQuietly(channel);
+            }
+            finish(client, hash, TransferProtocol.CANCELLED);
+        }
+    }
+
+    void acknowledged(ClientHandler client, ChatMessage ack) {
+        Download download = downloads.get(new DownloadKey(client, ack.getTransferId()));
+        if (download == null) return;
+        try {
+            pump(download, 1);
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Cannot read stored file " + download.key.hash(), e);
+            downloads.remove(download.key, download);
+            download.close();
+            finish(client, download.key.hash(), TransferProtocol.CANCELLED);
+        }
+    }
+
+    /**
+     * Sends up to {@code chunks} more chunks straight from a mapped region of the blob. The
+     * frames also carry the blob's channel, so a blocking connection can send the payload
+     * with {@link FileChannel#transferTo} instead.
+     */
+    private void pump(Download download, int chunks) throws IOException {
+        ClientHandler client = download.key.client();
+        for (int i = 0; i < chunks && download.sent < download.size; i++) {
+            long end = download.regionStart + (download.region != null ? download.region.capacity() : 0);
+            if (download.region == null || download.sent >= end) {
+                download.regionStart = download.sent;
+                download.region = download.channel.map(FileChannel.MapMode.READ_ONLY, download.sent,
+                        Math.min(MAP_REGION, download.size - download.sent));
+            }
+
+            int length = (int) Math.min(TransferProtocol.CHUNK_SIZE,
+                    download.regionStart + download.region.capacity() - download.sent);
+            ChatMessage chunk = new ChatMessage(MessageType.FILE_CHUNK, "Server");
+            chunk.setTransferId(download.key.hash());
+            chunk.setOffset(download.sent);
+            ByteBuffer payload = download.region.slice((int) (download.sent - download.regionStart), length);
+
+            download.useChannel();
+            Frame frame = new Frame(new ByteBuffer[]{FrameCodec.encodeHeader(chunk, length), payload},
+                    download.channel, download.sent, download::releaseChannel);
+            try {
+                client.sendFrame(frame);
+            } finally {
+                frame.release();
+            }
+            download.sent += length;
+        }
+
+        if (download.sent == download.size && downloads.remove(download.key, download)) {
+            download.close();
+            finish(client, download.key.hash(), null);
+        }
+    }
+
+    private void finish(ClientHandler client, String hash, String status) {
+        ChatMessage end = new ChatMessage(MessageType.FILE_END, "Server");
+        end.setTransferId(hash);
+        end.setText(status);
+        client.sendMessage(end);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Pauses the client's uploads so it can resume them, and drops its downloads.
+     */
+    void clientGone(ClientHandler client) {
+        for (Upload upload : uploads.values()) {
+            upload.lock.lock();
+            try {
+                if (upload.owner == client) {
+                    upload.owner = null;
+                    upload.lastActive = System.currentTimeMillis();
+                }
+            } finally {
+                upload.lock.unlock();
+            }
+        }
+        downloads.values().removeIf(download -> {
+            if (download.key.client() != client) return false;
+            download.close();
+            return true;
+        });
+    }
+
+    private static void closeQuietly(FileChannel channel) {
+        if (channel == null) return;
+        try {
+            channel.close();
+        } catch (IOException e) {
+            logger.log(Level.FINE, "Error closing file", e);
+        }
+    }
+}
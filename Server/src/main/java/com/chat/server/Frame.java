@@ -0,0 +1,157 @@
+package com.chat.server;
+
+import com.chat.shared.ChatMessage;
+import com.chat.shared.FrameCodec;
+import com.chat.shared.WireFormat;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An encoded frame shared by every connection it is sent to; its buffers are never modified
+ * after encoding. Each writer takes its own {@link #segments()} view. The frame is reference
+ * counted so whatever backs it can be released once the last writer is done. A frame whose
+ * payload comes from a file also knows where in the file it is, for writers that can send it
+ * from there.
+ */
+final class Frame {
+    private final ByteBuffer[] segments;
+    private final long length;
+    private final boolean presence;
+    private final Runnable onRelease;
+    private final FileChannel file; // holds the last segment's bytes from filePosition on, or null
+    private final long filePosition;
+    private final AtomicInteger refCnt = new AtomicInteger(1);
+
+    Frame(ByteBuffer[] segments, boolean presence, Runnable onRelease) {
+        this(segments, presence, onRelease, null, 0);
+    }
+
+    /**
+     * A frame whose last segment is also the bytes of {@code file} at {@code filePosition};
+     * the file must stay open until the frame is released.
+     */
+    Frame(ByteBuffer[] segments, FileChannel file, long filePosition, Runnable onRelease) {
+        this(segments, false, onRelease, file, filePosition);
+    }
+
+    private Frame(ByteBuffer[] segments, boolean presence, Runnable onRelease, FileChannel file, long filePosition) {
+        this.segments = segments;
+        this.presence = presence;
+        this.onRelease = onRelease;
+        this.file = file;
+        this.filePosition = filePosition;
+        long total = 0;
+        for (ByteBuffer segment : segments) {
+            total += segment.remaining();
+        }
+        this.length = total;
+    }
+
+    static Frame encode(ChatMessage message, WireFormat format) throws IOException {
+        return new Frame(FrameCodec.encodeSegments(message, format), ServerMain.isPresenceUpdate(message), null);
+    }
+
+    /**
+     * Several messages back to back as one frame, queued and written with a single call.
+     */
+    static Frame encodeAll(List<ChatMessage> messages, WireFormat format) throws IOException {
+        List<ByteBuffer> segments = new ArrayList<>(messages.size());
+        for (ChatMessage message : messages) {
+            segments.addAll(Arrays.asList(FrameCodec.encodeSegments(message, format)));
+        }
+        return new Frame(segments.toArray(new ByteBuffer[0]), false, null);
+    }
+
+    long length() {
+        return length;
+    }
+
+    /**
+     * Presence updates are superseded by the next one, so they are the first to go under backpressure.
+     */
+    boolean isPresence() {
+        return presence;
+    }
+
+    /**
+     * Fresh views of the frame's buffers, with positions independent of other writers.
+     */
+    ByteBuffer[] segments() {
+        ByteBuffer[] views = new ByteBuffer[segments.length];
+        for (int i = 0; i < segments.length; i++) {
+            views[i] = segments[i].duplicate();
+        }
+        return views;
+    }
+
+    void writeTo(OutputStream out) throws IOException {
+        byte[] chunk = null;
+        for (ByteBuffer segment : segments()) {
+            chunk = write(out, segment, chunk);
+        }
+    }
+
+    boolean isFileBacked() {
+        return file != null;
+    }
+
+    /**
+     * Writes a {@link #isFileBacked file-backed} frame to a socket: the segments before the
+     * payload through {@code out}, which is flushed, then the payload from the file straight
+     * to the socket, never entering the heap.
+     */
+    void transferTo(OutputStream out, WritableByteChannel socket) throws IOException {
+        ByteBuffer[] views = segments();
+        byte[] chunk = null;
+        for (int i = 0; i < views.length - 1; i++) {
+            chunk = write(out, views[i], chunk);
+        }
+        out.flush();
+
+        long position = filePosition;
+        long end = filePosition + views[views.length - 1].remaining();
+        while (position < end) {
+            long n = file.transferTo(position, end - position, socket);
+            if (n <= 0) throw new EOFException("Stored file truncated while sending");
+            WriteMetrics.recordWrite();
+            position += n;
+        }
+    }
+
+    // Returns the copy buffer, allocated the first time a direct segment needs one
+    private static byte[] write(OutputStream out, ByteBuffer segment, byte[] chunk) throws IOException {
+        if (segment.hasArray()) {
+            out.write(segment.array(), segment.arrayOffset() + segment.position(), segment.remaining());
+            return chunk;
+        }
+        if (chunk == null) chunk = new byte[8192];
+        while (segment.hasRemaining()) {
+            int n = Math.min(chunk.length, segment.remaining());
+            segment.get(chunk, 0, n);
+            out.write(chunk, 0, n);
+        }
+        return chunk;
+    }
+
+    Frame retain() {
+        refCnt.incrementAndGet();
+        return this;
+    }
+
+    void release() {
+        int remaining = refCnt.decrementAndGet();
+        if (remaining == 0 && onRelease != null) {
+            onRelease.run();
+        } else if (remaining < 0) {
+            throw new IllegalStateException("Frame released too often");
+        }
+    }
+}
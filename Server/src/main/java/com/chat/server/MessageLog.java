@@ -0,0 +1,445 @@
+package com.chat.server;
+
+import com.chat.shared.BinaryCodec;
+import com.chat.shared.ChatMessage;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32C;
+
+/**
+ * Append-only log of chat messages, kept as segment files named after the sequence number of
+ * their first record. Records are appended sequentially and read back through memory maps,
+ * one per segment: the active segment is preallocated and mapped at its full size up front, so
+ * appends never force a new map, and readers decode outside the lock appends take. A sparse
+ * in-memory index (every {@link #INDEX_INTERVAL} bytes) finds a sequence number or a timestamp
+ * without scanning a whole segment. The active segment is fsynced in batches, at most once
+ * per configured interval, so a crash loses at most that interval.
+ *
+ * <pre>
+ * int     body length
+ * int     CRC32C of sequence, timestamp and body
+ * long    sequence
+ * long    timestamp
+ * bytes   body  (BinaryCodec, without file data)
+ * </pre>
+ */
+final class MessageLog {
+    private static final Logger logger = Logger.getLogger(MessageLog.class.getName());
+    private static final int RECORD_HEADER = 4 + 4 + 8 + 8;
+    private static final int INDEX_INTERVAL = 4096;
+    private static final String SUFFIX = ".log";
+
+    private final Path directory;
+    private final int segmentBytes;
+    private final long fsyncInterval;
+    private final long retention;
+    private final long maxBytes;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final List<Segment> segments = new ArrayList<>();
+    private final ScheduledExecutorService syncer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "message-log");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private Segment active;
+    private long nextSequence = 1;
+    private boolean dirty;
+
+    /** A record read back from the log. */
+    record Entry(long sequence, long timestamp, ChatMessage message) {
+    }
+
+    private static final class Segment {
+        final Path path;
+        final long baseSequence;
+        long size;
+        long capacity; // of the map
+        long lastSequence;
+        long lastTimestamp;
+        FileChannel channel; // open for writing while active
+        MappedByteBuffer map; // only read below size, which may grow but never shrinks
+        // Sparse index: sequence, timestamp and position of every record starting a new interval
+        long[] indexSequence = new long[16];
+        long[] indexTimestamp = new long[16];
+        int[] indexPosition = new int[16];
+        int indexSize;
+
+        Segment(Path path, long baseSequence) {
+            this.path = path;
+            this.baseSequence = baseSequence;
+            this.lastSequence = baseSequence - 1;
+        }
+
+        void indexRecord(long sequence, long timestamp, int position) {
+            if (indexSize > 0 && position - indexPosition[indexSize - 1] < INDEX_INTERVAL) return;
+            if (indexSize == indexSequence.length) {
+                indexSequence = Arrays.copyOf(indexSequence, indexSize * 2);
+                indexTimestamp = Arrays.copyOf(indexTimestamp, indexSize * 2);
+                indexPosition = Arrays.copyOf(indexPosition, indexSize * 2);
+            }
+            indexSequence[indexSize] = sequence;
+            indexTimestamp[indexSize] = timestamp;
+            indexPosition[indexSize] = position;
+            indexSize++;
+        }
+
+        /**
+         * Position of the last indexed record at or before the sequence number.
+         */
+        int positionOf(long sequence) {
+            int i = Arrays.binarySearch(indexSequence, 0, indexSize, sequence);
+            if (i < 0) i = Math.max(0, -i - 2);
+            return indexSize > 0 ? indexPosition[i] : 0;
+        }
+
+        /**
+         * A sequence number at or before the first record at or after the timestamp.
+         */
+        long sequenceBefore(long timestamp) {
+            // Timestamps are not strictly ordered across senders, so stay one entry early
+            int i = 0;
+            while (i + 1 < indexSize && indexTimestamp[i + 1] < timestamp) i++;
+            return indexSize > 0 ? indexSequence[i] : baseSequence;
+        }
+
+        /**
+         * A read-only map covering at least everything written so far.
+         */
+        MappedByteBuffer map() throws IOException {
+            if (map == null) {
+                if (channel != null) {
+                    map = channel.map(FileChannel.MapMode.READ_ONLY, 0, capacity); // extends the file
+                } else {
+                    try (FileChannel reader = FileChannel.open(path, StandardOpenOption.READ)) {
+                        map = reader.map(FileChannel.MapMode.READ_ONLY, 0, size);
+                    }
+                    capacity = size;
+                }
+            }
+            return map;
+        }
+
+        /**
+         * Opens the segment for appends after {@code size}, mapped at {@code capacity} bytes.
+         */
+        void activate(long capacity, StandardOpenOption... options) throws IOException {
+            this.capacity = Math.max(capacity, size);
+            List<StandardOpenOption> all = new ArrayList<>(List.of(StandardOpenOption.READ, StandardOpenOption.WRITE));
+            all.addAll(List.of(options));
+            channel = FileChannel.open(path, all.toArray(new StandardOpenOption[0]));
+            map = null;
+            map();
+        }
+
+        /**
+         * Closes a full segment, cutting off the space preallocated and never written.
+         */
+        void seal() throws IOException {
+            channel.force(false);
+            channel.truncate(size);
+            channel.close();
+            channel = null;
+        }
+    }
+
+    MessageLog(Path directory, int segmentBytes, long fsyncInterval, long retention, long maxBytes) {
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        this.fsyncInterval = fsyncInterval;
+        this.retention = retention;
+        this.maxBytes = maxBytes;
+        try {
+            recover();
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, "Cannot open message log " + directory + ", history is disabled", e);
+            active = null;
+        }
+        if (fsyncInterval > 0) {
+            syncer.scheduleWithFixedDelay(this::sync, fsyncInterval, fsyncInterval, TimeUnit.MILLISECONDS);
+        }
+        syncer.scheduleWithFixedDelay(this::enforceRetention, 1, 1, TimeUnit.HOURS);
+    }
+
+    static MessageLog fromConfig() {
+        return new MessageLog(ServerConfig.LOG_DIR, ServerConfig.LOG_SEGMENT_BYTES, ServerConfig.LOG_FSYNC_INTERVAL,
+                ServerConfig.LOG_RETENTION, ServerConfig.LOG_MAX_BYTES);
+    }
+
+    private void recover() throws IOException {
+        Files.createDirectories(directory);
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(directory, "*" + SUFFIX)) {
+            entries.forEach(files::add);
+        }
+        files.sort(Comparator.comparing(path -> path.getFileName().toString()));
+
+        for (Path file : files) {
+            String name = file.getFileName().toString();
+            Segment segment = new Segment(file, Long.parseLong(name.substring(0, name.length() - SUFFIX.length())));
+            segment.size = Files.size(file);
+            long valid = scan(segment);
+            if (valid < segment.size) {
+                // Preallocated space past the last record, or a torn write from a crash: keep what is intact
+                if (!zeroFrom(segment.map(), valid)) {
+                    logger.warning("Truncating " + file + " from " + segment.size + " to " + valid + " bytes");
+                }
+                try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+                    channel.truncate(valid);
+                }
+                segment.size = valid;
+                segment.map = null;
+            }
+            segments.add(segment);
+            nextSequence = segment.lastSequence + 1;
+        }
+
+        if (segments.isEmpty()) {
+            roll();
+        } else {
+            active = segments.get(segments.size() - 1);
+            active.activate(segmentBytes);
+        }
+        logger.info("Message log " + directory.toAbsolutePath() + ": " + segments.size() + " segments, next sequence "
+                + nextSequence);
+    }
+
+    /**
+     * Rebuilds a segment's index and returns the length of its intact prefix.
+     */
+    private static long scan(Segment segment) throws IOException {
+        if (segment.size == 0) return 0;
+        MappedByteBuffer map = segment.map();
+        int position = 0;
+        while (position + RECORD_HEADER <= map.limit()) {
+            int length = map.getInt(position);
+            if (length < 0 || position + RECORD_HEADER + length > map.limit()) break;
+            long sequence = map.getLong(position + 8);
+            long timestamp = map.getLong(position + 16);
+            if (map.getInt(position + 4) != checksum(map, position, length)) break;
+
+            segment.indexRecord(sequence, timestamp, position);
+            segment.lastSequence = sequence;
+            segment.lastTimestamp = timestamp;
+            position += RECORD_HEADER + length;
+        }
+        return position;
+    }
+
+    private static boolean zeroFrom(ByteBuffer map, long position) {
+        for (int i = (int) position; i < map.limit(); i++) {
+            if (map.get(i) != 0) return false;
+        }
+        return true;
+    }
+
+    private static int checksum(ByteBuffer record, int position, int bodyLength) {
+        CRC32C crc = new CRC32C();
+        crc.update(record.slice(position + 8, 16 + bodyLength));
+        return (int) crc.getValue();
+    }
+
+    private void roll() throws IOException {
+        if (active != null) {
+            active.seal();
+        }
+        Path path = directory.resolve(String.format("%020d%s", nextSequence, SUFFIX));
+        active = new Segment(path, nextSequence);
+        active.activate(segmentBytes, StandardOpenOption.CREATE_NEW);
+        segments.add(active);
+        enforceRetention();
+    }
+
+    /**
+     * Appends a message and stamps it with its sequence number. File data is not logged.
+     *
+     * @return the sequence number, or 0 if the log is unavailable
+     */
+    long append(ChatMessage message) {
+        lock.lock();
+        try {
+            if (active == null) return 0;
+
+            long sequence = nextSequence;
+            message.setSequence(sequence);
+            byte[] data = message.getData();
+            message.setData(null);
+            ByteBuffer record;
+            try {
+                record = BinaryCodec.encode(message, RECORD_HEADER);
+            } finally {
+                message.setData(data);
+            }
+            int length = record.remaining() - RECORD_HEADER;
+            record.putInt(0, length);
+            record.putLong(8, sequence);
+            record.putLong(16, message.getTimestamp());
+            record.putInt(4, checksum(record, 0, length));
+
+            if (active.size > 0 && active.size + record.remaining() > segmentBytes) {
+                roll();
+            }
+            int position = (int) active.size;
+            if (position + record.remaining() > active.capacity) {
+                // A record larger than a whole segment: the one case that maps again
+                active.capacity = position + record.remaining();
+                active.map = null;
+                active.map();
+            }
+            while (record.hasRemaining()) {
+                active.channel.write(record, position + record.position());
+            }
+            active.size += record.limit();
+            active.indexRecord(sequence, message.getTimestamp(), position);
+            active.lastSequence = sequence;
+            active.lastTimestamp = message.getTimestamp();
+            nextSequence++;
+
+            if (fsyncInterval <= 0) {
+                active.channel.force(false);
+            } else {
+                dirty = true;
+            }
+            return sequence;
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, "Cannot append to message log", e);
+            message.setSequence(0);
+            return 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void sync() {
+        lock.lock();
+        try {
+            if (dirty && active != null) {
+                active.channel.force(false);
+                dirty = false;
+            }
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, "Cannot sync message log", e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * The sequence number the next message will get.
+     */
+    long nextSequence() {
+        lock.lock();
+        try {
+            return nextSequence;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * A sequence number at or shortly before the first message sent at or after the timestamp.
+     */
+    long sequenceSince(long timestamp) {
+        lock.lock();
+        try {
+            for (Segment segment : segments) {
+                if (segment.lastTimestamp >= timestamp) return segment.sequenceBefore(timestamp);
+            }
+            return nextSequence;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Reads up to {@code max} messages starting at sequence number {@code from} (or the oldest
+     * one still kept), stopping before {@code until}. Only finding where to start takes the
+     * lock; records are decoded after it is released, while appends carry on.
+     */
+    List<Entry> read(long from, long until, int max) {
+        List<Range> ranges = new ArrayList<>();
+        lock.lock();
+        try {
+            for (Segment segment : segments) {
+                if (from >= until) break;
+                if (segment.lastSequence < from) continue;
+                ranges.add(new Range(segment.map(), segment.positionOf(from), segment.size));
+            }
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, "Cannot read message log", e);
+            return new ArrayList<>();
+        } finally {
+            lock.unlock();
+        }
+
+        List<Entry> entries = new ArrayList<>();
+        try {
+            for (Range range : ranges) {
+                if (entries.size() >= max) break;
+                MappedByteBuffer map = range.map();
+                int position = range.start();
+                while (position < range.end() && entries.size() < max) {
+                    int length = map.getInt(position);
+                    long sequence = map.getLong(position + 8);
+                    if (sequence >= until) return entries;
+                    if (sequence >= from) {
+                        ChatMessage message = BinaryCodec.decode(map.slice(position + RECORD_HEADER, length));
+                        entries.add(new Entry(sequence, map.getLong(position + 16), message));
+                        from = sequence + 1;
+                    }
+                    position += RECORD_HEADER + length;
+                }
+            }
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, "Cannot read message log", e);
+        }
+        return entries;
+    }
+
+    // Records of one segment as far as they were written when the read began
+    private record Range(MappedByteBuffer map, int start, long end) {
+    }
+
+    /**
+     * Deletes the oldest segments (never the active one) past the retention time or size.
+     */
+    private void enforceRetention() {
+        lock.lock();
+        try {
+            long total = 0;
+            for (Segment segment : segments) total += segment.size;
+            long cutoff = System.currentTimeMillis() - retention;
+
+            while (segments.size() > 1) {
+                Segment oldest = segments.get(0);
+                if (total <= maxBytes && oldest.lastTimestamp >= cutoff) break;
+                try {
+                    Files.deleteIfExists(oldest.path);
+                } catch (IOException e) {
+                    logger.log(Level.WARNING, "Cannot delete " + oldest.path, e);
+                    break;
+                }
+                segments.remove(0);
+                total -= oldest.size;
+                logger.info("Deleted message log segment " + oldest.path.getFileName());
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+}
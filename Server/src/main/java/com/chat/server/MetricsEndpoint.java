@@ -0,0 +1,49 @@
+package com.chat.server;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.function.Function;
+
+/**
+ * Serves {@link ServerMetrics} over HTTP on the loopback interface only: {@code /metrics} as
+ * plain text and {@code /metrics.json} as JSON.
+ */
+final class MetricsEndpoint {
+    private final ClientRegistry clients;
+    private HttpServer server;
+
+    MetricsEndpoint(ClientRegistry clients) {
+        this.clients = clients;
+    }
+
+    void start(int port) throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.createContext("/metrics", exchange -> reply(exchange, "text/plain", ServerMetrics::text));
+        server.createContext("/metrics.json", exchange -> reply(exchange, "application/json", ServerMetrics::json));
+        server.start();
+    }
+
+    void stop() {
+        if (server != null) server.stop(0);
+    }
+
+    private void reply(HttpExchange exchange, String contentType, Function<ClientHandler[], String> render) throws IOException {
+        try (exchange) {
+            if (!"GET".equals(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            byte[] body = render.apply(clients.snapshot()).getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", contentType + "; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        }
+    }
+}
@@ -0,0 +1,300 @@
+package com.chat.server;
+
+import com.chat.shared.FrameCodec;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.net.ssl.SSLEngine;
+
+/**
+ * Non-blocking transport for one client. Reads are reassembled into frames in a
+ * per-connection buffer; writes are queued and drained whenever the socket is writable,
+ * several frames per gathering write. A flush always runs as a loop task, after the loop has
+ * handled everything it read in the current pass, so the frames that pass produces for this
+ * client leave in one write; on an idle loop that is straight away. A frame the client has no
+ * budget for yet stays in the buffer, and the connection is not read again until it has been
+ * handled. With TLS, a {@link TlsChannel} stands between the buffers and the socket.
+ */
+class NioConnection implements Connection {
+    private static final Logger logger = Logger.getLogger(NioConnection.class.getName());
+    private static final int MAX_GATHER = 64;
+
+    private final SocketChannel channel;
+    private final TlsChannel tls; // null in plain text
+    private final EventLoop loop;
+    private final ClientHandler handler;
+    private final String remoteAddress;
+    private final String remoteHost;
+    private final OutboundQueue writeQueue = OutboundQueue.fromConfig();
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+    // Event loop only: frames taken off the queue and the buffers of theirs still to be written
+    private final ArrayDeque<Frame> writing = new ArrayDeque<>();
+    private final ArrayDeque<Long> writingQueuedAt = new ArrayDeque<>();
+    private final ArrayDeque<ByteBuffer> segments = new ArrayDeque<>();
+    private final ByteBuffer[] gather = new ByteBuffer[MAX_GATHER];
+    private long headWritten;
+    private ByteBuffer readBuffer = ByteBuffer.allocate(ServerConfig.READ_BUFFER_SIZE);
+    private SelectionKey key;
+    private boolean paused; // waiting for the client's send budget
+    private volatile boolean closing;
+    private boolean closed;
+
+    /**
+     * @param engine the TLS engine for the connection, or null for plain text
+     */
+    NioConnection(SocketChannel channel, EventLoop loop, ClientRegistry clients, SSLEngine engine) throws IOException {
+        this.channel = channel;
+        this.loop = loop;
+        this.tls = engine != null ? new TlsChannel(channel, engine, loop, this::onHandshakeTasksDone) : null;
+        this.remoteAddress = String.valueOf(channel.getRemoteAddress());
+        this.remoteHost = ((InetSocketAddress) channel.getRemoteAddress()).getAddress().getHostAddress();
+        this.handler = new ClientHandler(this, clients);
+    }
+
+    void attach(SelectionKey key) {
+        this.key = key;
+        handler.startTimers();
+    }
+
+    void onReadable() {
+        if (paused) return;
+        try {
+            int read;
+            do {
+                read = tls != null ? tls.read(readBuffer) : channel.read(readBuffer);
+                if (read < 0) {
+                    logger.info(handler.getUsername() + " disconnected gracefully");
+                    handler.closeConnection();
+                    return;
+                }
+                readFrames();
+                // Decrypted bytes the read buffer had no room for do not make the socket readable
+            } while (tls != null && read > 0 && tls.hasBufferedInput() && !paused && !closing);
+            if (tls != null) {
+                // Handshake replies, and frames that waited for the handshake
+                flush();
+            }
+        } catch (IOException e) {
+            if (!closing) {
+                logger.log(Level.SEVERE, "I/O error with " + handler.getUsername(), e);
+            }
+            handler.closeConnection();
+        }
+    }
+
+    private void readFrames() throws IOException {
+        readBuffer.flip();
+        while (readBuffer.remaining() >= FrameCodec.HEADER_SIZE && !closing) {
+            int length = FrameCodec.readLength(readBuffer.getInt(readBuffer.position()));
+            int frameSize = FrameCodec.HEADER_SIZE + length;
+            if (readBuffer.remaining() < frameSize) {
+                if (readBuffer.capacity() < frameSize) {
+                    ByteBuffer larger = ByteBuffer.allocate(frameSize);
+                    larger.put(readBuffer);
+                    readBuffer = larger;
+                    return;
+                }
+                break;
+            }
+
+            long wait = handler.throttle(frameSize);
+            if (wait > 0) {
+                pauseReading(wait);
+                break;
+            }
+
+            ByteBuffer body = readBuffer.slice(readBuffer.position() + FrameCodec.HEADER_SIZE, length);
+            readBuffer.position(readBuffer.position() + frameSize);
+            handler.handleFrame(body);
+        }
+        readBuffer.compact();
+
+        // Give back the memory of an oversized frame once it has been consumed
+        if (readBuffer.position() == 0 && readBuffer.capacity() > ServerConfig.READ_BUFFER_SIZE) {
+            readBuffer = ByteBuffer.allocate(ServerConfig.READ_BUFFER_SIZE);
+        }
+    }
+
+    private void pauseReading(long nanos) {
+        paused = true;
+        key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+        ServerMain.timers().schedule(() -> loop.execute(this::resumeReading), nanos, TimeUnit.NANOSECONDS);
+    }
+
+    private void resumeReading() {
+        if (closed) return;
+        paused = false;
+        key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+        try {
+            readFrames();
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, "I/O error with " + handler.getUsername(), e);
+            handler.closeConnection();
+            return;
+        }
+        if (tls != null && tls.hasBufferedInput()) {
+            onReadable();
+        }
+    }
+
+    private void onHandshakeTasksDone() {
+        if (closed) return;
+        flush();
+        onReadable();
+    }
+
+    @Override
+    public void send(Frame frame) throws IOException {
+        if (closing) {
+            frame.release();
+            return;
+        }
+        if (!writeQueue.offer(frame)) {
+            throw new IOException("Outbound queue overflow");
+        }
+        scheduleFlush();
+    }
+
+    private void scheduleFlush() {
+        if (flushScheduled.compareAndSet(false, true)) {
+            loop.execute(() -> {
+                flushScheduled.set(false);
+                flush();
+            });
+        }
+    }
+
+    void onWritable() {
+        flush();
+    }
+
+    private void flush() {
+        if (closed || key == null) return;
+        try {
+            if (tls != null && !tls.flush()) {
+                key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                return;
+            }
+            if (tls != null && tls.isHandshaking()) {
+                // Frames wait for the client's next handshake message, not for the socket
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+                if (closing) closeNow();
+                return;
+            }
+            while (true) {
+                Frame next;
+                while (segments.size() < MAX_GATHER && (next = writeQueue.poll()) != null) {
+                    writing.add(next);
+                    writingQueuedAt.add(writeQueue.takenQueuedAt());
+                    segments.addAll(Arrays.asList(next.segments()));
+                }
+                if (segments.isEmpty()) break;
+
+                int count = 0;
+                long requested = 0;
+                for (ByteBuffer segment : segments) {
+                    if (count == MAX_GATHER) break;
+                    gather[count++] = segment;
+                    requested += segment.remaining();
+                }
+                long written = tls != null ? tls.write(gather, 0, count) : channel.write(gather, 0, count);
+                WriteMetrics.recordWrite();
+                Arrays.fill(gather, 0, count, null);
+                releaseWritten(written);
+
+                if (written < requested || (tls != null && tls.hasPendingOutput())) {
+                    // Socket buffer is full, continue when the selector reports it writable
+                    key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                    return;
+                }
+            }
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+            if (closing) {
+                closeNow();
+            }
+        } catch (IOException e) {
+            logger.log(Level.FINE, "Send failed to " + handler.getUsername(), e);
+            // Not just the handler: a reset channel would otherwise stay registered and keep firing
+            closeNow();
+        }
+    }
+
+    /**
+     * Drops the buffers that have been fully written and releases every frame they complete.
+     */
+    private void releaseWritten(long written) {
+        while (!segments.isEmpty() && !segments.peek().hasRemaining()) {
+            segments.poll();
+        }
+        written += headWritten;
+        long now = System.nanoTime();
+        Frame head;
+        while ((head = writing.peek()) != null && written >= head.length()) {
+            written -= head.length();
+            writing.poll().release();
+            WriteMetrics.recordSent(writingQueuedAt.poll(), now);
+        }
+        headWritten = written;
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        loop.execute(task);
+    }
+
+    /**
+     * Closes once the frames queued so far (e.g. a final error message) have been written.
+     */
+    @Override
+    public void close() {
+        closing = true;
+        loop.execute(this::flush);
+    }
+
+    void closeNow() {
+        if (closed) return;
+        closed = true;
+        closing = true;
+        segments.clear();
+        writing.forEach(Frame::release);
+        writing.clear();
+        writingQueuedAt.clear();
+        writeQueue.close();
+        writeQueue.clear();
+        if (key != null) {
+            key.cancel();
+        }
+        if (tls != null) {
+            tls.close();
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            logger.log(Level.FINE, "Error during cleanup", e);
+        }
+        handler.closeConnection();
+    }
+
+    @Override
+    public OutboundQueue outbound() {
+        return writeQueue;
+    }
+
+    @Override
+    public String remoteAddress() {
+        return remoteAddress;
+    }
+
+    @Override
+    public String remoteHost() {
+        return remoteHost;
+    }
+}
@@ -0,0 +1,104 @@
+package com.chat.server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Selector based server: the calling thread accepts connections and hands them round-robin
+ * to a small, fixed set of {@link EventLoop}s instead of parking one thread per client.
+ */
+class NioServer {
+    private static final Logger logger = Logger.getLogger(NioServer.class.getName());
+    // How long to wait before accepting again after accept() failed, e.g. out of file descriptors
+    private static final long ACCEPT_BACKOFF_MS = 100;
+
+    private final int port;
+    private final ClientRegistry clients;
+    private final EventLoop[] loops;
+    private final TlsContext tls;
+
+    /**
+     * @param tls how to secure connections, or null for plain text
+     */
+    NioServer(int port, int loopCount, ClientRegistry clients, TlsContext tls) throws IOException {
+        this.port = port;
+        this.clients = clients;
+        this.tls = tls;
+        this.loops = new EventLoop[loopCount];
+        for (int i = 0; i < loopCount; i++) {
+            loops[i] = new EventLoop("nio-loop-" + i);
+        }
+    }
+
+    void run() throws IOException {
+        for (EventLoop loop : loops) {
+            loop.start();
+        }
+
+        try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+            serverChannel.bind(new InetSocketAddress(port), 1024);
+            logger.info("Chat Server (NIO, " + loops.length + " event loops" + (tls != null ? ", TLS" : "")
+                    + ") is listening on port " + port);
+
+            int next = 0;
+            while (!Thread.currentThread().isInterrupted()) {
+                SocketChannel channel;
+                try {
+                    channel = serverChannel.accept();
+                } catch (ClosedChannelException e) {
+                    throw e;
+                } catch (IOException e) {
+                    logger.log(Level.WARNING, "Cannot accept a connection: " + e.getMessage(), e);
+                    if (!backOff()) break;
+                    continue;
+                }
+
+                // One client resetting straight away must not stop the server
+                try {
+                    logger.fine("New client connected from: " + channel.getRemoteAddress());
+                    channel.socket().setTcpNoDelay(true);
+                } catch (IOException e) {
+                    logger.log(Level.FINE, "Dropping a connection that failed on accept", e);
+                    closeQuietly(channel);
+                    continue;
+                }
+
+                EventLoop loop = loops[next];
+                next = (next + 1) % loops.length;
+                loop.register(channel, clients, tls != null ? tls.newEngine() : null);
+            }
+        } finally {
+            shutdown();
+        }
+    }
+
+    private static boolean backOff() {
+        try {
+            Thread.sleep(ACCEPT_BACKOFF_MS);
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private static void closeQuietly(SocketChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+            // Channel is unusable either way
+        }
+    }
+
+    void shutdown() {
+        for (EventLoop loop : loops) {
+            loop.shutdown();
+        }
+        logger.info("NIO event loops stopped");
+    }
+}
@@ -0,0 +1,488 @@
+package com.chat.server;
+
+import com.chat.shared.BinaryCodec;
+import com.chat.shared.ChatMessage;
+import com.chat.shared.MessageType;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32C;
+
+/**
+ * Private messages and file notices for users who are offline, one append-only file per
+ * user. On login the inbox is emptied in one go and sent as a few large frames of many
+ * messages each rather than one write per message; only what was handed to the connection
+ * leaves the file, so a drain cut short keeps the rest. Inboxes are capped in messages and bytes
+ * (further messages are refused, and the sender told) and entries expire after a while.
+ *
+ * <pre>
+ * int     body length
+ * int     CRC32C of time and body
+ * long    time queued
+ * bytes   body  (BinaryCodec, without file data)
+ * </pre>
+ */
+final class OfflineInbox {
+    private static final Logger logger = Logger.getLogger(OfflineInbox.class.getName());
+    private static final int RECORD_HEADER = 4 + 4 + 8;
+    private static final String SUFFIX = ".inbox";
+    private static final int BATCH_BYTES = 256 * 1024;
+
+    private final Path directory;
+    private final int maxMessages;
+    private final long maxBytes;
+    private final long expiry;
+    private final int batchSize;
+    private final long fsyncInterval;
+    private final Map<String, Box> boxes = new ConcurrentHashMap<>();
+    private final Set<Box> unsynced = ConcurrentHashMap.newKeySet();
+    private final ScheduledExecutorService maintenance = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "offline-inbox");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private volatile boolean available;
+
+    private final LongAdder drains = new LongAdder();
+    private final LongAdder drainedMessages = new LongAdder();
+    private final LongAdder drainNanos = new LongAdder();
+    private final AtomicLong maxDrainNanos = new AtomicLong();
+    private final LongAdder refused = new LongAdder();
+
+    private static final class Box {
+        final ReentrantLock lock = new ReentrantLock();
+        final String user;
+        final Path path;
+        int count;
+        long bytes;
+        long newest;
+        boolean draining; // records may still be appended meanwhile
+        FileChannel channel; // open for appending until the next sync
+
+        Box(String user, Path path) {
+            this.user = user;
+            this.path = path;
+        }
+    }
+
+    OfflineInbox(Path directory, int maxMessages, long maxBytes, long expiry, int batchSize, long fsyncInterval) {
+        this.directory = directory;
+        this.maxMessages = maxMessages;
+        this.maxBytes = maxBytes;
+        this.expiry = expiry;
+        this.batchSize = batchSize;
+        this.fsyncInterval = fsyncInterval;
+        try {
+            load();
+            available = true;
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, "Cannot open offline inboxes in " + directory + ", they are disabled", e);
+        }
+        if (fsyncInterval > 0) {
+            maintenance.scheduleWithFixedDelay(this::sync, fsyncInterval, fsyncInterval, TimeUnit.MILLISECONDS);
+        }
+        maintenance.scheduleWithFixedDelay(this::expire, 1, 1, TimeUnit.HOURS);
+    }
+
+    static OfflineInbox fromConfig() {
+        return new OfflineInbox(ServerConfig.INBOX_DIR, ServerConfig.INBOX_MAX_MESSAGES, ServerConfig.INBOX_MAX_BYTES,
+                ServerConfig.INBOX_EXPIRY, ServerConfig.INBOX_BATCH, ServerConfig.LOG_FSYNC_INTERVAL);
+    }
+
+    private void load() throws IOException {
+        Files.createDirectories(directory);
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + SUFFIX)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                String user = new String(HexFormat.of().parseHex(name, 0, name.length() - SUFFIX.length()),
+                        StandardCharsets.UTF_8);
+                Box box = new Box(user, file);
+                ByteBuffer records = readAll(file);
+                long valid = scan(box, records);
+                if (valid < records.limit()) {
+                    logger.warning("Truncating " + file + " from " + records.limit() + " to " + valid + " bytes");
+                    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+                        channel.truncate(valid);
+                    }
+                }
+                boxes.put(user, box);
+            }
+        }
+        logger.info("Offline inboxes " + directory.toAbsolutePath() + ": " + depthSummary());
+    }
+
+    /**
+     * Counts a box's intact records and returns their length.
+     */
+    private static long scan(Box box, ByteBuffer records) {
+        int position = 0;
+        while (position + RECORD_HEADER <= records.limit()) {
+            int length = records.getInt(position);
+            if (length < 0 || position + RECORD_HEADER + length > records.limit()) break;
+            if (records.getInt(position + 4) != checksum(records, position, length)) break;
+
+            box.count++;
+            box.newest = Math.max(box.newest, records.getLong(position + 8));
+            position += RECORD_HEADER + length;
+        }
+        box.bytes = position;
+        return position;
+    }
+
+    private static int checksum(ByteBuffer record, int position, int bodyLength) {
+        CRC32C crc = new CRC32C();
+        crc.update(record.slice(position + 8, 8 + bodyLength));
+        return (int) crc.getValue();
+    }
+
+    private static ByteBuffer readAll(Path file) throws IOException {
+        return readFrom(file, 0);
+    }
+
+    private static ByteBuffer readFrom(Path file, long position) throws IOException {
+        if (!Files.exists(file)) return ByteBuffer.allocate(0);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocate((int) Math.max(0, channel.size() - position));
+            while (buffer.hasRemaining() && channel.read(buffer, position + buffer.position()) >= 0) {
+                // keep reading
+            }
+            return buffer.flip();
+        }
+    }
+
+    /**
+     * Locks the user's box, creating it if needed.
+     */
+    private Box lockBox(String user) {
+        while (true) {
+            Box box = boxes.computeIfAbsent(user, name -> new Box(name, directory.resolve(
+                    HexFormat.of().formatHex(name.getBytes(StandardCharsets.UTF_8)) + SUFFIX)));
+            box.lock.lock();
+            if (boxes.get(user) == box) return box;
+            box.lock.unlock(); // drained meanwhile
+        }
+    }
+
+    /**
+     * Keeps a message for a user who is offline. File data is not kept.
+     *
+     * @return false if the inbox is full or unavailable
+     */
+    boolean add(String recipient, ChatMessage message) {
+        if (!available) return false;
+
+        byte[] data = message.getData();
+        message.setData(null);
+        ByteBuffer record;
+        try {
+            record = BinaryCodec.encode(message, RECORD_HEADER);
+        } finally {
+            message.setData(data);
+        }
+        long now = System.currentTimeMillis();
+        int length = record.remaining() - RECORD_HEADER;
+        record.putInt(0, length);
+        record.putLong(8, now);
+        record.putInt(4, checksum(record, 0, length));
+
+        Box box = lockBox(recipient);
+        try {
+            if (box.count >= maxMessages || box.bytes + record.remaining() > maxBytes) {
+                refused.increment();
+                return false;
+            }
+            if (box.channel == null) {
+                box.channel = FileChannel.open(box.path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                        StandardOpenOption.APPEND);
+            }
+            long size = record.remaining();
+            while (record.hasRemaining()) {
+                box.channel.write(record);
+            }
+            box.count++;
+            box.bytes += size;
+            box.newest = now;
+
+            if (fsyncInterval <= 0) {
+                closeChannel(box);
+            } else {
+                unsynced.add(box);
+            }
+            return true;
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, "Cannot write offline inbox of " + recipient, e);
+            return false;
+        } finally {
+            box.lock.unlock();
+        }
+    }
+
+    /**
+     * Empties a user's inbox into their connection, a batch of messages per frame, waiting for
+     * the queue to drain between batches. Expired messages are skipped. File notices go only to
+     * clients that can download them; other clients are told how many are waiting and the
+     * notices stay in the inbox. Messages not sent because the client went away stay too.
+     *
+     * @return the lowest log sequence number among the messages sent, or {@link Long#MAX_VALUE}
+     */
+    long drain(ClientHandler client) {
+        String user = client.getUsername();
+        if (!available || user == null || !boxes.containsKey(user)) return Long.MAX_VALUE;
+
+        long start = System.nanoTime();
+        Delivery delivery = new Delivery(FileRelay.canReceive(client));
+        // Whatever arrives during a drain goes out in another round
+        while (drainOnce(client, delivery) && client.isRunning()) {
+            delivery.held = 0;
+        }
+        if (delivery.held > 0) {
+            ChatMessage notice = new ChatMessage(MessageType.TEXT, "Server");
+            notice.setText(delivery.held + " file(s) are waiting for you; this client cannot download them");
+            client.sendMessage(notice);
+        }
+
+        long elapsed = System.nanoTime() - start;
+        drains.increment();
+        drainedMessages.add(delivery.sent);
+        drainNanos.add(elapsed);
+        maxDrainNanos.accumulateAndGet(elapsed, Math::max);
+        logger.info(String.format("Delivered %d offline messages to %s in %.1f ms",
+                delivery.sent, user, elapsed / 1_000_000.0));
+        return delivery.lowest;
+    }
+
+    private static final class Delivery {
+        final boolean files;
+        long lowest = Long.MAX_VALUE;
+        int sent;
+        int held;
+
+        Delivery(boolean files) {
+            this.files = files;
+        }
+    }
+
+    /**
+     * Sends what is in the inbox now, then writes back what was not sent.
+     *
+     * @return whether messages were added meanwhile
+     */
+    private boolean drainOnce(ClientHandler client, Delivery delivery) {
+        String user = client.getUsername();
+        ByteBuffer records;
+        Box box = lockBox(user);
+        try {
+            if (box.draining) return false; // the drain in progress goes round again
+            closeChannel(box);
+            records = readAll(box.path);
+            box.draining = true;
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, "Cannot read offline inbox of " + user, e);
+            return false;
+        } finally {
+            box.lock.unlock();
+        }
+
+        long cutoff = System.currentTimeMillis() - expiry;
+        List<ByteBuffer> kept = new ArrayList<>();
+        List<ChatMessage> batch = new ArrayList<>(batchSize);
+        List<ByteBuffer> batchRecords = new ArrayList<>(batchSize);
+        long batchBytes = 0;
+        int position = 0;
+        while (position + RECORD_HEADER <= records.limit()) {
+            int length = records.getInt(position);
+            long queued = records.getLong(position + 8);
+            ByteBuffer record = records.slice(position, RECORD_HEADER + length);
+            ByteBuffer body = records.slice(position + RECORD_HEADER, length);
+            position += RECORD_HEADER + length;
+            if (queued < cutoff) continue;
+
+            ChatMessage message;
+            try {
+                message = BinaryCodec.decode(body);
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Skipping unreadable offline message for " + user, e);
+                continue;
+            }
+            if (message.getType() != MessageType.TEXT && !delivery.files) {
+                kept.add(record);
+                delivery.held++;
+                continue;
+            }
+
+            batch.add(message);
+            batchRecords.add(record);
+            batchBytes += length;
+            if (batch.size() == batchSize || batchBytes >= BATCH_BYTES) {
+                if (!sendBatch(client, batch, delivery)) break;
+                batch.clear();
+                batchRecords.clear();
+                batchBytes = 0;
+                ServerMain.awaitQueue(client);
+            }
+        }
+        if (!batch.isEmpty() && sendBatch(client, batch, delivery)) {
+            batchRecords.clear();
+        }
+        kept.addAll(batchRecords);
+        kept.add(records.slice(position, records.limit() - position)); // after a failed batch
+
+        return settle(box, records.limit(), kept);
+    }
+
+    /**
+     * Replaces the records drained with those kept, ahead of any added since.
+     *
+     * @return whether any were added
+     */
+    private boolean settle(Box box, long drained, List<ByteBuffer> kept) {
+        box.lock.lock();
+        try {
+            box.draining = false;
+            closeChannel(box);
+            ByteBuffer added = readFrom(box.path, drained);
+            int size = added.remaining();
+            for (ByteBuffer record : kept) size += record.remaining();
+            if (size == 0) {
+                Files.deleteIfExists(box.path);
+                boxes.remove(box.user, box);
+                return false;
+            }
+
+            ByteBuffer remaining = ByteBuffer.allocate(size);
+            for (ByteBuffer record : kept) remaining.put(record);
+            remaining.put(added).flip();
+            Path temp = box.path.resolveSibling(box.path.getFileName() + ".tmp");
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING)) {
+                while (remaining.hasRemaining()) {
+                    channel.write(remaining);
+                }
+                channel.force(false);
+            }
+            Files.move(temp, box.path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            box.count = 0;
+            box.newest = 0;
+            scan(box, remaining.flip());
+            return added.hasRemaining();
+        } catch (IOException e) {
+            // The file still holds every record drained, so they may be delivered twice
+            logger.log(Level.SEVERE, "Cannot update offline inbox of " + box.user, e);
+            return false;
+        } finally {
+            box.lock.unlock();
+        }
+    }
+
+    private static boolean sendBatch(ClientHandler client, List<ChatMessage> batch, Delivery delivery) {
+        if (!client.isRunning()) return false;
+        Frame frame;
+        try {
+            frame = Frame.encodeAll(batch, client.getWireFormat());
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Cannot encode offline messages for " + client.getUsername(), e);
+            return false;
+        }
+        try {
+            client.sendFrame(frame);
+        } finally {
+            frame.release();
+        }
+        delivery.sent += batch.size();
+        for (ChatMessage message : batch) {
+            if (message.getSequence() > 0) delivery.lowest = Math.min(delivery.lowest, message.getSequence());
+        }
+        return true;
+    }
+
+    private void closeChannel(Box box) throws IOException {
+        if (box.channel != null) {
+            box.channel.force(false);
+            box.channel.close();
+            box.channel = null;
+        }
+        unsynced.remove(box);
+    }
+
+    /**
+     * Flushes and closes the files written since the last sync, so few stay open at a time.
+     */
+    private void sync() {
+        for (Box box : unsynced) {
+            box.lock.lock();
+            try {
+                closeChannel(box);
+            } catch (IOException e) {
+                logger.log(Level.SEVERE, "Cannot sync offline inbox of " + box.user, e);
+            } finally {
+                box.lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Deletes inboxes whose newest message has expired. Older messages in live inboxes are
+     * skipped when they drain.
+     */
+    private void expire() {
+        long cutoff = System.currentTimeMillis() - expiry;
+        for (Box box : boxes.values()) {
+            if (box.newest >= cutoff || !box.lock.tryLock()) continue;
+            try {
+                if (boxes.get(box.user) != box || box.newest >= cutoff || box.draining) continue;
+                closeChannel(box);
+                Files.deleteIfExists(box.path);
+                boxes.remove(box.user, box);
+                logger.info("Expired offline inbox of " + box.user + " (" + box.count + " messages)");
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Cannot delete " + box.path, e);
+            } finally {
+                box.lock.unlock();
+            }
+        }
+    }
+
+    private String depthSummary() {
+        int users = 0;
+        long messages = 0;
+        int deepest = 0;
+        for (Box box : boxes.values()) {
+            if (box.count == 0) continue;
+            users++;
+            messages += box.count;
+            deepest = Math.max(deepest, box.count);
+        }
+        return String.format("users=%d messages=%d deepest=%d", users, messages, deepest);
+    }
+
+    String summary() {
+        long count = Math.max(1, drains.sum());
+        return String.format("inbox %s refused=%d drains=%d messages/drain=%.1f drain=%.1fms avg %.1fms max",
+                depthSummary(),
+                refused.sum(),
+                drains.sum(),
+                drainedMessages.sum() / (double) count,
+                drainNanos.sum() / 1_000_000.0 / count,
+                maxDrainNanos.get() / 1_000_000.0);
+    }
+}
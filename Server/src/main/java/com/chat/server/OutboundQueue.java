@@ -0,0 +1,224 @@
+package com.chat.server;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded queue of frames waiting to be written to one client. Senders never block on it:
+ * when a slow reader lets it fill up, the {@link OverflowPolicy} decides what gives.
+ */
+final class OutboundQueue {
+
+    enum OverflowPolicy {
+        /** Drop the oldest queued frames until the new one fits. */
+        DROP_OLDEST,
+        /** Drop queued presence updates (they are superseded anyway); disconnect if there are none. */
+        DROP_PRESENCE,
+        /** Disconnect the client. */
+        DISCONNECT
+    }
+
+    // Each frame with the time it was queued, for send latency
+    private record Entry(Frame frame, long queuedAt) {
+    }
+
+    private final ArrayDeque<Entry> frames = new ArrayDeque<>();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final int capacity;
+    private final long maxBytes;
+    private final OverflowPolicy policy;
+    private long queuedBytes;
+    private long dropped;
+    private boolean closed;
+    private long takenQueuedAt; // consumer side only
+
+    OutboundQueue(int capacity, long maxBytes, OverflowPolicy policy) {
+        this.capacity = capacity;
+        this.maxBytes = maxBytes;
+        this.policy = policy;
+    }
+
+    static OutboundQueue fromConfig() {
+        return new OutboundQueue(ServerConfig.OUTBOUND_CAPACITY, ServerConfig.OUTBOUND_MAX_BYTES,
+                ServerConfig.OUTBOUND_POLICY);
+    }
+
+    /**
+     * Queues a frame, taking over the caller's reference.
+     *
+     * @return false if the queue overflowed under {@link OverflowPolicy#DISCONNECT} (or had
+     *         nothing left to drop); the queue is then emptied and the client should be dropped
+     */
+    boolean offer(Frame frame) {
+        lock.lock();
+        try {
+            if (closed) {
+                frame.release();
+                return true;
+            }
+
+            while (isFull(frame)) {
+                Frame victim = switch (policy) {
+                    case DROP_OLDEST -> frames.pollFirst().frame();
+                    case DROP_PRESENCE -> removeOldestPresence();
+                    case DISCONNECT -> null;
+                };
+                if (victim == null) {
+                    frame.release();
+                    clearLocked();
+                    return false;
+                }
+                queuedBytes -= victim.length();
+                dropped++;
+                victim.release();
+            }
+
+            frames.addLast(new Entry(frame, System.nanoTime()));
+            queuedBytes += frame.length();
+            notEmpty.signal();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private boolean isFull(Frame frame) {
+        if (frames.isEmpty()) return false; // a single oversized frame still goes through
+        return frames.size() >= capacity || queuedBytes + frame.length() > maxBytes;
+    }
+
+    private Frame removeOldestPresence() {
+        Iterator<Entry> it = frames.iterator();
+        while (it.hasNext()) {
+            Entry queued = it.next();
+            if (queued.frame().isPresence()) {
+                it.remove();
+                return queued.frame();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Takes the next frame without waiting, or returns null.
+     */
+    Frame poll() {
+        lock.lock();
+        try {
+            return takeFirst();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Takes the next frame, waiting at most the given time for one to arrive.
+     */
+    Frame poll(long timeoutNanos) throws InterruptedException {
+        lock.lock();
+        try {
+            while (frames.isEmpty() && !closed && timeoutNanos > 0) {
+                timeoutNanos = notEmpty.awaitNanos(timeoutNanos);
+            }
+            return takeFirst();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Waits for the next frame. Returns null once the queue is closed and drained.
+     */
+    Frame take() throws InterruptedException {
+        lock.lock();
+        try {
+            while (frames.isEmpty()) {
+                if (closed) return null;
+                notEmpty.await();
+            }
+            return takeFirst();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private Frame takeFirst() {
+        Entry entry = frames.pollFirst();
+        if (entry == null) return null;
+        queuedBytes -= entry.frame().length();
+        takenQueuedAt = entry.queuedAt();
+        return entry.frame();
+    }
+
+    /**
+     * When the frame last taken was queued, in {@link System#nanoTime()} terms. Only meaningful
+     * to the single thread taking frames.
+     */
+    long takenQueuedAt() {
+        return takenQueuedAt;
+    }
+
+    /**
+     * Stops accepting frames; what is already queued can still be taken.
+     */
+    void close() {
+        lock.lock();
+        try {
+            closed = true;
+            notEmpty.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Releases everything still queued.
+     */
+    void clear() {
+        lock.lock();
+        try {
+            clearLocked();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void clearLocked() {
+        Entry entry;
+        while ((entry = frames.pollFirst()) != null) {
+            entry.frame().release();
+        }
+        queuedBytes = 0;
+        notEmpty.signalAll();
+    }
+
+    int depth() {
+        lock.lock();
+        try {
+            return frames.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    long queuedBytes() {
+        lock.lock();
+        try {
+            return queuedBytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    long dropped() {
+        lock.lock();
+        try {
+            return dropped;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
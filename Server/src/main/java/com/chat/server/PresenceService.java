@@ -0,0 +1,159 @@
+package com.chat.server;
+
+import com.chat.shared.ChatMessage;
+import com.chat.shared.MessageType;
+import com.chat.shared.PresenceUpdate;
+import com.chat.shared.WireFormat;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Tracks who is online and tells clients about changes as versioned deltas. Logins and
+ * logouts within one coalescing window become a single delta; a full snapshot is only sent
+ * to a user who just logged in or who asks for one after spotting a version gap.
+ * Clients on the legacy serialized protocol still get the old full {@code USERLIST:} text.
+ */
+final class PresenceService {
+    private static final Logger logger = Logger.getLogger(PresenceService.class.getName());
+
+    private final ClientRegistry clients;
+    private final long window;
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "presence");
+        thread.setDaemon(true);
+        return thread;
+    });
+    // Held while queueing presence frames so every client sees versions in order
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Set<String> online = new LinkedHashSet<>();
+    private final Map<String, Boolean> pending = new LinkedHashMap<>();
+    private long version;
+    private boolean flushScheduled;
+
+    PresenceService(ClientRegistry clients, long window) {
+        this.clients = clients;
+        this.window = window;
+    }
+
+    void join(ClientHandler client) {
+        lock.lock();
+        try {
+            sendSnapshot(client);
+            add(client.getUsername());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Lists a user without sending it a snapshot, e.g. one logged in on another node.
+     */
+    void add(String username) {
+        lock.lock();
+        try {
+            pending.put(username, true);
+            scheduleFlush();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void leave(String username) {
+        lock.lock();
+        try {
+            pending.put(username, false);
+            scheduleFlush();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Sends the user list as of the current version; changes still pending follow as a delta.
+     */
+    void sendSnapshot(ClientHandler client) {
+        lock.lock();
+        try {
+            client.sendMessage(client.getWireFormat().isBinary()
+                    ? presenceMessage(PresenceUpdate.snapshot(version, online))
+                    : legacyUserList());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void scheduleFlush() {
+        if (!flushScheduled) {
+            flushScheduled = true;
+            scheduler.schedule(this::flush, window, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void flush() {
+        lock.lock();
+        try {
+            flushScheduled = false;
+            List<String> joined = new ArrayList<>();
+            List<String> left = new ArrayList<>();
+            for (Map.Entry<String, Boolean> change : pending.entrySet()) {
+                if (change.getValue()) {
+                    if (online.add(change.getKey())) joined.add(change.getKey());
+                } else if (online.remove(change.getKey())) {
+                    left.add(change.getKey());
+                }
+            }
+            pending.clear();
+            if (joined.isEmpty() && left.isEmpty()) return;
+
+            long from = version++;
+            broadcast(presenceMessage(PresenceUpdate.delta(from, version, joined, left)));
+        } catch (RuntimeException e) {
+            logger.log(Level.SEVERE, "Presence update failed", e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void broadcast(ChatMessage delta) {
+        FanOut deltaFanOut = new FanOut(delta);
+        FanOut legacyFanOut = null;
+        try {
+            for (ClientHandler client : clients.snapshot()) {
+                if (client.getWireFormat().isBinary()) {
+                    deltaFanOut.send(client);
+                } else {
+                    if (legacyFanOut == null) legacyFanOut = new FanOut(legacyUserList());
+                    legacyFanOut.send(client);
+                }
+            }
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Cannot encode presence update", e);
+        } finally {
+            deltaFanOut.complete();
+            if (legacyFanOut != null) legacyFanOut.complete();
+        }
+    }
+
+    private static ChatMessage presenceMessage(PresenceUpdate update) {
+        ChatMessage message = new ChatMessage(MessageType.PRESENCE, "Server");
+        message.setText(update.toText());
+        return message;
+    }
+
+    private ChatMessage legacyUserList() {
+        ChatMessage userListMessage = new ChatMessage(MessageType.TEXT, "Server");
+        userListMessage.setText("USERLIST:" + String.join(",", online));
+        return userListMessage;
+    }
+}
@@ -0,0 +1,38 @@
+package com.chat.server;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The {@link SendBudget}s of client addresses: connections from one address share a budget,
+ * kept for as long as any of them is open.
+ */
+final class RateLimiter {
+    private final ConcurrentHashMap<String, Host> hosts = new ConcurrentHashMap<>();
+
+    private static final class Host {
+        final SendBudget budget = SendBudget.forHost();
+        int connections; // changed inside the map's compute only
+    }
+
+    /**
+     * Counts one more connection from {@code host} and returns the budget they share.
+     */
+    SendBudget open(String host) {
+        return hosts.compute(host, (key, entry) -> {
+            if (entry == null) entry = new Host();
+            entry.connections++;
+            return entry;
+        }).budget;
+    }
+
+    void closed(String host) {
+        hosts.computeIfPresent(host, (key, entry) -> --entry.connections == 0 ? null : entry);
+    }
+
+    /**
+     * Addresses with at least one connection.
+     */
+    int hosts() {
+        return hosts.size();
+    }
+}
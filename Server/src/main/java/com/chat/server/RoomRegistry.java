@@ -0,0 +1,175 @@
+package com.chat.server;
+
+import com.chat.shared.ChatMessage;
+import com.chat.shared.MessageType;
+import java.io.IOException;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+
+/**
+ * Named rooms and their members. Each room keeps its own member set, and its messages are
+ * fanned out on one of a fixed number of single-thread shards picked by the room's name: a
+ * room's messages stay in order, and a busy room only ever delays the rooms sharing its shard.
+ * Rooms exist while they have members.
+ */
+final class RoomRegistry {
+    private static final Logger logger = Logger.getLogger(RoomRegistry.class.getName());
+    private static final Pattern NAME = Pattern.compile("[A-Za-z0-9_-]{1,64}");
+
+    private final Map<String, Room> rooms = new ConcurrentHashMap<>();
+    private final ThreadPoolExecutor[] shards;
+
+    private static final class Room {
+        final String name;
+        final Set<ClientHandler> members = ConcurrentHashMap.newKeySet();
+        final ThreadPoolExecutor shard;
+
+        Room(String name, ThreadPoolExecutor shard) {
+            this.name = name;
+            this.shard = shard;
+        }
+    }
+
+    RoomRegistry(int shardCount) {
+        shards = new ThreadPoolExecutor[shardCount];
+        for (int i = 0; i < shardCount; i++) {
+            String threadName = "room-shard-" + i;
+            shards[i] = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(), r -> {
+                Thread thread = new Thread(r, threadName);
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+
+    // A room keeps its shard when it is emptied and created again, so its order holds
+    private ThreadPoolExecutor shardOf(String name) {
+        return shards[Math.floorMod(name.hashCode(), shards.length)];
+    }
+
+    void join(ClientHandler client, String name) {
+        if (name == null || !NAME.matcher(name).matches()) {
+            client.sendError("Invalid room name");
+            return;
+        }
+        if (!client.rooms().add(name)) return;
+
+        Room room = rooms.compute(name, (key, existing) -> {
+            Room joined = existing != null ? existing : new Room(key, shardOf(key));
+            joined.members.add(client);
+            return joined;
+        });
+        publishEverywhere(room, notice(MessageType.JOIN, client, name), null);
+    }
+
+    void leave(ClientHandler client, String name) {
+        if (name == null || !client.rooms().remove(name)) return;
+
+        Room[] left = new Room[1];
+        rooms.computeIfPresent(name, (key, room) -> {
+            if (room.members.remove(client)) left[0] = room;
+            return room.members.isEmpty() ? null : room;
+        });
+        if (left[0] != null) {
+            publishEverywhere(left[0], notice(MessageType.LEAVE, client, name), null);
+            // Members no longer hear about themselves leaving
+            client.sendMessage(notice(MessageType.LEAVE, client, name));
+        }
+    }
+
+    /**
+     * Takes a disconnecting client out of all its rooms.
+     */
+    void leaveAll(ClientHandler client) {
+        for (String name : client.rooms()) {
+            leave(client, name);
+        }
+    }
+
+    /**
+     * Sends a message to everyone else in its room; the sender must be a member.
+     */
+    void publish(ClientHandler sender, ChatMessage message) {
+        Room room = rooms.get(message.getRoom());
+        if (room == null || !room.members.contains(sender)) {
+            sender.sendError("You are not in #" + message.getRoom());
+            return;
+        }
+        publishEverywhere(room, message, sender);
+    }
+
+    /**
+     * Sends a room message from another node to the members here, if the room exists here.
+     */
+    void deliver(ChatMessage message) {
+        Room room = message.getRoom() != null ? rooms.get(message.getRoom()) : null;
+        if (room != null) {
+            publish(room, message, null);
+        }
+    }
+
+    private void publishEverywhere(Room room, ChatMessage message, ClientHandler except) {
+        publish(room, message, except);
+        ServerMain.cluster().publishRoom(message);
+    }
+
+    private void publish(Room room, ChatMessage message, ClientHandler except) {
+        room.shard.execute(() -> {
+            FanOut fanOut = new FanOut(message);
+            try {
+                for (ClientHandler member : room.members) {
+                    if (member != except) {
+                        fanOut.send(member);
+                    }
+                }
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Cannot encode message to #" + room.name, e);
+            } finally {
+                fanOut.complete();
+            }
+        });
+    }
+
+    /**
+     * Replies with the rooms that exist on this node, one {@code name:members} per line.
+     */
+    void sendList(ClientHandler client) {
+        Map<String, Integer> sorted = new TreeMap<>();
+        rooms.forEach((name, room) -> sorted.put(name, room.members.size()));
+
+        StringBuilder sb = new StringBuilder();
+        sorted.forEach((name, count) -> {
+            if (!sb.isEmpty()) sb.append('\n');
+            sb.append(name).append(':').append(count);
+        });
+        ChatMessage list = new ChatMessage(MessageType.ROOMS, "Server");
+        list.setText(sb.toString());
+        client.sendMessage(list);
+    }
+
+    private static ChatMessage notice(MessageType type, ClientHandler client, String room) {
+        ChatMessage notice = new ChatMessage(type, client.getUsername());
+        notice.setRoom(room);
+        return notice;
+    }
+
+    /**
+     * Room count and the messages waiting on each shard.
+     */
+    String summary() {
+        StringBuilder sb = new StringBuilder("rooms=").append(rooms.size()).append(" shard backlog=[");
+        for (int i = 0; i < shards.length; i++) {
+            if (i > 0) sb.append(' ');
+            sb.append(shards[i].getQueue().size());
+        }
+        return sb.append(']').toString();
+    }
+}
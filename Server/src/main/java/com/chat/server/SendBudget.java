@@ -0,0 +1,46 @@
+package com.chat.server;
+
+/**
+ * What a sender may send per second: frames and bytes, each a {@link TokenBucket}. A limit of
+ * 0 leaves that bucket out.
+ */
+final class SendBudget {
+    private final TokenBucket messages;
+    private final TokenBucket bytes;
+
+    SendBudget(long messagesPerSecond, long messageBurst, long bytesPerSecond, long byteBurst) {
+        this.messages = messagesPerSecond > 0 ? new TokenBucket(messagesPerSecond, messageBurst) : null;
+        this.bytes = bytesPerSecond > 0 ? new TokenBucket(bytesPerSecond, byteBurst) : null;
+    }
+
+    static SendBudget forUser() {
+        return new SendBudget(ServerConfig.USER_MESSAGE_RATE, ServerConfig.USER_MESSAGE_BURST,
+                ServerConfig.USER_BYTE_RATE, ServerConfig.USER_BYTE_BURST);
+    }
+
+    static SendBudget forHost() {
+        return new SendBudget(ServerConfig.HOST_MESSAGE_RATE, ServerConfig.HOST_MESSAGE_BURST,
+                ServerConfig.HOST_BYTE_RATE, ServerConfig.HOST_BYTE_BURST);
+    }
+
+    /**
+     * Charges a frame of {@code size} bytes to both buckets, or to neither.
+     *
+     * @return 0 if charged, else the nanoseconds to wait before trying again
+     */
+    long tryTake(int size, long now) {
+        long wait = messages != null ? messages.tryTake(1, now) : 0;
+        if (wait > 0 || bytes == null) return wait;
+        wait = bytes.tryTake(size, now);
+        if (wait > 0 && messages != null) messages.refund(1);
+        return wait;
+    }
+
+    /**
+     * Gives back a frame charged by {@link #tryTake}.
+     */
+    void refund(int size) {
+        if (messages != null) messages.refund(1);
+        if (bytes != null) bytes.refund(size);
+    }
+}
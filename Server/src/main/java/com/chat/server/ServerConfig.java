@@ -0,0 +1,128 @@
+package com.chat.server;
+
+import java.nio.file.Path;
+
+/**
+ * Server settings, read from system properties (e.g. {@code -Dchat.mode=nio}).
+ */
+final class ServerConfig {
+    static final int PORT = Integer.getInteger("chat.port", 5555);
+
+    /**
+     * {@code blocking} (platform thread per connection), {@code virtual} (virtual thread per
+     * connection) or {@code nio} (selector event loops).
+     */
+    static final String MODE = System.getProperty("chat.mode", "blocking");
+
+    static final int EVENT_LOOPS = Integer.getInteger("chat.nio.loops",
+            Math.max(2, Runtime.getRuntime().availableProcessors()));
+
+    static final int READ_BUFFER_SIZE = Integer.getInteger("chat.nio.readBuffer", 8192);
+
+    /** Frames and bytes a client may have waiting before its overflow policy kicks in. */
+    static final int OUTBOUND_CAPACITY = Integer.getInteger("chat.outbound.capacity", 1024);
+    static final long OUTBOUND_MAX_BYTES = Long.getLong("chat.outbound.maxBytes", 64L * 1024 * 1024);
+    static final OutboundQueue.OverflowPolicy OUTBOUND_POLICY = OutboundQueue.OverflowPolicy.valueOf(
+            System.getProperty("chat.outbound.policy", "DROP_PRESENCE").toUpperCase());
+
+    /**
+     * Blocking mode write batching: at most this many bytes per flush, and how long a writer
+     * that is seeing bursts waits for another frame before flushing.
+     */
+    static final int WRITE_BATCH_BYTES = Integer.getInteger("chat.write.batchBytes", 64 * 1024);
+    static final int WRITE_BUFFER_SIZE = Integer.getInteger("chat.write.bufferSize", 16 * 1024);
+    static final long WRITE_LINGER_NANOS = Long.getLong("chat.write.lingerMicros", 200) * 1000;
+
+    /**
+     * Connection timers, in milliseconds: time allowed to log in, silence before the server
+     * pings a client, and silence before it drops one. They run on a wheel of the given tick.
+     */
+    static final long LOGIN_TIMEOUT = Long.getLong("chat.login.timeout", 10_000);
+    static final long PING_INTERVAL = Long.getLong("chat.ping.interval", 30_000);
+    static final long IDLE_TIMEOUT = Long.getLong("chat.idle.timeout", 300_000);
+    static final long TIMER_TICK = Long.getLong("chat.timer.tick", 100);
+    static final int TIMER_WHEEL_SIZE = Integer.getInteger("chat.timer.wheelSize", 512);
+
+    /** Logins and logouts within this many milliseconds go out as one presence delta. */
+    static final long PRESENCE_WINDOW = Long.getLong("chat.presence.window", 250);
+
+    /** Where uploaded files are kept, and how many bytes of them before the least recently used go. */
+    static final Path BLOB_DIR = Path.of(System.getProperty("chat.blobs.dir", "blobs"));
+    static final long BLOB_QUOTA = Long.getLong("chat.blobs.quota", 10L * 1024 * 1024 * 1024);
+
+    /** Message history: segment files under one directory, fsynced at most once per interval (0: every append). */
+    static final Path LOG_DIR = Path.of(System.getProperty("chat.log.dir", "history"));
+    static final int LOG_SEGMENT_BYTES = Integer.getInteger("chat.log.segmentBytes", 64 * 1024 * 1024);
+    static final long LOG_FSYNC_INTERVAL = Long.getLong("chat.log.fsyncIntervalMs", 1000);
+    static final long LOG_RETENTION = Long.getLong("chat.log.retentionHours", 24 * 7) * 60 * 60 * 1000;
+    static final long LOG_MAX_BYTES = Long.getLong("chat.log.maxBytes", 1024L * 1024 * 1024);
+
+    /** Messages replayed to a client that has none yet, and how many go out per page. */
+    static final int HISTORY_REPLAY = Integer.getInteger("chat.history.replay", 100);
+    static final int HISTORY_PAGE = Integer.getInteger("chat.history.page", 100);
+
+    /**
+     * Private messages kept for offline users: how many and how many bytes per user, for how
+     * many days, and how many go out per frame when the user is back.
+     */
+    static final Path INBOX_DIR = Path.of(System.getProperty("chat.inbox.dir", "inbox"));
+    static final int INBOX_MAX_MESSAGES = Integer.getInteger("chat.inbox.maxMessages", 1000);
+    static final long INBOX_MAX_BYTES = Long.getLong("chat.inbox.maxBytes", 4L * 1024 * 1024);
+    static final long INBOX_EXPIRY = Long.getLong("chat.inbox.expiryDays", 30) * 24 * 60 * 60 * 1000;
+    static final int INBOX_BATCH = Integer.getInteger("chat.inbox.batch", 256);
+
+    /** Threads that fan out room messages; each room always uses the same one. */
+    static final int ROOM_SHARDS = Integer.getInteger("chat.rooms.shards",
+            Math.max(2, Runtime.getRuntime().availableProcessors()));
+
+    /**
+     * Cluster membership: this node's name, the address and port its peers connect to, and the
+     * peers as comma-separated {@code id@host:port}. Without peers the server runs on its own.
+     * Nodes prove to each other that they share the secret, which a node with peers requires.
+     */
+    static final String NODE_ID = System.getProperty("chat.node.id", "node-" + PORT);
+    static final String CLUSTER_BIND = System.getProperty("chat.cluster.bind", "127.0.0.1");
+    static final int CLUSTER_PORT = Integer.getInteger("chat.cluster.port", PORT + 1000);
+    static final String CLUSTER_PEERS = System.getProperty("chat.cluster.peers", "");
+    static final String CLUSTER_SECRET = System.getProperty("chat.cluster.secret", "");
+    /** Frames waiting for one peer before more are dropped, and milliseconds between reconnects. */
+    static final int CLUSTER_QUEUE = Integer.getInteger("chat.cluster.queue", 65536);
+    static final long CLUSTER_RETRY = Long.getLong("chat.cluster.retryMillis", 1000);
+
+    /**
+     * Frames and bytes per second, and the bursts above that, each user and each client address
+     * may send before the server stops reading from it for a while; 0 lifts a limit.
+     */
+    static final long USER_MESSAGE_RATE = Long.getLong("chat.limit.user.messages", 200);
+    static final long USER_MESSAGE_BURST = Long.getLong("chat.limit.user.messageBurst", 400);
+    static final long USER_BYTE_RATE = Long.getLong("chat.limit.user.bytes", 16L * 1024 * 1024);
+    static final long USER_BYTE_BURST = Long.getLong("chat.limit.user.byteBurst", 16L * 1024 * 1024);
+    static final long HOST_MESSAGE_RATE = Long.getLong("chat.limit.ip.messages", 5000);
+    static final long HOST_MESSAGE_BURST = Long.getLong("chat.limit.ip.messageBurst", 10_000);
+    static final long HOST_BYTE_RATE = Long.getLong("chat.limit.ip.bytes", 128L * 1024 * 1024);
+    static final long HOST_BYTE_BURST = Long.getLong("chat.limit.ip.byteBurst", 128L * 1024 * 1024);
+
+    /** Whether clients that offer it at LOGIN get their larger frames deflated. */
+    static final boolean COMPRESSION = Boolean.parseBoolean(System.getProperty("chat.compression", "true"));
+
+    /**
+     * TLS for client connections: a PKCS12 key store holding the server's key and certificate
+     * (none: plain text), its password, the protocols allowed, and how many sessions are kept
+     * for how many seconds so returning clients can resume them.
+     */
+    static final String TLS_KEY_STORE = System.getProperty("chat.tls.keyStore", "");
+    static final String TLS_KEY_STORE_PASSWORD = System.getProperty("chat.tls.keyStorePassword", "");
+    static final String TLS_PROTOCOLS = System.getProperty("chat.tls.protocols", "TLSv1.3");
+    static final int TLS_SESSION_CACHE = Integer.getInteger("chat.tls.sessionCache", 20_000);
+    static final int TLS_SESSION_TIMEOUT = Integer.getInteger("chat.tls.sessionTimeout", 24 * 60 * 60);
+
+    /** Loopback port serving metrics at /metrics and /metrics.json; 0 turns it off. */
+    static final int METRICS_PORT = Integer.getInteger("chat.metrics.port", PORT + 2000);
+
+    static boolean virtualThreads() {
+        return "virtual".equalsIgnoreCase(MODE);
+    }
+
+    private ServerConfig() {
+    }
+}
@@ -1,84 +1,351 @@
 package com.chat.server;
 
 import com.chat.shared.ChatMessage;
+import com.chat.shared.FrameCompression;
 import com.chat.shared.MessageType;
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.util.HashMap;
-import java.util.Map;
+import java.nio.channels.ServerSocketChannel;
+import java.security.GeneralSecurityException;
+import java.util.List;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 public class ServerMain {
-    private static final int PORT = 5555;
+    private static final int PORT = ServerConfig.PORT;
     private static final Logger logger = Logger.getLogger(ServerMain.class.getName());
-    private static final Map<String, ClientHandler> clients = new HashMap<>();
-    private static final ExecutorService pool = Executors.newCachedThreadPool();
+    private static final ClientRegistry clients = new ClientRegistry();
+    private static final TimingWheel timers = TimingWheel.fromConfig();
+    private static final PresenceService presence = new PresenceService(clients, ServerConfig.PRESENCE_WINDOW);
+    private static final FileRelay files = new FileRelay(clients, BlobStore.fromConfig());
+    private static final MessageLog history = MessageLog.fromConfig();
+    private static final OfflineInbox inbox = OfflineInbox.fromConfig();
+    private static final RoomRegistry rooms = new RoomRegistry(ServerConfig.ROOM_SHARDS);
+    private static final Cluster cluster = Cluster.fromConfig(new RemoteDelivery());
+    private static final RateLimiter limits = new RateLimiter();
+    private static final MetricsEndpoint metrics = new MetricsEndpoint(clients);
+    private static final ExecutorService pool = ServerConfig.virtualThreads()
+            ? Executors.newVirtualThreadPerTaskExecutor()
+            : Executors.newCachedThreadPool();
+    private static final long METRICS_LOG_INTERVAL = 60; // seconds
 
     public static void main(String[] args) {
         Runtime.getRuntime().addShutdownHook(new Thread(() -> {
             logger.info("Shutting down server...");
             pool.shutdownNow();
         }));
+        TlsContext tls;
+        try {
+            tls = TlsContext.fromConfig();
+        } catch (IOException | GeneralSecurityException ex) {
+            logger.log(Level.SEVERE, "Cannot set up TLS from " + ServerConfig.TLS_KEY_STORE + ": " + ex.getMessage(), ex);
+            return;
+        }
+        startMetricsLog();
+        try {
+            cluster.start();
+        } catch (IOException ex) {
+            logger.log(Level.SEVERE, "Cannot start cluster node: " + ex.getMessage(), ex);
+            return;
+        }
+        startMetricsEndpoint();
+
+        if ("nio".equalsIgnoreCase(ServerConfig.MODE)) {
+            runNioServer(tls);
+            return;
+        }
 
-        try (ServerSocket serverSocket = new ServerSocket(PORT)) {
-            logger.info("Chat Server is listening on port " + PORT);
+        // Opened from a channel when plain, so file downloads can go out with transferTo
+        try (ServerSocket serverSocket = tls != null ? tls.newServerSocket(PORT)
+                : ServerSocketChannel.open().bind(new InetSocketAddress(PORT), 50).socket()) {
+            logger.info("Chat Server (" + ServerConfig.MODE + " threads" + (tls != null ? ", TLS" : "")
+                    + ") is listening on port " + PORT);
 
             while (!Thread.currentThread().isInterrupted()) {
-                Socket clientSocket = serverSocket.accept();
+                Socket clientSocket;
+                try {
+                    clientSocket = serverSocket.accept();
+                } catch (IOException e) {
+                    if (serverSocket.isClosed()) throw e;
+                    logger.log(Level.WARNING, "Cannot accept a connection: " + e.getMessage(), e);
+                    Thread.sleep(100); // out of file descriptors, say: back off rather than spin
+                    continue;
+                }
                 logger.info("New client connected from: " + clientSocket.getInetAddress());
+                try {
+                    // Otherwise the TLS handshake's small records sit out delayed ACKs
+                    clientSocket.setTcpNoDelay(true);
+                } catch (IOException e) {
+                    logger.log(Level.FINE, "Dropping a connection that failed on accept", e);
+                    try {
+                        clientSocket.close();
+                    } catch (IOException ignored) {
+                        // Socket is unusable either way
+                    }
+                    continue;
+                }
 
                 ClientHandler clientHandler = new ClientHandler(clientSocket, clients);
                 pool.execute(clientHandler);
             }
         } catch (IOException ex) {
             logger.log(Level.SEVERE, "Server exception: " + ex.getMessage(), ex);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
         } finally {
             gracefulShutdown();
         }
     }
 
-    public static synchronized void broadcastMessage(ChatMessage message, String sender) {
-        clients.values().stream()
-                .filter(client -> !client.getUsername().equals(sender))
-                .forEach(client -> client.sendMessage(message));
+    private static void runNioServer(TlsContext tls) {
+        try {
+            new NioServer(PORT, ServerConfig.EVENT_LOOPS, clients, tls).run();
+        } catch (IOException ex) {
+            logger.log(Level.SEVERE, "Server exception: " + ex.getMessage(), ex);
+        } finally {
+            gracefulShutdown();
+        }
     }
 
-    public static synchronized void sendPrivateMessage(ChatMessage message, String recipient) {
+    private static void startMetricsEndpoint() {
+        if (ServerConfig.METRICS_PORT == 0) return;
+        try {
+            metrics.start(ServerConfig.METRICS_PORT);
+            logger.info("Metrics at http://localhost:" + ServerConfig.METRICS_PORT + "/metrics");
+        } catch (IOException ex) {
+            // The chat itself does not need it
+            logger.log(Level.WARNING, "Cannot serve metrics on port " + ServerConfig.METRICS_PORT + ": " + ex.getMessage());
+        }
+    }
+
+    private static void startMetricsLog() {
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "metrics-log");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleAtFixedRate(() -> {
+            logger.info(FanOutMetrics.summary());
+            logger.info(WriteMetrics.summary());
+            logger.info(FrameCompression.summary());
+            logger.info(inbox.summary());
+            logger.info(rooms.summary());
+            logger.info("timers=" + timers.size());
+            logger.info(cluster.summary());
+            String backlog = outboundBacklog();
+            if (!backlog.isEmpty()) {
+                logger.info("Outbound backlog: " + backlog);
+            }
+        }, METRICS_LOG_INTERVAL, METRICS_LOG_INTERVAL, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Queue depth and dropped frames of every user that currently has a backlog or has lost frames.
+     */
+    static String outboundBacklog() {
+        StringBuilder sb = new StringBuilder();
+        for (ClientHandler client : clients.snapshot()) {
+            int depth = client.getQueueDepth();
+            long dropped = client.getDroppedFrames();
+            if (depth > 0 || dropped > 0) {
+                if (!sb.isEmpty()) sb.append(", ");
+                sb.append(client.getUsername()).append("[queued=").append(depth)
+                        .append(" dropped=").append(dropped).append(']');
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Sends a message to everyone but the sender, on this node and the others.
+     */
+    public static void broadcastMessage(ChatMessage message, String sender) {
+        broadcastLocal(message, sender);
+        cluster.broadcast(message);
+    }
+
+    private static void broadcastLocal(ChatMessage message, String sender) {
+        FanOut fanOut = new FanOut(message);
+        try {
+            for (ClientHandler client : clients.snapshot()) {
+                if (!sender.equals(client.getUsername())) {
+                    fanOut.send(client);
+                }
+            }
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Cannot encode broadcast from " + sender, e);
+        } finally {
+            fanOut.complete();
+        }
+    }
+
+    public static void sendPrivateMessage(ChatMessage message, String recipient) {
+        sendPrivateMessage(message, recipient, true);
+    }
+
+    /**
+     * Delivers to the recipient here, else on the node it is on if {@code forward}, else keeps
+     * the message in its inbox on this node.
+     */
+    private static void sendPrivateMessage(ChatMessage message, String recipient, boolean forward) {
+        FanOut fanOut = new FanOut(message);
+        try {
+            ClientHandler client = clients.get(recipient);
+            if (client != null) {
+                fanOut.send(client);
+            } else if (forward && cluster.sendPrivate(message, recipient)) {
+                // The recipient's node delivers it, or keeps it if the recipient has just left
+            } else if (message.getData() == null) {
+                keepOffline(message, recipient);
+            } else {
+                logger.warning("Recipient not found: " + recipient);
+            }
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Cannot encode message for " + recipient, e);
+        } finally {
+            fanOut.complete();
+        }
+    }
+
+    /**
+     * Puts a message in an offline user's inbox, or tells the sender it could not be kept.
+     */
+    static void keepOffline(ChatMessage message, String recipient) {
+        if (!inbox.add(recipient, message)) {
+            ClientHandler sender = clients.get(message.getSender());
+            if (sender != null) {
+                sender.sendError(recipient + " is offline and cannot take more messages");
+            }
+            return;
+        }
+        // The recipient may have logged in and emptied the inbox just before the add
         ClientHandler client = clients.get(recipient);
         if (client != null) {
-            client.sendMessage(message);
-        } else {
-            logger.warning("Recipient not found: " + recipient);
+            pool.execute(() -> inbox.drain(client));
         }
     }
 
-    public static synchronized void addClient(String username, ClientHandler clientHandler) {
-        if (clients.containsKey(username)) {
+    public static void addClient(String username, ClientHandler clientHandler) {
+        if (!clients.register(username, clientHandler)) {
             logger.warning("Duplicate username attempt: " + username);
             sendErrorMessage(clientHandler, "Username already taken");
             return;
         }
-        clients.put(username, clientHandler);
-        broadcastUserList();
+        presence.join(clientHandler);
         logger.info("User registered: " + username);
     }
 
-    public static synchronized void removeClient(String username) {
-        ClientHandler handler = clients.remove(username);
-        if (handler != null) {
+    public static void removeClient(String username) {
+        ClientHandler handler = clients.get(username);
+        if (handler != null && clients.unregister(username, handler)) {
             logger.info("User disconnected: " + username);
-            broadcastUserList();
+            presence.leave(username);
         }
     }
 
-    static synchronized void broadcastUserList() {
-        ChatMessage userListMessage = new ChatMessage(MessageType.TEXT, "Server");
-        userListMessage.setText("USERLIST:" + String.join(",", clients.keySet()));
-        broadcastMessage(userListMessage, "Server");
+    static ClientRegistry clients() {
+        return clients;
+    }
+
+    static RateLimiter limits() {
+        return limits;
+    }
+
+    static PresenceService presence() {
+        return presence;
+    }
+
+    static FileRelay files() {
+        return files;
+    }
+
+    static TimingWheel timers() {
+        return timers;
+    }
+
+    static RoomRegistry rooms() {
+        return rooms;
+    }
+
+    static MessageLog history() {
+        return history;
+    }
+
+    static Cluster cluster() {
+        return cluster;
+    }
+
+    /**
+     * Brings a client that just logged in up to date: first its offline inbox, then logged
+     * messages after the sequence number its LOGIN carries, else everything since the
+     * timestamp in its offset, else the last {@link ServerConfig#HISTORY_REPLAY} messages.
+     * Both go out from the pool in pages that wait for the client's queue to drain, so a long
+     * absence neither floods it nor holds up the login.
+     */
+    static void catchUp(ClientHandler client, ChatMessage login) {
+        long until = history.nextSequence();
+        long from;
+        if (login.getSequence() > 0 && login.getSequence() < until) {
+            from = login.getSequence() + 1;
+        } else if (login.getOffset() > 0) {
+            from = history.sequenceSince(login.getOffset());
+        } else {
+            from = Math.max(1, until - ServerConfig.HISTORY_REPLAY);
+        }
+
+        pool.execute(() -> {
+            long inboxFrom = inbox.drain(client);
+            replayHistory(client, from, until, inboxFrom);
+        });
+    }
+
+    /**
+     * Sends logged messages from {@code from} up to {@code until}. Private messages only go
+     * back to the two people in them, and not at all if they came from the recipient's inbox,
+     * which holds every one sent to them from {@code inboxFrom} on.
+     */
+    private static void replayHistory(ClientHandler client, long from, long until, long inboxFrom) {
+        String name = client.getUsername();
+        long next = from;
+        while (next < until && client.isRunning()) {
+            List<MessageLog.Entry> page = history.read(next, until, ServerConfig.HISTORY_PAGE);
+            if (page.isEmpty()) break;
+            for (MessageLog.Entry entry : page) {
+                ChatMessage message = entry.message();
+                String recipient = message.getRecipient();
+                if (recipient == null || name.equals(message.getSender())
+                        || (name.equals(recipient) && entry.sequence() < inboxFrom)) {
+                    client.sendMessage(message);
+                }
+            }
+            next = page.get(page.size() - 1).sequence() + 1;
+            awaitQueue(client);
+        }
+    }
+
+    /**
+     * Waits until the client's queue is at most half full, or it disconnects.
+     */
+    static void awaitQueue(ClientHandler client) {
+        try {
+            while (client.isRunning() && client.getQueueDepth() > ServerConfig.OUTBOUND_CAPACITY / 2) {
+                Thread.sleep(10);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    static boolean isPresenceUpdate(ChatMessage message) {
+        if (message.getType() == MessageType.PRESENCE) return true;
+        return message.getType() == MessageType.TEXT && "Server".equals(message.getSender())
+                && message.getText() != null && message.getText().startsWith("USERLIST:");
     }
 
     private static void sendErrorMessage(ClientHandler handler, String message) {
@@ -91,13 +358,50 @@ public class ServerMain {
         try {
             ChatMessage shutdownMsg = new ChatMessage(MessageType.TEXT, "Server");
             shutdownMsg.setText("Server is shutting down");
-            broadcastMessage(shutdownMsg, "Server");
-            clients.values().forEach(ClientHandler::closeConnection);
+            broadcastLocal(shutdownMsg, "Server");
+            for (ClientHandler client : clients.snapshot()) {
+                client.closeConnection();
+            }
             pool.shutdown();
+            cluster.close();
+            metrics.stop();
 
             logger.info("Server shutdown complete");
         } catch (Exception e) {
             logger.log(Level.SEVERE, "Error during shutdown: " + e.getMessage(), e);
         }
     }
+
+    /**
+     * Hands messages from other nodes to the clients here. Chat messages go into this node's
+     * history first, so users here see them when they catch up; none are sent on again.
+     */
+    private static final class RemoteDelivery implements Cluster.Receiver {
+        @Override
+        public void broadcast(ChatMessage message) {
+            if (message.getType() == MessageType.TEXT) history.append(message);
+            broadcastLocal(message, message.getSender());
+        }
+
+        @Override
+        public void privateMessage(ChatMessage message) {
+            if (message.getType() == MessageType.TEXT) history.append(message);
+            sendPrivateMessage(message, message.getRecipient(), false);
+        }
+
+        @Override
+        public void roomMessage(ChatMessage message) {
+            rooms.deliver(message);
+        }
+
+        @Override
+        public void userJoined(String username) {
+            presence.add(username);
+        }
+
+        @Override
+        public void userLeft(String username) {
+            presence.leave(username);
+        }
+    }
 }
\ No newline at end of file
@@ -0,0 +1,182 @@
+package com.chat.server;
+
+import com.chat.shared.FrameCompression;
+import com.chat.shared.LatencyHistogram;
+import com.chat.shared.MessageType;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Totals since the server started, as served by {@link MetricsEndpoint}: messages received
+ * per type with the time from a frame arriving to the message being queued for every
+ * recipient, bytes in and out, connections, and each logged-in client's traffic and queue.
+ * Room messages are timed until they are handed to their room's shard. Compression figures
+ * cover the whole process, cluster links aside as they do not compress. Throttling counts the
+ * frames held for a user's or an address's send budget, and for how long.
+ */
+final class ServerMetrics {
+    private static final MessageType[] TYPES = MessageType.values();
+    private static final LatencyHistogram[] handled = new LatencyHistogram[TYPES.length];
+    private static final LongAdder bytesIn = new LongAdder();
+    private static final LongAdder bytesOut = new LongAdder();
+    private static final LongAdder opened = new LongAdder();
+    private static final LongAdder closed = new LongAdder();
+    private static final LongAdder throttledByUser = new LongAdder();
+    private static final LongAdder throttledByHost = new LongAdder();
+    private static final LongAdder throttledNanos = new LongAdder();
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999, 1.0};
+    private static final String[] QUANTILE_NAMES = {"p50", "p90", "p99", "p999", "max"};
+
+    static {
+        for (int i = 0; i < TYPES.length; i++) {
+            handled[i] = new LatencyHistogram();
+        }
+    }
+
+    private ServerMetrics() {
+    }
+
+    /**
+     * Records a message handled, its frame having arrived at {@code receivedAt} ({@link System#nanoTime()}).
+     */
+    static void handled(MessageType type, long receivedAt, long now) {
+        handled[type.ordinal()].recordSince(receivedAt, now);
+    }
+
+    static void bytesIn(long bytes) {
+        bytesIn.add(bytes);
+    }
+
+    static void bytesOut(long bytes) {
+        bytesOut.add(bytes);
+    }
+
+    static void connectionOpened() {
+        opened.increment();
+    }
+
+    static void connectionClosed() {
+        closed.increment();
+    }
+
+    /**
+     * Counts a frame held back, by the user's budget or else the address's.
+     */
+    static void throttled(boolean byUser) {
+        (byUser ? throttledByUser : throttledByHost).increment();
+    }
+
+    static void throttledFor(long nanos) {
+        throttledNanos.add(nanos);
+    }
+
+    /**
+     * Plain text, one {@code name{labels} value} per line.
+     */
+    static String text(ClientHandler[] clients) {
+        StringBuilder sb = new StringBuilder(4096);
+        long total = opened.sum();
+        line(sb, "chat_connections_active", total - closed.sum());
+        line(sb, "chat_connections_total", total);
+        line(sb, "chat_bytes_in_total", bytesIn.sum());
+        line(sb, "chat_bytes_out_total", bytesOut.sum());
+        line(sb, "chat_compression_frames_total", FrameCompression.compressedFrames());
+        line(sb, "chat_compression_raw_bytes_total", FrameCompression.rawBytes());
+        line(sb, "chat_compression_compressed_bytes_total", FrameCompression.compressedBytes());
+        line(sb, "chat_compression_incompressible_frames_total", FrameCompression.incompressibleFrames());
+        line(sb, "chat_compression_deflate_us_total", FrameCompression.deflateNanos() / 1000);
+        line(sb, "chat_compression_inflated_frames_total", FrameCompression.inflatedFrames());
+        line(sb, "chat_compression_inflate_us_total", FrameCompression.inflateNanos() / 1000);
+        line(sb, "chat_throttled_total{scope=\"user\"}", throttledByUser.sum());
+        line(sb, "chat_throttled_total{scope=\"ip\"}", throttledByHost.sum());
+        line(sb, "chat_throttled_ms_total", throttledNanos.sum() / 1_000_000);
+        for (int i = 0; i < TYPES.length; i++) {
+            LatencyHistogram.Snapshot snapshot = handled[i].snapshot();
+            if (snapshot.count() == 0) continue;
+            String type = "type=\"" + TYPES[i] + "\"";
+            line(sb, "chat_messages_total{" + type + "}", snapshot.count());
+            for (double quantile : QUANTILES) {
+                line(sb, "chat_handle_latency_us{" + type + ",quantile=\"" + quantile + "\"}", snapshot.percentile(quantile));
+            }
+        }
+        for (ClientHandler client : clients) {
+            String user = "user=\"" + escape(client.getUsername()) + "\"";
+            line(sb, "chat_client_bytes_in{" + user + "}", client.getBytesIn());
+            line(sb, "chat_client_bytes_out{" + user + "}", client.getBytesOut());
+            line(sb, "chat_client_queue_depth{" + user + "}", client.getQueueDepth());
+            line(sb, "chat_client_dropped_frames{" + user + "}", client.getDroppedFrames());
+            line(sb, "chat_client_throttled{" + user + "}", client.getThrottled());
+        }
+        return sb.toString();
+    }
+
+    /**
+     * The same figures as one JSON object.
+     */
+    static String json(ClientHandler[] clients) {
+        StringBuilder sb = new StringBuilder(4096);
+        long total = opened.sum();
+        sb.append("{\"connections\":{\"active\":").append(total - closed.sum())
+                .append(",\"total\":").append(total)
+                .append("},\"bytes\":{\"in\":").append(bytesIn.sum())
+                .append(",\"out\":").append(bytesOut.sum())
+                .append("},\"compression\":{\"frames\":").append(FrameCompression.compressedFrames())
+                .append(",\"rawBytes\":").append(FrameCompression.rawBytes())
+                .append(",\"compressedBytes\":").append(FrameCompression.compressedBytes())
+                .append(",\"incompressibleFrames\":").append(FrameCompression.incompressibleFrames())
+                .append(",\"deflateUs\":").append(FrameCompression.deflateNanos() / 1000)
+                .append(",\"inflatedFrames\":").append(FrameCompression.inflatedFrames())
+                .append(",\"inflateUs\":").append(FrameCompression.inflateNanos() / 1000)
+                .append("},\"throttled\":{\"user\":").append(throttledByUser.sum())
+                .append(",\"ip\":").append(throttledByHost.sum())
+                .append(",\"ms\":").append(throttledNanos.sum() / 1_000_000)
+                .append("},\"messages\":{");
+        boolean first = true;
+        for (int i = 0; i < TYPES.length; i++) {
+            LatencyHistogram.Snapshot snapshot = handled[i].snapshot();
+            if (snapshot.count() == 0) continue;
+            if (!first) sb.append(',');
+            first = false;
+            sb.append('"').append(TYPES[i]).append("\":{\"count\":").append(snapshot.count())
+                    .append(",\"latencyUs\":{");
+            for (int q = 0; q < QUANTILES.length; q++) {
+                if (q > 0) sb.append(',');
+                sb.append('"').append(QUANTILE_NAMES[q]).append("\":").append(snapshot.percentile(QUANTILES[q]));
+            }
+            sb.append("}}");
+        }
+        sb.append("},\"clients\":[");
+        for (int i = 0; i < clients.length; i++) {
+            ClientHandler client = clients[i];
+            if (i > 0) sb.append(',');
+            sb.append("{\"user\":\"").append(escape(client.getUsername()))
+                    .append("\",\"bytesIn\":").append(client.getBytesIn())
+                    .append(",\"bytesOut\":").append(client.getBytesOut())
+                    .append(",\"queueDepth\":").append(client.getQueueDepth())
+                    .append(",\"droppedFrames\":").append(client.getDroppedFrames())
+                    .append(",\"throttled\":").append(client.getThrottled())
+                    .append('}');
+        }
+        return sb.append("]}").toString();
+    }
+
+    private static void line(StringBuilder sb, String name, long value) {
+        sb.append(name).append(' ').append(value).append('\n');
+    }
+
+    // Usernames are client-chosen: keep them from breaking out of a quoted string
+    private static String escape(String value) {
+        if (value == null) return "";
+        StringBuilder sb = new StringBuilder(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                sb.append('\\').append(c);
+            } else if (c < 0x20) {
+                sb.append(String.format("\\u%04x", (int) c));
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,179 @@
+package com.chat.server;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Hashed timing wheel: one thread serving any number of timeouts at a fixed tick resolution.
+ * A timeout lands in the bucket its deadline hashes to, with a count of full turns still to
+ * wait; scheduling and cancelling are O(1), and each tick only looks at one bucket. Tasks run
+ * on the wheel's thread and must be quick: anything more should be handed off.
+ */
+final class TimingWheel {
+    private static final Logger logger = Logger.getLogger(TimingWheel.class.getName());
+    private static final int MAX_TRANSFERS_PER_TICK = 100_000;
+
+    private final long tickNanos;
+    private final Bucket[] buckets;
+    private final int mask;
+    private final Queue<Timeout> incoming = new ConcurrentLinkedQueue<>();
+    private final AtomicLong scheduled = new AtomicLong();
+    private final Thread worker;
+    private final long startTime = System.nanoTime();
+    private long tick; // worker thread only
+
+    /**
+     * A scheduled task, cancellable until it has started.
+     */
+    static final class Timeout {
+        private static final int PENDING = 0;
+        private static final int CANCELLED = 1;
+        private static final int EXPIRED = 2;
+
+        private final Runnable task;
+        private final long deadline; // nanos since the wheel started
+        private final AtomicInteger state = new AtomicInteger(PENDING);
+        private long rounds;
+        private Timeout next;
+        private Timeout prev;
+
+        private Timeout(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        /**
+         * @return false if the task already ran or was cancelled before
+         */
+        boolean cancel() {
+            // Unlinked from its bucket lazily, when the wheel next passes it
+            return state.compareAndSet(PENDING, CANCELLED);
+        }
+    }
+
+    // Doubly linked list of timeouts, touched by the worker thread only
+    private static final class Bucket {
+        Timeout head;
+        Timeout tail;
+
+        void add(Timeout timeout) {
+            if (head == null) {
+                head = tail = timeout;
+            } else {
+                tail.next = timeout;
+                timeout.prev = tail;
+                tail = timeout;
+            }
+        }
+
+        Timeout remove(Timeout timeout) {
+            Timeout next = timeout.next;
+            if (timeout.prev != null) timeout.prev.next = next;
+            if (next != null) next.prev = timeout.prev;
+            if (timeout == head) head = next;
+            if (timeout == tail) tail = timeout.prev;
+            timeout.prev = null;
+            timeout.next = null;
+            return next;
+        }
+    }
+
+    TimingWheel(String name, long tick, TimeUnit unit, int wheelSize) {
+        this.tickNanos = unit.toNanos(tick);
+        int size = Integer.highestOneBit(Math.max(2, wheelSize - 1)) << 1;
+        this.buckets = new Bucket[size];
+        for (int i = 0; i < size; i++) {
+            buckets[i] = new Bucket();
+        }
+        this.mask = size - 1;
+        this.worker = new Thread(this::run, name);
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    static TimingWheel fromConfig() {
+        return new TimingWheel("timing-wheel", ServerConfig.TIMER_TICK, TimeUnit.MILLISECONDS, ServerConfig.TIMER_WHEEL_SIZE);
+    }
+
+    /**
+     * Runs the task once the delay has passed, rounded up to the next tick.
+     */
+    Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+        Timeout timeout = new Timeout(task, System.nanoTime() - startTime + unit.toNanos(Math.max(0, delay)));
+        scheduled.incrementAndGet();
+        incoming.add(timeout);
+        return timeout;
+    }
+
+    /**
+     * Timeouts scheduled and not yet run or passed over after cancelling.
+     */
+    long size() {
+        return scheduled.get();
+    }
+
+    private void run() {
+        while (true) {
+            long deadline = tickNanos * (tick + 1);
+            long sleep = deadline - (System.nanoTime() - startTime);
+            if (sleep > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(sleep);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                continue;
+            }
+
+            transferIncoming();
+            expire(buckets[(int) (tick & mask)], deadline);
+            tick++;
+        }
+    }
+
+    private void transferIncoming() {
+        for (int i = 0; i < MAX_TRANSFERS_PER_TICK; i++) {
+            Timeout timeout = incoming.poll();
+            if (timeout == null) return;
+            if (timeout.state.get() == Timeout.CANCELLED) {
+                scheduled.decrementAndGet();
+                continue;
+            }
+
+            long ticks = Math.max(timeout.deadline / tickNanos, tick); // already due: this tick
+            timeout.rounds = (ticks - tick) / buckets.length;
+            buckets[(int) (ticks & mask)].add(timeout);
+        }
+    }
+
+    private void expire(Bucket bucket, long deadline) {
+        Timeout timeout = bucket.head;
+        while (timeout != null) {
+            if (timeout.state.get() == Timeout.CANCELLED) {
+                timeout = bucket.remove(timeout);
+                scheduled.decrementAndGet();
+            } else if (timeout.rounds > 0) {
+                timeout.rounds--;
+                timeout = timeout.next;
+            } else if (timeout.deadline <= deadline) {
+                Timeout expired = timeout;
+                timeout = bucket.remove(timeout);
+                scheduled.decrementAndGet();
+                if (expired.state.compareAndSet(Timeout.PENDING, Timeout.EXPIRED)) {
+                    try {
+                        expired.task.run();
+                    } catch (RuntimeException e) {
+                        logger.log(Level.SEVERE, "Timer task failed", e);
+                    }
+                }
+            } else {
+                timeout = timeout.next;
+            }
+        }
+    }
+}
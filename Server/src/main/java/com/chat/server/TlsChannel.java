@@ -0,0 +1,265 @@
+package com.chat.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLSession;
+
+/**
+ * TLS over a non-blocking {@link SocketChannel}, for {@link NioConnection}: reads decrypt into
+ * the connection's read buffer, writes encrypt its gathered frames, several records to a
+ * socket write. Handshake messages go out as reads and flushes come along. The engine's slow
+ * handshake steps (key exchange, signatures) run on a small shared pool instead of the event
+ * loop, so a burst of new connections does not hold up the clients already on it; the
+ * connection carries on once they are done.
+ */
+final class TlsChannel {
+    private static final Logger logger = Logger.getLogger(TlsChannel.class.getName());
+    private static final ByteBuffer[] NONE = {ByteBuffer.allocate(0)};
+    private static final int RECORDS_PER_WRITE = 4;
+    private static final ExecutorService handshakeTasks = Executors.newFixedThreadPool(
+            Math.max(2, Runtime.getRuntime().availableProcessors()), r -> {
+                Thread thread = new Thread(r, "tls-handshake");
+                thread.setDaemon(true);
+                return thread;
+            });
+
+    private final SocketChannel channel;
+    private final SSLEngine engine;
+    private final EventLoop loop;
+    private final Runnable onTasksDone;
+    // All three are only touched on the event loop. netIn is kept ready for reading into,
+    // appIn and netOut for taking from.
+    private ByteBuffer netIn;
+    private ByteBuffer appIn;
+    private final ByteBuffer netOut;
+    private boolean tasksRunning;
+    private boolean inboundClosed;
+
+    /**
+     * @param onTasksDone run on the loop once delegated handshake tasks have finished
+     */
+    TlsChannel(SocketChannel channel, SSLEngine engine, EventLoop loop, Runnable onTasksDone) throws SSLException {
+        this.channel = channel;
+        this.engine = engine;
+        this.loop = loop;
+        this.onTasksDone = onTasksDone;
+        SSLSession session = engine.getSession();
+        this.netIn = ByteBuffer.allocate(session.getPacketBufferSize());
+        this.appIn = ByteBuffer.allocate(session.getApplicationBufferSize()).flip();
+        this.netOut = ByteBuffer.allocate(session.getPacketBufferSize() * RECORDS_PER_WRITE).flip();
+        engine.beginHandshake();
+    }
+
+    /**
+     * Reads from the socket at most once, and decrypts what has arrived into {@code dst}.
+     *
+     * @return the bytes put in {@code dst}, or -1 once the client has closed and nothing is left
+     */
+    int read(ByteBuffer dst) throws IOException {
+        int start = dst.position();
+        boolean readSocket = false;
+        while (true) {
+            transfer(appIn, dst);
+            if (!dst.hasRemaining()) break;
+            if (!tasksRunning && unwrap()) continue;
+            if (readSocket || inboundClosed) break;
+            readSocket = true;
+            if (channel.read(netIn) < 0) {
+                inboundClosed = true;
+                try {
+                    engine.closeInbound();
+                } catch (SSLException e) {
+                    // Closed without close_notify: what was read is all there is either way
+                }
+            }
+        }
+        int read = dst.position() - start;
+        return read == 0 && inboundClosed && !appIn.hasRemaining() ? -1 : read;
+    }
+
+    /**
+     * Whether decrypted or received bytes are left over that a {@link #read} would get to
+     * without the socket becoming readable again.
+     */
+    boolean hasBufferedInput() {
+        return appIn.hasRemaining() || netIn.position() > 0;
+    }
+
+    /**
+     * Encrypts as much of the buffers as the socket takes and writes it.
+     *
+     * @return the bytes of the buffers consumed, which are all on their way: if some are still
+     *         {@link #hasPendingOutput() pending}, the caller waits for the socket to be writable
+     */
+    long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+        if (!flush() || isHandshaking()) return 0;
+        long consumed = 0;
+        while (hasRemaining(srcs, offset, length)) {
+            SSLEngineResult result = wrap(srcs, offset, length);
+            consumed += result.bytesConsumed();
+            if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                throw new SSLException("TLS session closed");
+            }
+            if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+                channel.write(netOut);
+                if (netOut.hasRemaining()) return consumed;
+            } else if (result.getHandshakeStatus() != HandshakeStatus.NOT_HANDSHAKING) {
+                break; // e.g. a key update, which flush() carries out
+            }
+        }
+        flush();
+        return consumed;
+    }
+
+    /**
+     * Carries the handshake as far as it goes without the client, and writes out what has been
+     * encrypted.
+     *
+     * @return true once nothing is left to write
+     */
+    boolean flush() throws IOException {
+        while (true) {
+            if (!tasksRunning) handshake();
+            if (!netOut.hasRemaining()) return true;
+            channel.write(netOut);
+            if (netOut.hasRemaining()) return false;
+        }
+    }
+
+    boolean hasPendingOutput() {
+        return netOut.hasRemaining();
+    }
+
+    /**
+     * Whether application data has to wait: the handshake is still waiting for the client or
+     * for delegated tasks.
+     */
+    boolean isHandshaking() {
+        return tasksRunning || engine.getHandshakeStatus() != HandshakeStatus.NOT_HANDSHAKING;
+    }
+
+    /**
+     * Sends close_notify if the socket takes it straight away.
+     */
+    void close() {
+        engine.closeOutbound();
+        try {
+            wrap(NONE, 0, 1);
+            channel.write(netOut);
+        } catch (IOException e) {
+            logger.log(Level.FINE, "Cannot send close_notify", e);
+        }
+    }
+
+    // Decrypts one record from netIn into appIn; true if that got anywhere
+    private boolean unwrap() throws IOException {
+        if (netIn.position() == 0) return false;
+        SSLEngineResult result;
+        netIn.flip();
+        appIn.compact();
+        try {
+            result = engine.unwrap(netIn, appIn);
+        } finally {
+            netIn.compact();
+            appIn.flip();
+        }
+        switch (result.getStatus()) {
+            case BUFFER_UNDERFLOW -> {
+                int packetSize = engine.getSession().getPacketBufferSize();
+                if (netIn.capacity() < packetSize) {
+                    netIn = ByteBuffer.allocate(packetSize).put(netIn.flip());
+                }
+                return false;
+            }
+            case BUFFER_OVERFLOW -> {
+                // Only unwrapped into once drained, so the session wants larger records
+                appIn = ByteBuffer.allocate(engine.getSession().getApplicationBufferSize()).flip();
+                return true;
+            }
+            case CLOSED -> {
+                inboundClosed = true;
+                return false;
+            }
+            default -> {
+                handshake();
+                return result.bytesConsumed() > 0 || result.bytesProduced() > 0;
+            }
+        }
+    }
+
+    private void handshake() throws IOException {
+        while (true) {
+            switch (engine.getHandshakeStatus()) {
+                case NEED_WRAP -> {
+                    SSLEngineResult result = wrap(NONE, 0, 1);
+                    if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+                        channel.write(netOut);
+                        if (netOut.hasRemaining()) return;
+                    } else if (result.getStatus() == SSLEngineResult.Status.CLOSED || result.bytesProduced() == 0) {
+                        return;
+                    }
+                }
+                case NEED_TASK -> {
+                    runTasks();
+                    return;
+                }
+                default -> {
+                    return;
+                }
+            }
+        }
+    }
+
+    private void runTasks() {
+        tasksRunning = true;
+        handshakeTasks.execute(() -> {
+            try {
+                Runnable task;
+                while ((task = engine.getDelegatedTask()) != null) {
+                    task.run();
+                }
+            } catch (RuntimeException e) {
+                // The engine reports the failure on its next wrap or unwrap
+                logger.log(Level.FINE, "TLS handshake task failed", e);
+            } finally {
+                loop.execute(() -> {
+                    tasksRunning = false;
+                    onTasksDone.run();
+                });
+            }
+        });
+    }
+
+    private SSLEngineResult wrap(ByteBuffer[] srcs, int offset, int length) throws SSLException {
+        netOut.compact();
+        try {
+            return engine.wrap(srcs, offset, length, netOut);
+        } finally {
+            netOut.flip();
+        }
+    }
+
+    private static void transfer(ByteBuffer from, ByteBuffer to) {
+        int n = Math.min(from.remaining(), to.remaining());
+        if (n == 0) return;
+        to.put(to.position(), from, from.position(), n);
+        to.position(to.position() + n);
+        from.position(from.position() + n);
+    }
+
+    private static boolean hasRemaining(ByteBuffer[] buffers, int offset, int length) {
+        for (int i = offset; i < offset + length; i++) {
+            if (buffers[i].hasRemaining()) return true;
+        }
+        return false;
+    }
+}
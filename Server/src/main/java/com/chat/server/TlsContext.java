@@ -0,0 +1,71 @@
+package com.chat.server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ServerSocket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLServerSocket;
+import javax.net.ssl.SSLSessionContext;
+
+/**
+ * The server's TLS setup: its key and certificate, the protocols it speaks, and the session
+ * cache that lets a client that reconnects resume its session instead of running a full
+ * handshake. TLS 1.3 resumes from session tickets, so the cache costs the server no memory for
+ * those; the cache serves TLS 1.2. Tickets are only good for the life of the server process.
+ */
+final class TlsContext {
+    private final SSLContext context;
+    private final String[] protocols;
+
+    TlsContext(SSLContext context, String[] protocols, int sessionCacheSize, int sessionTimeout) {
+        this.context = context;
+        this.protocols = protocols;
+        SSLSessionContext sessions = context.getServerSessionContext();
+        sessions.setSessionCacheSize(sessionCacheSize);
+        sessions.setSessionTimeout(sessionTimeout);
+    }
+
+    /**
+     * @return null when no key store is configured, i.e. the server runs in plain text
+     */
+    static TlsContext fromConfig() throws IOException, GeneralSecurityException {
+        if (ServerConfig.TLS_KEY_STORE.isEmpty()) return null;
+        char[] password = ServerConfig.TLS_KEY_STORE_PASSWORD.toCharArray();
+        KeyStore keys = KeyStore.getInstance("PKCS12");
+        try (InputStream in = Files.newInputStream(Path.of(ServerConfig.TLS_KEY_STORE))) {
+            keys.load(in, password);
+        }
+        KeyManagerFactory keyManagers = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        keyManagers.init(keys, password);
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(keyManagers.getKeyManagers(), null, null);
+        return new TlsContext(context, ServerConfig.TLS_PROTOCOLS.split(","),
+                ServerConfig.TLS_SESSION_CACHE, ServerConfig.TLS_SESSION_TIMEOUT);
+    }
+
+    ServerSocket newServerSocket(int port) throws IOException {
+        SSLServerSocket socket = (SSLServerSocket) context.getServerSocketFactory().createServerSocket(port);
+        socket.setSSLParameters(parameters());
+        return socket;
+    }
+
+    SSLEngine newEngine() {
+        SSLEngine engine = context.createSSLEngine();
+        engine.setUseClientMode(false);
+        engine.setSSLParameters(parameters());
+        return engine;
+    }
+
+    private SSLParameters parameters() {
+        SSLParameters parameters = context.getDefaultSSLParameters();
+        parameters.setProtocols(protocols);
+        return parameters;
+    }
+}
@@ -0,0 +1,48 @@
+package com.chat.server;
+
+/**
+ * Allowance of some quantity per second, refilled continuously up to a burst. A take may
+ * overdraw it, so a frame larger than the burst still goes through once the bucket is full,
+ * and the debt is paid back before the next one.
+ */
+final class TokenBucket {
+    private final double perNano;
+    private final double burst;
+    private double tokens;
+    private long refilledAt;
+
+    TokenBucket(long perSecond, long burst) {
+        this.perNano = perSecond / 1e9;
+        this.burst = Math.max(1, burst);
+        this.tokens = this.burst;
+        this.refilledAt = System.nanoTime();
+    }
+
+    /**
+     * Takes {@code amount} if it is available (at most the burst need be), in one step so two
+     * threads cannot both see room for one.
+     *
+     * @return 0 if taken, else the nanoseconds until it would be, having taken nothing
+     */
+    synchronized long tryTake(long amount, long now) {
+        refill(now);
+        double missing = Math.min(amount, burst) - tokens;
+        if (missing > 0) return (long) Math.ceil(missing / perNano);
+        tokens -= amount;
+        return 0;
+    }
+
+    /**
+     * Gives back what {@link #tryTake} took, when another bucket the same frame needed refused it.
+     */
+    synchronized void refund(long amount) {
+        tokens = Math.min(burst, tokens + amount);
+    }
+
+    // now may predate another thread's refill: time never runs backwards here
+    private void refill(long now) {
+        if (now <= refilledAt) return;
+        tokens = Math.min(burst, tokens + (now - refilledAt) * perNano);
+        refilledAt = now;
+    }
+}
@@ -0,0 +1,44 @@
+package com.chat.server;
+
+import com.chat.shared.LatencyHistogram;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Socket write costs since the last {@link #summary()}: write syscalls per frame sent, and
+ * the time frames spend between being queued and being handed to the socket.
+ */
+final class WriteMetrics {
+    private static final LongAdder writes = new LongAdder();
+    private static final LongAdder frames = new LongAdder();
+    private static final LatencyHistogram latencies = new LatencyHistogram();
+
+    private WriteMetrics() {
+    }
+
+    static void recordWrite() {
+        writes.increment();
+    }
+
+    /**
+     * Records one frame handed to the socket, queued at {@code queuedAt} ({@link System#nanoTime()}).
+     */
+    static void recordSent(long queuedAt, long now) {
+        frames.increment();
+        latencies.recordSince(queuedAt, now);
+    }
+
+    /**
+     * Reports and resets the counts.
+     */
+    static String summary() {
+        long writeCount = writes.sumThenReset();
+        long frameCount = frames.sumThenReset();
+        LatencyHistogram.Snapshot sent = latencies.snapshotAndReset();
+        return String.format("writes: frames=%d syscalls/frame=%.2f send latency p50=%dus p99=%dus max=%dus",
+                frameCount,
+                writeCount / (double) Math.max(1, frameCount),
+                sent.percentile(0.50),
+                sent.percentile(0.99),
+                sent.max());
+    }
+}
@@ -1,6 +1,7 @@
 module Server {
     requires java.desktop;
     requires java.logging;
+    requires jdk.httpserver;
     requires Shared;
 
     exports com.chat.server;
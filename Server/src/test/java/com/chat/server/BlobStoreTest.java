@@ -0,0 +1,64 @@
+package com.chat.server;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class BlobStoreTest {
+    private static final String HASH = "9f86d081884c7d659a2feaa0c55ad015a3bf4f1b2b0b822cd15d6c15b0f00a08";
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void privateFilesAreReadableByOwnerAndRecipientOnly() throws IOException {
+        BlobStore store = storeWithBlob();
+
+        store.share(HASH, "bob");
+
+        assertTrue(store.readable(HASH, "alice"));
+        assertTrue(store.readable(HASH, "bob"));
+        assertFalse(store.readable(HASH, "carol"));
+    }
+
+    @Test
+    void aUserNamedLikeThePublicMarkerGetsNoPublicShare() throws IOException {
+        BlobStore store = storeWithBlob();
+
+        store.share(HASH, "*");
+        store.share(HASH, "everyone");
+
+        assertFalse(store.readable(HASH, "carol"));
+        assertFalse(new BlobStore(directory, 1 << 20).readable(HASH, "carol"));
+    }
+
+    @Test
+    void publicSharesSurviveARestart() throws IOException {
+        BlobStore store = storeWithBlob();
+
+        store.share(HASH, null);
+
+        assertTrue(store.readable(HASH, "carol"));
+        BlobStore reopened = new BlobStore(directory, 1 << 20);
+        assertTrue(reopened.readable(HASH, "carol"));
+        assertTrue(reopened.hasCopy(HASH, 4, "alice"));
+        assertFalse(reopened.hasCopy(HASH, 4, "carol"));
+    }
+
+    private BlobStore storeWithBlob() throws IOException {
+        BlobStore store = new BlobStore(directory, 1 << 20);
+        assertTrue(store.reserve(4));
+        try (FileChannel part = store.createPart(HASH)) {
+            part.write(ByteBuffer.wrap(new byte[]{1, 2, 3, 4}));
+        }
+        store.commit(HASH, 4, "alice");
+        return store;
+    }
+}
@@ -0,0 +1,79 @@
+package com.chat.server;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class FrameTest {
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void writesEverySegmentInOrder() throws Exception {
+        ByteBuffer direct = ByteBuffer.allocateDirect(20_000);
+        for (int i = 0; i < direct.capacity(); i++) direct.put(i, (byte) i);
+        Frame frame = new Frame(new ByteBuffer[]{ByteBuffer.wrap(new byte[]{1, 2, 3}), direct}, false, null);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        frame.writeTo(out);
+        frame.writeTo(out); // each write takes fresh views
+
+        byte[] written = out.toByteArray();
+        assertEquals(2 * frame.length(), written.length);
+        assertEquals(3, written[2]);
+        assertEquals((byte) 19_999, written[3 + 19_999]);
+        assertFalse(frame.isFileBacked());
+    }
+
+    @Test
+    void transfersTheFileBackedPayloadAfterTheHeader() throws Exception {
+        byte[] content = new byte[200_000];
+        for (int i = 0; i < content.length; i++) content[i] = (byte) (i * 31);
+        Path blob = Files.write(directory.resolve("blob"), content);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        try (FileChannel file = FileChannel.open(blob, StandardOpenOption.READ)) {
+            ByteBuffer payload = file.map(FileChannel.MapMode.READ_ONLY, 65_536, 70_000);
+            Frame frame = new Frame(new ByteBuffer[]{ByteBuffer.wrap(new byte[]{9, 8, 7}), payload}, file, 65_536, null);
+            assertTrue(frame.isFileBacked());
+            assertEquals(70_003, frame.length());
+
+            frame.transferTo(out, Channels.newChannel(out));
+        }
+
+        byte[] expected = new byte[70_003];
+        expected[0] = 9;
+        expected[1] = 8;
+        expected[2] = 7;
+        System.arraycopy(content, 65_536, expected, 3, 70_000);
+        assertArrayEquals(expected, out.toByteArray());
+    }
+
+    @Test
+    void runsOnReleaseOnceTheLastReferenceIsReleased() {
+        AtomicInteger released = new AtomicInteger();
+        Frame frame = new Frame(new ByteBuffer[]{ByteBuffer.allocate(1)}, false, released::incrementAndGet);
+
+        frame.retain();
+        frame.release();
+        assertEquals(0, released.get());
+        frame.release();
+        assertEquals(1, released.get());
+        assertThrows(IllegalStateException.class, frame::release);
+    }
+}
@@ -0,0 +1,169 @@
+package com.chat.server;
+
+import com.chat.shared.ChatMessage;
+import com.chat.shared.MessageType;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class MessageLogTest {
+    private static final int SEGMENT_BYTES = 64 * 1024;
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void readsBackWhatWasAppended() {
+        MessageLog log = open();
+        ChatMessage file = message("photo");
+        file.setData(new byte[]{1, 2, 3});
+
+        assertEquals(1, log.append(message("one")));
+        assertEquals(2, log.append(file));
+        assertEquals(3, log.append(message("three")));
+
+        List<MessageLog.Entry> entries = log.read(1, Long.MAX_VALUE, 10);
+        assertEquals(List.of("one", "photo", "three"), texts(entries));
+        assertEquals(2, entries.get(1).message().getSequence());
+        // File data is not logged, and the caller's message keeps it
+        assertNull(entries.get(1).message().getData());
+        assertEquals(3, file.getData().length);
+
+        assertEquals(List.of("photo"), texts(log.read(2, 3, 10)));
+        assertEquals(List.of("one", "photo"), texts(log.read(0, Long.MAX_VALUE, 2)));
+    }
+
+    @Test
+    void reopensPastThePreallocatedTail() {
+        MessageLog log = open();
+        for (int i = 1; i <= 3; i++) log.append(message("m" + i));
+
+        MessageLog reopened = open();
+
+        assertEquals(4, reopened.nextSequence());
+        assertEquals(List.of("m1", "m2", "m3"), texts(reopened.read(1, Long.MAX_VALUE, 10)));
+        assertEquals(4, reopened.append(message("m4")));
+        assertEquals(List.of("m1", "m2", "m3", "m4"), texts(reopened.read(1, Long.MAX_VALUE, 10)));
+    }
+
+    @Test
+    void dropsARecordThatFailsItsChecksum() throws IOException {
+        MessageLog log = open();
+        for (int i = 1; i <= 3; i++) log.append(message("m" + i));
+        Path segment = onlySegment();
+        // Flip a byte in the body of the last record
+        long last = recordPositions(segment).get(2);
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer b = ByteBuffer.allocate(1);
+            channel.read(b, last + 30);
+            b.put(0, (byte) (b.get(0) ^ 0x40)).rewind();
+            channel.write(b, last + 30);
+        }
+
+        MessageLog reopened = open();
+
+        assertEquals(3, reopened.nextSequence());
+        assertEquals(List.of("m1", "m2"), texts(reopened.read(1, Long.MAX_VALUE, 10)));
+        assertEquals(3, reopened.append(message("again")));
+        assertEquals(List.of("m1", "m2", "again"), texts(reopened.read(1, Long.MAX_VALUE, 10)));
+    }
+
+    @Test
+    void dropsATornLastRecord() throws IOException {
+        MessageLog log = open();
+        for (int i = 1; i <= 3; i++) log.append(message("m" + i));
+        Path segment = onlySegment();
+        long last = recordPositions(segment).get(2);
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.WRITE)) {
+            channel.truncate(last + 10);
+        }
+
+        MessageLog reopened = open();
+
+        assertEquals(3, reopened.nextSequence());
+        assertEquals(List.of("m1", "m2"), texts(reopened.read(1, Long.MAX_VALUE, 10)));
+    }
+
+    @Test
+    void dropsGarbageAfterTheLastRecord() throws IOException {
+        MessageLog log = open();
+        for (int i = 1; i <= 2; i++) log.append(message("m" + i));
+        Path segment = onlySegment();
+        long end = recordPositions(segment).get(2);
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.wrap(new byte[]{0, 0, 0, 5, 1, 2, 3, 4}), end);
+        }
+
+        MessageLog reopened = open();
+
+        assertEquals(3, reopened.nextSequence());
+        assertEquals(List.of("m1", "m2"), texts(reopened.read(1, Long.MAX_VALUE, 10)));
+    }
+
+    @Test
+    void recoversAcrossSegments() throws IOException {
+        MessageLog log = new MessageLog(directory, 256, 0, Long.MAX_VALUE / 2, Long.MAX_VALUE);
+        List<String> expected = new ArrayList<>();
+        for (int i = 1; i <= 50; i++) {
+            log.append(message("m" + i));
+            expected.add("m" + i);
+        }
+        try (Stream<Path> files = Files.list(directory)) {
+            assertTrue(files.count() > 1);
+        }
+
+        MessageLog reopened = new MessageLog(directory, 256, 0, Long.MAX_VALUE / 2, Long.MAX_VALUE);
+
+        assertEquals(51, reopened.nextSequence());
+        assertEquals(expected, texts(reopened.read(1, Long.MAX_VALUE, 100)));
+        assertEquals(expected.subList(39, 50), texts(reopened.read(40, Long.MAX_VALUE, 100)));
+    }
+
+    private MessageLog open() {
+        return new MessageLog(directory, SEGMENT_BYTES, 0, Long.MAX_VALUE / 2, Long.MAX_VALUE);
+    }
+
+    private Path onlySegment() throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.findFirst().orElseThrow();
+        }
+    }
+
+    /**
+     * Where each record starts, followed by where the records end.
+     */
+    private static List<Long> recordPositions(Path segment) throws IOException {
+        ByteBuffer bytes = ByteBuffer.wrap(Files.readAllBytes(segment));
+        List<Long> positions = new ArrayList<>();
+        int position = 0;
+        while (position + 24 <= bytes.limit() && bytes.getLong(position + 8) != 0) {
+            positions.add((long) position);
+            position += 24 + bytes.getInt(position);
+        }
+        positions.add((long) position);
+        return positions;
+    }
+
+    private static ChatMessage message(String text) {
+        ChatMessage message = new ChatMessage(MessageType.TEXT, "alice", System.currentTimeMillis());
+        message.setText(text);
+        return message;
+    }
+
+    private static List<String> texts(List<MessageLog.Entry> entries) {
+        return entries.stream().map(entry -> entry.message().getText()).toList();
+    }
+}
@@ -0,0 +1,139 @@
+package com.chat.server;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class OutboundQueueTest {
+    private final AtomicInteger released = new AtomicInteger();
+
+    @Test
+    void dropOldestMakesRoomForTheNewFrame() {
+        OutboundQueue queue = new OutboundQueue(2, Long.MAX_VALUE, OutboundQueue.OverflowPolicy.DROP_OLDEST);
+        Frame first = frame(10, false);
+        Frame second = frame(10, false);
+        Frame third = frame(10, false);
+
+        assertTrue(queue.offer(first));
+        assertTrue(queue.offer(second));
+        assertTrue(queue.offer(third));
+
+        assertEquals(1, queue.dropped());
+        assertEquals(1, released.get());
+        assertSame(second, queue.poll());
+        assertSame(third, queue.poll());
+        assertNull(queue.poll());
+    }
+
+    @Test
+    void dropOldestKeepsWithinTheByteLimit() {
+        OutboundQueue queue = new OutboundQueue(100, 25, OutboundQueue.OverflowPolicy.DROP_OLDEST);
+        queue.offer(frame(10, false));
+        queue.offer(frame(10, false));
+        Frame big = frame(20, false);
+
+        assertTrue(queue.offer(big));
+
+        assertEquals(2, queue.dropped());
+        assertEquals(20, queue.queuedBytes());
+        assertSame(big, queue.poll());
+        assertEquals(0, queue.queuedBytes());
+    }
+
+    @Test
+    void aFrameOverTheByteLimitStillGoesThroughAnEmptyQueue() {
+        OutboundQueue queue = new OutboundQueue(10, 100, OutboundQueue.OverflowPolicy.DISCONNECT);
+        Frame huge = frame(1000, false);
+
+        assertTrue(queue.offer(huge));
+
+        assertEquals(1, queue.depth());
+        assertSame(huge, queue.poll());
+    }
+
+    @Test
+    void dropPresenceDropsQueuedPresenceUpdatesFirst() {
+        OutboundQueue queue = new OutboundQueue(3, Long.MAX_VALUE, OutboundQueue.OverflowPolicy.DROP_PRESENCE);
+        Frame chat = frame(10, false);
+        Frame presence = frame(10, true);
+        Frame reply = frame(10, false);
+        Frame next = frame(10, false);
+        queue.offer(chat);
+        queue.offer(presence);
+        queue.offer(reply);
+
+        assertTrue(queue.offer(next));
+
+        assertEquals(1, queue.dropped());
+        assertEquals(1, released.get());
+        assertSame(chat, queue.poll());
+        assertSame(reply, queue.poll());
+        assertSame(next, queue.poll());
+    }
+
+    @Test
+    void dropPresenceGivesUpWhenOnlyChatIsQueued() {
+        OutboundQueue queue = new OutboundQueue(2, Long.MAX_VALUE, OutboundQueue.OverflowPolicy.DROP_PRESENCE);
+        queue.offer(frame(10, false));
+        queue.offer(frame(10, false));
+
+        assertFalse(queue.offer(frame(10, false)));
+
+        assertEquals(0, queue.depth());
+        assertEquals(0, queue.queuedBytes());
+        assertEquals(3, released.get());
+    }
+
+    @Test
+    void disconnectEmptiesTheQueueOnOverflow() {
+        OutboundQueue queue = new OutboundQueue(2, Long.MAX_VALUE, OutboundQueue.OverflowPolicy.DISCONNECT);
+        queue.offer(frame(10, true));
+        queue.offer(frame(10, false));
+
+        assertFalse(queue.offer(frame(10, true)));
+
+        assertEquals(0, queue.depth());
+        assertEquals(0, queue.dropped());
+        assertEquals(3, released.get());
+    }
+
+    @Test
+    void takeDrainsAClosedQueueThenReturnsNull() throws Exception {
+        OutboundQueue queue = new OutboundQueue(10, Long.MAX_VALUE, OutboundQueue.OverflowPolicy.DISCONNECT);
+        Frame queued = frame(10, false);
+        queue.offer(queued);
+        queue.close();
+
+        // Frames offered after closing are released rather than queued
+        assertTrue(queue.offer(frame(10, false)));
+        assertEquals(1, released.get());
+
+        assertSame(queued, queue.take());
+        assertNull(queue.take());
+        assertNull(queue.poll(1_000_000));
+    }
+
+    @Test
+    void clearReleasesEverythingQueued() {
+        OutboundQueue queue = new OutboundQueue(10, Long.MAX_VALUE, OutboundQueue.OverflowPolicy.DISCONNECT);
+        queue.offer(frame(10, false));
+        queue.offer(frame(10, true));
+
+        queue.clear();
+
+        assertEquals(2, released.get());
+        assertEquals(0, queue.depth());
+        assertEquals(0, queue.queuedBytes());
+    }
+
+    private Frame frame(int length, boolean presence) {
+        return new Frame(new ByteBuffer[]{ByteBuffer.allocate(length)}, presence, released::incrementAndGet);
+    }
+}
@@ -0,0 +1,118 @@
+package com.chat.server;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TimingWheelTest {
+
+    @Test
+    void runsTheTaskOnceTheDelayHasPassed() throws Exception {
+        TimingWheel wheel = new TimingWheel("test-wheel", 10, TimeUnit.MILLISECONDS, 16);
+        CountDownLatch ran = new CountDownLatch(1);
+        long start = System.nanoTime();
+
+        wheel.schedule(ran::countDown, 50, TimeUnit.MILLISECONDS);
+
+        assertTrue(ran.await(5, TimeUnit.SECONDS));
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(50));
+    }
+
+    @Test
+    void waitsFullTurnsForDelaysLongerThanTheWheel() throws Exception {
+        // Four buckets of 10 ms: 110 ms goes round the wheel twice before it is due
+        TimingWheel wheel = new TimingWheel("test-wheel", 10, TimeUnit.MILLISECONDS, 4);
+        CountDownLatch ran = new CountDownLatch(1);
+        long start = System.nanoTime();
+
+        wheel.schedule(ran::countDown, 110, TimeUnit.MILLISECONDS);
+
+        assertTrue(ran.await(5, TimeUnit.SECONDS));
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(110));
+    }
+
+    @Test
+    void runsOverdueTasksAtTheNextTick() throws Exception {
+        TimingWheel wheel = new TimingWheel("test-wheel", 10, TimeUnit.MILLISECONDS, 16);
+        CountDownLatch ran = new CountDownLatch(2);
+
+        wheel.schedule(ran::countDown, 0, TimeUnit.MILLISECONDS);
+        wheel.schedule(ran::countDown, -5, TimeUnit.MILLISECONDS);
+
+        assertTrue(ran.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void cancelledTasksNeverRun() throws Exception {
+        TimingWheel wheel = new TimingWheel("test-wheel", 10, TimeUnit.MILLISECONDS, 16);
+        AtomicInteger runs = new AtomicInteger();
+        CountDownLatch after = new CountDownLatch(1);
+
+        TimingWheel.Timeout timeout = wheel.schedule(runs::incrementAndGet, 30, TimeUnit.MILLISECONDS);
+        assertTrue(timeout.cancel());
+        assertFalse(timeout.cancel());
+        wheel.schedule(after::countDown, 100, TimeUnit.MILLISECONDS);
+
+        assertTrue(after.await(5, TimeUnit.SECONDS));
+        assertEquals(0, runs.get());
+        assertEquals(0, wheel.size());
+    }
+
+    @Test
+    void cannotCancelATaskThatRan() throws Exception {
+        TimingWheel wheel = new TimingWheel("test-wheel", 10, TimeUnit.MILLISECONDS, 16);
+        CountDownLatch ran = new CountDownLatch(1);
+
+        TimingWheel.Timeout timeout = wheel.schedule(ran::countDown, 10, TimeUnit.MILLISECONDS);
+
+        assertTrue(ran.await(5, TimeUnit.SECONDS));
+        assertFalse(timeout.cancel());
+    }
+
+    @Test
+    void keepsGoingAfterATaskFails() throws Exception {
+        TimingWheel wheel = new TimingWheel("test-wheel", 10, TimeUnit.MILLISECONDS, 16);
+        CountDownLatch ran = new CountDownLatch(1);
+
+        wheel.schedule(() -> {
+            throw new IllegalStateException("expected by the test");
+        }, 10, TimeUnit.MILLISECONDS);
+        wheel.schedule(ran::countDown, 50, TimeUnit.MILLISECONDS);
+
+        assertTrue(ran.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void servesAHundredThousandTimeouts() throws Exception {
+        TimingWheel wheel = new TimingWheel("test-wheel", 5, TimeUnit.MILLISECONDS, 8);
+        int count = 100_000;
+        CountDownLatch ran = new CountDownLatch(count / 2);
+        AtomicInteger early = new AtomicInteger();
+        AtomicInteger cancelledRuns = new AtomicInteger();
+
+        for (int i = 0; i < count; i++) {
+            long delay = ThreadLocalRandom.current().nextLong(300);
+            if (i % 2 == 0) {
+                long due = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delay);
+                wheel.schedule(() -> {
+                    if (System.nanoTime() < due) early.incrementAndGet();
+                    ran.countDown();
+                }, delay, TimeUnit.MILLISECONDS);
+            } else {
+                // Half are cancelled, as most idle timeouts are
+                wheel.schedule(cancelledRuns::incrementAndGet, delay + 1, TimeUnit.MILLISECONDS).cancel();
+            }
+        }
+
+        assertTrue(ran.await(30, TimeUnit.SECONDS));
+        assertEquals(0, early.get());
+        assertEquals(0, cancelledRuns.get());
+    }
+}
@@ -0,0 +1,94 @@
+package com.chat.server;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TokenBucketTest {
+    private static final long MS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    // 100 per second, so one token every 10 ms
+    private final TokenBucket bucket = new TokenBucket(100, 10);
+    private final long start = System.nanoTime();
+
+    @Test
+    void startsFull() {
+        assertEquals(0, bucket.tryTake(10, start));
+        assertWaits(10 * MS, bucket.tryTake(1, start));
+    }
+
+    @Test
+    void refillsOverTime() {
+        bucket.tryTake(10, start);
+
+        assertWaits(50 * MS, bucket.tryTake(5, start));
+        assertEquals(0, bucket.tryTake(5, start + 50 * MS));
+        assertWaits(10 * MS, bucket.tryTake(1, start + 50 * MS));
+    }
+
+    @Test
+    void refillsNoFurtherThanTheBurst() {
+        bucket.tryTake(10, start);
+
+        assertEquals(0, bucket.tryTake(10, start + TimeUnit.SECONDS.toNanos(10)));
+        assertWaits(10 * MS, bucket.tryTake(1, start + TimeUnit.SECONDS.toNanos(10)));
+    }
+
+    @Test
+    void refusingTakesNothing() {
+        bucket.tryTake(8, start);
+
+        assertTrue(bucket.tryTake(3, start) > 0);
+        assertEquals(0, bucket.tryTake(2, start));
+    }
+
+    @Test
+    void overdrawsForMoreThanTheBurstThenPaysItBack() {
+        // Only a full bucket is needed for 25, which leaves it 15 in debt
+        bucket.tryTake(5, start);
+        assertWaits(50 * MS, bucket.tryTake(25, start));
+
+        assertEquals(0, bucket.tryTake(25, start + 50 * MS));
+        assertWaits(160 * MS, bucket.tryTake(1, start + 50 * MS));
+    }
+
+    @Test
+    void refundGivesBackUpToTheBurst() {
+        bucket.tryTake(10, start);
+        bucket.refund(4);
+
+        assertEquals(0, bucket.tryTake(4, start));
+        assertTrue(bucket.tryTake(1, start) > 0);
+
+        bucket.refund(100);
+        assertEquals(0, bucket.tryTake(10, start));
+        assertTrue(bucket.tryTake(1, start) > 0);
+    }
+
+    @Test
+    void ignoresTimesBeforeTheLastRefill() {
+        long later = start + TimeUnit.SECONDS.toNanos(1);
+        bucket.tryTake(10, later);
+
+        // Another thread read the clock before this one refilled: no refill, and no loss
+        assertWaits(10 * MS, bucket.tryTake(1, start));
+        assertEquals(0, bucket.tryTake(1, later + 10 * MS));
+    }
+
+    @Test
+    void burstIsAtLeastOne() {
+        TokenBucket tiny = new TokenBucket(1000, 0);
+        long now = System.nanoTime();
+
+        assertEquals(0, tiny.tryTake(1, now));
+        assertWaits(MS, tiny.tryTake(1, now));
+    }
+
+    // Allowing for the rounding of a rate in tokens per nanosecond
+    private static void assertWaits(long expected, long actual) {
+        assertTrue(Math.abs(expected - actual) <= 2, "expected to wait " + expected + " ns but was " + actual);
+    }
+}
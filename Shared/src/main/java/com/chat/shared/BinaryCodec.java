@@ -0,0 +1,354 @@
+package com.chat.shared;
+
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Compact binary encoding of a {@link ChatMessage} body.
+ *
+ * <pre>
+ * byte    version
+ * varint  type      (MessageType ordinal, new types are only ever appended)
+ * varint  flags     (which optional fields follow)
+ * varlong timestamp
+ * string  sender
+ * string  recipient, text, filename   (if flagged)
+ * varlong fileSize                    (if flagged)
+ * string  transferId                  (if flagged)
+ * varlong offset                      (if flagged)
+ * varlong sequence                    (if flagged)
+ * string  room                        (if flagged)
+ * bytes   data                        (if flagged, raw payload last)
+ * </pre>
+ * Strings are a varint byte length followed by UTF-8; byte arrays a varint length and the raw bytes.
+ */
+public final class BinaryCodec {
+    public static final byte VERSION = 1;
+
+    private static final int HAS_RECIPIENT = 1;
+    private static final int HAS_TEXT = 1 << 1;
+    private static final int HAS_FILENAME = 1 << 2;
+    private static final int HAS_FILE_SIZE = 1 << 3;
+    private static final int HAS_DATA = 1 << 4;
+    private static final int HAS_TRANSFER_ID = 1 << 5;
+    private static final int HAS_OFFSET = 1 << 6;
+    private static final int HAS_SEQUENCE = 1 << 7;
+    private static final int HAS_ROOM = 1 << 8;
+
+    private static final MessageType[] TYPES = MessageType.values();
+    private static final int NAME_SLOTS = 1024;
+    private static final String[] names = new String[NAME_SLOTS];
+
+    private BinaryCodec() {
+    }
+
+    public static int encodedSize(ChatMessage message) {
+        int dataLength = dataLength(message);
+        return headerSize(message, dataLength) + Math.max(dataLength, 0);
+    }
+
+    private static int headerSize(ChatMessage message, int dataLength) {
+        int flags = flags(message, dataLength);
+        int size = 1 + varIntSize(message.getType().ordinal()) + varIntSize(flags)
+                + varLongSize(message.getTimestamp()) + stringSize(message.getSender());
+        if ((flags & HAS_RECIPIENT) != 0) size += stringSize(message.getRecipient());
+        if ((flags & HAS_TEXT) != 0) size += stringSize(message.getText());
+        if ((flags & HAS_FILENAME) != 0) size += stringSize(message.getFilename());
+        if ((flags & HAS_FILE_SIZE) != 0) size += varLongSize(message.getFileSize());
+        if ((flags & HAS_TRANSFER_ID) != 0) size += stringSize(message.getTransferId());
+        if ((flags & HAS_OFFSET) != 0) size += varLongSize(message.getOffset());
+        if ((flags & HAS_SEQUENCE) != 0) size += varLongSize(message.getSequence());
+        if ((flags & HAS_ROOM) != 0) size += stringSize(message.getRoom());
+        if ((flags & HAS_DATA) != 0) size += varIntSize(dataLength);
+        return size;
+    }
+
+    /**
+     * Encodes into a new heap buffer, leaving {@code headroom} bytes in front for a frame header.
+     * The returned buffer is positioned at 0 with its limit at the end of the body.
+     */
+    public static ByteBuffer encode(ChatMessage message, int headroom) {
+        ByteBuffer buffer = ByteBuffer.allocate(headroom + encodedSize(message));
+        buffer.position(headroom);
+        encode(message, buffer);
+        return buffer.flip();
+    }
+
+    /**
+     * Encodes everything except the raw payload bytes, which come last in the body. Callers can
+     * send the result followed by {@code message.getData()} as-is, without copying the payload.
+     */
+    public static ByteBuffer encodeHeader(ChatMessage message, int headroom) {
+        return encodeHeader(message, headroom, dataLength(message));
+    }
+
+    /**
+     * Encodes a message without data as if it carried {@code dataLength} payload bytes, for
+     * callers that write the payload from elsewhere (e.g. straight from a file channel).
+     */
+    public static ByteBuffer encodeHeader(ChatMessage message, int headroom, int dataLength) {
+        ByteBuffer buffer = ByteBuffer.allocate(headroom + headerSize(message, dataLength));
+        buffer.position(headroom);
+        encodeFields(message, buffer, dataLength);
+        return buffer.flip();
+    }
+
+    /**
+     * Writes the body at the buffer's position; the buffer must have {@link #encodedSize} bytes left.
+     */
+    public static void encode(ChatMessage message, ByteBuffer out) {
+        encodeFields(message, out, dataLength(message));
+        if (message.getData() != null) {
+            out.put(message.getData());
+        }
+    }
+
+    private static void encodeFields(ChatMessage message, ByteBuffer out, int dataLength) {
+        int flags = flags(message, dataLength);
+        out.put(VERSION);
+        putVarInt(out, message.getType().ordinal());
+        putVarInt(out, flags);
+        putVarLong(out, message.getTimestamp());
+        putString(out, message.getSender());
+        if ((flags & HAS_RECIPIENT) != 0) putString(out, message.getRecipient());
+        if ((flags & HAS_TEXT) != 0) putString(out, message.getText());
+        if ((flags & HAS_FILENAME) != 0) putString(out, message.getFilename());
+        if ((flags & HAS_FILE_SIZE) != 0) putVarLong(out, message.getFileSize());
+        if ((flags & HAS_TRANSFER_ID) != 0) putString(out, message.getTransferId());
+        if ((flags & HAS_OFFSET) != 0) putVarLong(out, message.getOffset());
+        if ((flags & HAS_SEQUENCE) != 0) putVarLong(out, message.getSequence());
+        if ((flags & HAS_ROOM) != 0) putString(out, message.getRoom());
+        if ((flags & HAS_DATA) != 0) {
+            putVarInt(out, dataLength);
+        }
+    }
+
+    /**
+     * Decodes one body, consuming the buffer up to its limit.
+     */
+    public static ChatMessage decode(ByteBuffer in) throws IOException {
+        try {
+            byte version = in.get();
+            if (version != VERSION) {
+                throw new InvalidObjectException("Unsupported protocol version: " + version);
+            }
+            int tag = getVarInt(in);
+            if (tag < 0 || tag >= TYPES.length) {
+                throw new InvalidObjectException("Unknown message type: " + tag);
+            }
+            int flags = getVarInt(in);
+            long timestamp = getVarLong(in);
+
+            ChatMessage message = new ChatMessage(TYPES[tag], getName(in), timestamp);
+            if ((flags & HAS_RECIPIENT) != 0) message.setRecipient(getName(in));
+            if ((flags & HAS_TEXT) != 0) message.setText(getString(in));
+            if ((flags & HAS_FILENAME) != 0) message.setFilename(getString(in));
+            if ((flags & HAS_FILE_SIZE) != 0) message.setFileSize(getVarLong(in));
+            if ((flags & HAS_TRANSFER_ID) != 0) message.setTransferId(getName(in));
+            if ((flags & HAS_OFFSET) != 0) message.setOffset(getVarLong(in));
+            if ((flags & HAS_SEQUENCE) != 0) message.setSequence(getVarLong(in));
+            if ((flags & HAS_ROOM) != 0) message.setRoom(getName(in));
+            if ((flags & HAS_DATA) != 0) {
+                byte[] data = new byte[checkLength(in, getVarInt(in))];
+                in.get(data);
+                message.setData(data);
+            }
+            return message;
+        } catch (BufferUnderflowException e) {
+            throw new InvalidObjectException("Truncated frame");
+        }
+    }
+
+    private static int dataLength(ChatMessage message) {
+        return message.getData() != null ? message.getData().length : -1; // -1: no payload at all
+    }
+
+    private static int flags(ChatMessage message, int dataLength) {
+        int flags = 0;
+        if (message.getRecipient() != null) flags |= HAS_RECIPIENT;
+        if (message.getText() != null) flags |= HAS_TEXT;
+        if (message.getFilename() != null) flags |= HAS_FILENAME;
+        if (message.getFileSize() != 0) flags |= HAS_FILE_SIZE;
+        if (dataLength >= 0) flags |= HAS_DATA;
+        if (message.getTransferId() != null) flags |= HAS_TRANSFER_ID;
+        if (message.getOffset() != 0) flags |= HAS_OFFSET;
+        if (message.getSequence() != 0) flags |= HAS_SEQUENCE;
+        if (message.getRoom() != null) flags |= HAS_ROOM;
+        return flags;
+    }
+
+    // --- varints -------------------------------------------------------------------------
+
+    static int varIntSize(int value) {
+        int size = 1;
+        while ((value & ~0x7F) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    static int varLongSize(long value) {
+        int size = 1;
+        while ((value & ~0x7FL) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    static void putVarInt(ByteBuffer out, int value) {
+        while ((value & ~0x7F) != 0) {
+            out.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.put((byte) value);
+    }
+
+    static void putVarLong(ByteBuffer out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.put((byte) value);
+    }
+
+    static int getVarInt(ByteBuffer in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            byte b = in.get();
+            value |= (b & 0x7F) << shift;
+            if (b >= 0) return value;
+        }
+        throw new InvalidObjectException("Malformed varint");
+    }
+
+    static long getVarLong(ByteBuffer in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 70; shift += 7) {
+            byte b = in.get();
+            value |= (long) (b & 0x7F) << shift;
+            if (b >= 0) return value;
+        }
+        throw new InvalidObjectException("Malformed varlong");
+    }
+
+    // --- strings -------------------------------------------------------------------------
+
+    private static int stringSize(String s) {
+        int length = utf8Length(s);
+        return varIntSize(length) + length;
+    }
+
+    private static int utf8Length(String s) {
+        int length = s.length();
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (isSurrogatePair(s, i)) {
+                length += 2; // 2 chars, 4 bytes
+                i++;
+            } else if (Character.isSurrogate(c)) {
+                continue; // unpaired, written as '?' like String.getBytes does
+            } else if (c >= 0x800) {
+                length += 2;
+            } else if (c >= 0x80) {
+                length += 1;
+            }
+        }
+        return length;
+    }
+
+    private static void putString(ByteBuffer out, String s) {
+        putVarInt(out, utf8Length(s));
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                out.put((byte) c);
+            } else if (c < 0x800) {
+                out.put((byte) (0xC0 | (c >> 6)));
+                out.put((byte) (0x80 | (c & 0x3F)));
+            } else if (isSurrogatePair(s, i)) {
+                int cp = Character.toCodePoint(c, s.charAt(++i));
+                out.put((byte) (0xF0 | (cp >> 18)));
+                out.put((byte) (0x80 | ((cp >> 12) & 0x3F)));
+                out.put((byte) (0x80 | ((cp >> 6) & 0x3F)));
+                out.put((byte) (0x80 | (cp & 0x3F)));
+            } else if (Character.isSurrogate(c)) {
+                out.put((byte) '?');
+            } else {
+                out.put((byte) (0xE0 | (c >> 12)));
+                out.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+                out.put((byte) (0x80 | (c & 0x3F)));
+            }
+        }
+    }
+
+    private static boolean isSurrogatePair(String s, int i) {
+        return Character.isHighSurrogate(s.charAt(i)) && i + 1 < s.length()
+                && Character.isLowSurrogate(s.charAt(i + 1));
+    }
+
+    private static String getString(ByteBuffer in) throws IOException {
+        int length = checkLength(in, getVarInt(in));
+        String s;
+        if (in.hasArray()) {
+            s = new String(in.array(), in.arrayOffset() + in.position(), length, StandardCharsets.UTF_8);
+        } else {
+            byte[] bytes = new byte[length];
+            in.duplicate().get(bytes);
+            s = new String(bytes, StandardCharsets.UTF_8);
+        }
+        in.position(in.position() + length);
+        return s;
+    }
+
+    /**
+     * Sender and recipient repeat on almost every frame, so they are looked up in a small
+     * shared table first and only decoded into a new String on a miss.
+     */
+    private static String getName(ByteBuffer in) throws IOException {
+        int length = getVarInt(in.duplicate());
+        int start = in.position() + varIntSize(length);
+        if (length < 0 || length > in.limit() - start) {
+            throw new InvalidObjectException("Invalid field length: " + length);
+        }
+        int hash = 1;
+        boolean ascii = true;
+        for (int i = 0; i < length; i++) {
+            byte b = in.get(start + i);
+            ascii &= b >= 0;
+            hash = 31 * hash + b;
+        }
+
+        int slot = (hash & 0x7FFFFFFF) % NAME_SLOTS;
+        String cached = names[slot];
+        if (ascii && cached != null && matches(cached, in, start, length)) {
+            in.position(start + length);
+            return cached;
+        }
+
+        String name = getString(in);
+        if (ascii) {
+            names[slot] = name;
+        }
+        return name;
+    }
+
+    private static boolean matches(String name, ByteBuffer in, int start, int length) {
+        if (name.length() != length) return false;
+        for (int i = 0; i < length; i++) {
+            if (name.charAt(i) != in.get(start + i)) return false;
+        }
+        return true;
+    }
+
+    private static int checkLength(ByteBuffer in, int length) throws IOException {
+        if (length < 0 || length > in.remaining()) {
+            throw new InvalidObjectException("Invalid field length: " + length);
+        }
+        return length;
+    }
+}
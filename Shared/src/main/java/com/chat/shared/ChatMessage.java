@@ -9,11 +9,15 @@ public class ChatMessage implements Serializable {
     private final MessageType type;
     private final String sender;
     private String recipient;
+    private String room; // null: everyone, unless there is a recipient
 
     private String text;
     private transient byte[] data;
     private String filename;
     private long fileSize;
+    private String transferId;
+    private long offset;
+    private long sequence; // position in the server's message log, 0 if not logged
     private final long timestamp;
 
     public ChatMessage(MessageType type, String sender) {
@@ -21,20 +25,34 @@ public class ChatMessage implements Serializable {
         this.sender = sender;
         this.timestamp = new Date().getTime();
     }
+
+    public ChatMessage(MessageType type, String sender, long timestamp) {
+        this.type = type;
+        this.sender = sender;
+        this.timestamp = timestamp;
+    }
     public MessageType getType() { return type; }
     public String getSender() { return sender; }
     public String getRecipient() { return recipient; }
+    public String getRoom() { return room; }
     public String getText() { return text; }
     public byte[] getData() { return data; }
     public String getFilename() { return filename; }
     public long getFileSize() { return fileSize; }
+    public String getTransferId() { return transferId; }
+    public long getOffset() { return offset; }
+    public long getSequence() { return sequence; }
     public long getTimestamp() { return timestamp; }
 
     public void setRecipient(String recipient) { this.recipient = recipient; }
+    public void setRoom(String room) { this.room = room; }
     public void setText(String text) { this.text = text; }
     public void setData(byte[] data) { this.data = data; }
     public void setFilename(String filename) { this.filename = filename; }
     public void setFileSize(long fileSize) { this.fileSize = fileSize; }
+    public void setTransferId(String transferId) { this.transferId = transferId; }
+    public void setOffset(long offset) { this.offset = offset; }
+    public void setSequence(long sequence) { this.sequence = sequence; }
 
     @Serial
     private void writeObject(ObjectOutputStream out) throws IOException {
@@ -54,6 +72,9 @@ public class ChatMessage implements Serializable {
             throws IOException, ClassNotFoundException {
         in.defaultReadObject();
         int dataLength = in.readInt();
+        if (dataLength < 0 || dataLength > FrameCodec.MAX_FRAME_SIZE) {
+            throw new InvalidObjectException("Invalid data length: " + dataLength);
+        }
         if (dataLength > 0) {
             this.data = new byte[dataLength];
             in.readFully(this.data);
@@ -72,7 +93,7 @@ public class ChatMessage implements Serializable {
         return String.format("[%s] %s -> %s: %s (size: %d)",
                 type,
                 sender,
-                recipient != null ? recipient : "ALL",
+                recipient != null ? recipient : room != null ? "#" + room : "ALL",
                 text != null ? text : filename,
                 fileSize);
     }
@@ -0,0 +1,184 @@
+package com.chat.shared;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+
+/**
+ * Length-prefixed framing for {@link ChatMessage}s.
+ * Every frame on the wire is a 4 byte big-endian body length followed by the body,
+ * so both blocking streams and non-blocking channels can find message boundaries
+ * without parsing the body. The body is either {@link WireFormat#BINARY}, possibly
+ * compressed ({@link WireFormat#DEFLATE}), or, for older clients, {@link WireFormat#SERIALIZED};
+ * decoding detects which from its first byte.
+ */
+public final class FrameCodec {
+    public static final int HEADER_SIZE = 4;
+    // Files travel as TransferProtocol.CHUNK_SIZE chunks, so no frame needs to be large
+    public static final int MAX_FRAME_SIZE = 1024 * 1024; // 1 MB
+
+    private static final ObjectInputFilter FILTER =
+            ObjectInputFilter.Config.createFilter("maxdepth=8;com.chat.shared.*;java.lang.*;!*");
+
+    private FrameCodec() {
+    }
+
+    /**
+     * Encodes a message into a complete frame (header included), ready to be written.
+     */
+    public static ByteBuffer encode(ChatMessage message, WireFormat format) throws IOException {
+        ByteBuffer frame = switch (format) {
+            case BINARY -> BinaryCodec.encode(message, HEADER_SIZE);
+            case DEFLATE -> FrameCompression.encode(message, HEADER_SIZE);
+            case SERIALIZED -> serialize(message);
+        };
+
+        int bodyLength = frame.remaining() - HEADER_SIZE;
+        if (bodyLength > MAX_FRAME_SIZE) {
+            throw new IOException("Frame too large: " + bodyLength + " bytes");
+        }
+        frame.putInt(0, bodyLength);
+        return frame;
+    }
+
+    /**
+     * Encodes a frame as buffers to be written back to back. Binary frames wrap the payload
+     * as the last buffer instead of copying it, so large file frames are not duplicated.
+     * Frames worth compressing are one buffer.
+     */
+    public static ByteBuffer[] encodeSegments(ChatMessage message, WireFormat format) throws IOException {
+        byte[] data = message.getData();
+        if (!format.isBinary() || data == null || data.length == 0
+                || (format == WireFormat.DEFLATE && FrameCompression.worthCompressing(message))) {
+            return new ByteBuffer[]{encode(message, format)};
+        }
+
+        ByteBuffer header = BinaryCodec.encodeHeader(message, HEADER_SIZE);
+        long bodyLength = (long) header.remaining() - HEADER_SIZE + data.length;
+        if (bodyLength > MAX_FRAME_SIZE) {
+            throw new IOException("Frame too large: " + bodyLength + " bytes");
+        }
+        header.putInt(0, (int) bodyLength);
+        return new ByteBuffer[]{header, ByteBuffer.wrap(data)};
+    }
+
+    /**
+     * Encodes the frame header and everything but the payload of a binary frame whose
+     * {@code dataLength} payload bytes the caller writes itself right after it.
+     */
+    public static ByteBuffer encodeHeader(ChatMessage message, int dataLength) throws IOException {
+        ByteBuffer header = BinaryCodec.encodeHeader(message, HEADER_SIZE, dataLength);
+        long bodyLength = (long) header.remaining() - HEADER_SIZE + dataLength;
+        if (bodyLength > MAX_FRAME_SIZE) {
+            throw new IOException("Frame too large: " + bodyLength + " bytes");
+        }
+        header.putInt(0, (int) bodyLength);
+        return header;
+    }
+
+    private static ByteBuffer serialize(ChatMessage message) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        bytes.write(new byte[HEADER_SIZE]);
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(message);
+        }
+        return ByteBuffer.wrap(bytes.toByteArray());
+    }
+
+    /**
+     * Tells which encoding a frame body (header already stripped) uses.
+     */
+    public static WireFormat formatOf(ByteBuffer body) {
+        if (!body.hasRemaining()) return WireFormat.SERIALIZED;
+        return switch (body.get(body.position())) {
+            case BinaryCodec.VERSION -> WireFormat.BINARY;
+            case FrameCompression.MARKER -> WireFormat.DEFLATE;
+            default -> WireFormat.SERIALIZED;
+        };
+    }
+
+    /**
+     * Decodes a frame body (header already stripped).
+     */
+    public static ChatMessage decode(ByteBuffer body) throws IOException {
+        switch (formatOf(body)) {
+            case BINARY -> {
+                return BinaryCodec.decode(body);
+            }
+            case DEFLATE -> {
+                return FrameCompression.decode(body);
+            }
+            case SERIALIZED -> {
+            }
+        }
+
+        byte[] array;
+        int offset;
+        int length = body.remaining();
+        if (body.hasArray()) {
+            array = body.array();
+            offset = body.arrayOffset() + body.position();
+        } else {
+            array = new byte[length];
+            body.duplicate().get(array);
+            offset = 0;
+        }
+
+        try (ObjectInputStream in = openObjectStream(new ByteArrayInputStream(array, offset, length))) {
+            return readObject(in);
+        }
+    }
+
+    /**
+     * Opens a serialization stream with the same filter as serialized frames, e.g. over a whole
+     * connection for clients from before framing, which write one stream from login on.
+     */
+    public static ObjectInputStream openObjectStream(InputStream in) throws IOException {
+        ObjectInputStream stream = new ObjectInputStream(in);
+        stream.setObjectInputFilter(FILTER);
+        return stream;
+    }
+
+    /**
+     * Reads the next message from a stream opened with {@link #openObjectStream}.
+     */
+    public static ChatMessage readObject(ObjectInputStream in) throws IOException {
+        try {
+            Object obj = in.readObject();
+            if (!(obj instanceof ChatMessage message)) {
+                throw new InvalidObjectException("Unexpected frame content: " + obj);
+            }
+            return message;
+        } catch (ClassNotFoundException e) {
+            throw new InvalidObjectException("Protocol mismatch: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Reads the body length from a frame header, rejecting anything outside the frame limit.
+     */
+    public static int readLength(int header) throws IOException {
+        if (header < 0 || header > MAX_FRAME_SIZE) {
+            throw new IOException("Invalid frame length: " + header);
+        }
+        return header;
+    }
+
+    public static void write(DataOutputStream out, ChatMessage message, WireFormat format) throws IOException {
+        ByteBuffer frame = encode(message, format);
+        out.write(frame.array(), frame.arrayOffset() + frame.position(), frame.remaining());
+    }
+
+    /**
+     * Reads one frame and returns its body.
+     */
+    public static ByteBuffer readBody(DataInputStream in) throws IOException {
+        int length = readLength(in.readInt());
+        byte[] body = new byte[length];
+        in.readFully(body);
+        return ByteBuffer.wrap(body);
+    }
+
+    public static ChatMessage read(DataInputStream in) throws IOException {
+        return decode(readBody(in));
+    }
+}
@@ -0,0 +1,183 @@
+package com.chat.shared;
+
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.nio.ByteBuffer;
+import java.util.Locale;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Deflate compression of binary frame bodies, for connections that agreed on
+ * {@link WireFormat#DEFLATE} at LOGIN: the client lists {@link #DEFLATE} as its LOGIN text,
+ * and a server that accepts answers with a LOGIN of its own carrying the same.
+ *
+ * <pre>
+ * byte    MARKER
+ * varint  length of the binary body
+ * bytes   the binary body, raw deflate at the fastest level
+ * </pre>
+ * Only bodies of at least {@link #MIN_BYTES} are compressed, and never audio, video or file
+ * content, which is usually compressed already. A body that does not shrink goes out as plain
+ * binary. Deflaters and inflaters are pooled, as each holds native buffers.
+ */
+public final class FrameCompression {
+    public static final byte MARKER = 2;
+    public static final String DEFLATE = "deflate";
+    public static final int MIN_BYTES = 512;
+
+    private static final Queue<Deflater> deflaters = new ConcurrentLinkedQueue<>();
+    private static final Queue<Inflater> inflaters = new ConcurrentLinkedQueue<>();
+    private static final LongAdder compressedFrames = new LongAdder();
+    private static final LongAdder rawBytes = new LongAdder();
+    private static final LongAdder compressedBytes = new LongAdder();
+    private static final LongAdder incompressibleFrames = new LongAdder();
+    private static final LongAdder deflateNanos = new LongAdder();
+    private static final LongAdder inflatedFrames = new LongAdder();
+    private static final LongAdder inflateNanos = new LongAdder();
+
+    private FrameCompression() {
+    }
+
+    public static boolean worthCompressing(ChatMessage message) {
+        return switch (message.getType()) {
+            case AUDIO, VIDEO, FILE, FILE_CHUNK -> false;
+            default -> BinaryCodec.encodedSize(message) >= MIN_BYTES;
+        };
+    }
+
+    /**
+     * Encodes like {@link BinaryCodec#encode(ChatMessage, int)}, compressed if worth it.
+     */
+    static ByteBuffer encode(ChatMessage message, int headroom) {
+        ByteBuffer plain = BinaryCodec.encode(message, headroom);
+        if (!worthCompressing(message)) return plain;
+
+        long start = System.nanoTime();
+        int length = plain.remaining() - headroom;
+        // Smaller than the plain body or not at all
+        ByteBuffer out = ByteBuffer.allocate(headroom + length);
+        out.position(headroom);
+        out.put(MARKER);
+        BinaryCodec.putVarInt(out, length);
+
+        Deflater deflater = deflaters.poll();
+        if (deflater == null) {
+            deflater = new Deflater(Deflater.BEST_SPEED, true);
+        }
+        try {
+            deflater.setInput(plain.duplicate().position(headroom));
+            deflater.finish();
+            while (!deflater.finished() && out.hasRemaining()) {
+                deflater.deflate(out);
+            }
+            boolean shrank = deflater.finished() && out.hasRemaining();
+            deflateNanos.add(System.nanoTime() - start);
+            if (!shrank) {
+                incompressibleFrames.increment();
+                return plain;
+            }
+        } finally {
+            deflater.reset();
+            deflaters.offer(deflater);
+        }
+
+        compressedFrames.increment();
+        rawBytes.add(length);
+        compressedBytes.add(out.position() - headroom);
+        return out.flip();
+    }
+
+    /**
+     * Decodes a compressed body, from its marker byte on.
+     */
+    static ChatMessage decode(ByteBuffer body) throws IOException {
+        long start = System.nanoTime();
+        body.get(); // MARKER
+        int length = BinaryCodec.getVarInt(body);
+        if (length <= 0 || length > FrameCodec.MAX_FRAME_SIZE) {
+            throw new InvalidObjectException("Invalid compressed frame length: " + length);
+        }
+
+        ByteBuffer plain = ByteBuffer.allocate(length);
+        Inflater inflater = inflaters.poll();
+        if (inflater == null) {
+            inflater = new Inflater(true);
+        }
+        try {
+            inflater.setInput(body);
+            while (!inflater.finished()) {
+                if (inflater.inflate(plain) == 0 && (!plain.hasRemaining() || inflater.needsInput())) {
+                    throw new InvalidObjectException("Compressed frame does not match its length");
+                }
+            }
+            if (plain.hasRemaining()) {
+                throw new InvalidObjectException("Compressed frame does not match its length");
+            }
+        } catch (DataFormatException e) {
+            throw new InvalidObjectException("Corrupt compressed frame: " + e.getMessage());
+        } finally {
+            inflater.reset();
+            inflaters.offer(inflater);
+        }
+
+        inflatedFrames.increment();
+        inflateNanos.add(System.nanoTime() - start);
+        return BinaryCodec.decode(plain.flip());
+    }
+
+    /** Frames sent compressed, with their bytes before and after. */
+    public static long compressedFrames() {
+        return compressedFrames.sum();
+    }
+
+    public static long rawBytes() {
+        return rawBytes.sum();
+    }
+
+    public static long compressedBytes() {
+        return compressedBytes.sum();
+    }
+
+    /** Frames deflated for nothing, as they did not shrink. */
+    public static long incompressibleFrames() {
+        return incompressibleFrames.sum();
+    }
+
+    /** Time spent deflating, including frames that did not shrink, and inflating. */
+    public static long deflateNanos() {
+        return deflateNanos.sum();
+    }
+
+    public static long inflatedFrames() {
+        return inflatedFrames.sum();
+    }
+
+    public static long inflateNanos() {
+        return inflateNanos.sum();
+    }
+
+    /**
+     * Totals since start, as one line.
+     */
+    public static String summary() {
+        long frames = compressedFrames.sum();
+        long raw = rawBytes.sum();
+        long compressed = compressedBytes.sum();
+        long incompressible = incompressibleFrames.sum();
+        long inflated = inflatedFrames.sum();
+        return String.format(Locale.ROOT,
+                "compression: frames=%d ratio=%.2f saved=%dKB deflate=%.1fus/frame incompressible=%d inflated=%d inflate=%.1fus/frame",
+                frames,
+                raw / (double) Math.max(1, compressed),
+                (raw - compressed) / 1024,
+                deflateNanos.sum() / 1000.0 / Math.max(1, frames + incompressible),
+                incompressible,
+                inflated,
+                inflateNanos.sum() / 1000.0 / Math.max(1, inflated));
+    }
+}
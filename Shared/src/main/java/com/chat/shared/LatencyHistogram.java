@@ -0,0 +1,101 @@
+package com.chat.shared;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Latencies in microseconds, counted into log-scale buckets, four per power of two, so a
+ * percentile read back is within about 20% of the true one at any scale. Recording is a
+ * striped counter increment, safe and cheap from any number of threads.
+ */
+public final class LatencyHistogram {
+    private static final int SUB_BUCKETS = 4;
+    private static final int BUCKETS = 40 * SUB_BUCKETS;
+
+    private final LongAdder[] buckets = new LongAdder[BUCKETS];
+
+    public LatencyHistogram() {
+        for (int i = 0; i < BUCKETS; i++) {
+            buckets[i] = new LongAdder();
+        }
+    }
+
+    public void record(long micros) {
+        buckets[bucket(Math.max(0, micros))].increment();
+    }
+
+    /**
+     * Records the time from {@code start} ({@link System#nanoTime()}) to {@code now}.
+     */
+    public void recordSince(long start, long now) {
+        record((now - start) / 1000);
+    }
+
+    public Snapshot snapshot() {
+        long[] counts = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = buckets[i].sum();
+        }
+        return new Snapshot(counts);
+    }
+
+    public Snapshot snapshotAndReset() {
+        long[] counts = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = buckets[i].sumThenReset();
+        }
+        return new Snapshot(counts);
+    }
+
+    private static int bucket(long micros) {
+        if (micros < SUB_BUCKETS) return (int) micros;
+        int exponent = 63 - Long.numberOfLeadingZeros(micros);
+        int sub = (int) (micros >>> (exponent - 2)) & (SUB_BUCKETS - 1);
+        return Math.min(BUCKETS - 1, (exponent - 1) * SUB_BUCKETS + sub);
+    }
+
+    // Smallest latency in microseconds that falls in the bucket
+    private static long lowerBound(int bucket) {
+        if (bucket < SUB_BUCKETS) return bucket;
+        int exponent = bucket / SUB_BUCKETS + 1;
+        return (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << (exponent - 2);
+    }
+
+    /**
+     * Bucket counts at one moment.
+     */
+    public static final class Snapshot {
+        private final long[] counts;
+        private final long total;
+
+        private Snapshot(long[] counts) {
+            this.counts = counts;
+            long sum = 0;
+            for (long count : counts) {
+                sum += count;
+            }
+            this.total = sum;
+        }
+
+        public long count() {
+            return total;
+        }
+
+        /**
+         * Upper bound in microseconds of the bucket holding the percentile, 0 if nothing was recorded.
+         */
+        public long percentile(double fraction) {
+            if (total == 0) return 0;
+            long rank = Math.max(1, (long) Math.ceil(total * fraction));
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) return i + 1 < counts.length ? lowerBound(i + 1) - 1 : lowerBound(i);
+            }
+            return lowerBound(counts.length - 1);
+        }
+
+        public long max() {
+            return percentile(1.0);
+        }
+    }
+}
@@ -1,5 +1,6 @@
 package com.chat.shared;
 
+// The ordinal is the type tag of the binary wire format: only ever append new types
 public enum MessageType {
     TEXT,
     FILE,
@@ -11,5 +12,13 @@ public enum MessageType {
     PING,
     PONG,
     ERROR,
-    STATUS
+    STATUS,
+    PRESENCE,
+    FILE_CHUNK,
+    FILE_ACK,
+    FILE_END,
+    FILE_REQUEST,
+    JOIN,
+    LEAVE,
+    ROOMS
 }
\ No newline at end of file
@@ -0,0 +1,108 @@
+package com.chat.shared;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Body of a {@link MessageType#PRESENCE} message: either the full list of online users at a
+ * version, or the users who joined and left between two versions. Encoded as text, one
+ * entry per line:
+ * <pre>
+ * SNAPSHOT &lt;version&gt;        DELTA &lt;fromVersion&gt; &lt;toVersion&gt;
+ * alice                     +carol
+ * bob                       -alice
+ * </pre>
+ * A PRESENCE message sent by a client, with no text, asks the server for a fresh snapshot.
+ * Usernames must pass {@link #isValidName} so that each one stays on its own line.
+ */
+public final class PresenceUpdate {
+    private static final String SNAPSHOT = "SNAPSHOT";
+    private static final String DELTA = "DELTA";
+
+    private final boolean snapshot;
+    private final long fromVersion;
+    private final long version;
+    private final List<String> joined;
+    private final List<String> left;
+
+    private PresenceUpdate(boolean snapshot, long fromVersion, long version, List<String> joined, List<String> left) {
+        this.snapshot = snapshot;
+        this.fromVersion = fromVersion;
+        this.version = version;
+        this.joined = joined;
+        this.left = left;
+    }
+
+    public static PresenceUpdate snapshot(long version, Collection<String> online) {
+        return new PresenceUpdate(true, version, version, new ArrayList<>(online), List.of());
+    }
+
+    public static PresenceUpdate delta(long fromVersion, long version, Collection<String> joined, Collection<String> left) {
+        return new PresenceUpdate(false, fromVersion, version, new ArrayList<>(joined), new ArrayList<>(left));
+    }
+
+    public boolean isSnapshot() { return snapshot; }
+    public long getFromVersion() { return fromVersion; }
+    public long getVersion() { return version; }
+    /** Users that joined, or for a snapshot everyone online. */
+    public List<String> getJoined() { return joined; }
+    public List<String> getLeft() { return left; }
+
+    /**
+     * Whether a username can be carried in a presence update: not blank, and free of line
+     * breaks and other control characters.
+     */
+    public static boolean isValidName(String name) {
+        if (name == null || name.isBlank()) return false;
+        for (int i = 0; i < name.length(); i++) {
+            if (Character.isISOControl(name.charAt(i))) return false;
+        }
+        return true;
+    }
+
+    public String toText() {
+        StringBuilder sb = new StringBuilder();
+        if (snapshot) {
+            sb.append(SNAPSHOT).append(' ').append(version);
+            joined.forEach(name -> sb.append('\n').append(name));
+        } else {
+            sb.append(DELTA).append(' ').append(fromVersion).append(' ').append(version);
+            joined.forEach(name -> sb.append("\n+").append(name));
+            left.forEach(name -> sb.append("\n-").append(name));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @throws IllegalArgumentException if the text is not a presence update
+     */
+    public static PresenceUpdate parse(String text) {
+        if (text == null || text.isEmpty()) throw new IllegalArgumentException("Empty presence update");
+        String[] lines = text.split("\n");
+        String[] header = lines[0].split(" ");
+        if (SNAPSHOT.equals(header[0]) && header.length == 2) {
+            List<String> online = new ArrayList<>();
+            for (int i = 1; i < lines.length; i++) {
+                if (!lines[i].isEmpty()) online.add(lines[i]);
+            }
+            return snapshot(Long.parseLong(header[1]), online);
+        }
+        if (!DELTA.equals(header[0]) || header.length != 3) {
+            throw new IllegalArgumentException("Unknown presence update: " + lines[0]);
+        }
+
+        List<String> joined = new ArrayList<>();
+        List<String> left = new ArrayList<>();
+        for (int i = 1; i < lines.length; i++) {
+            if (lines[i].isEmpty()) continue;
+            String name = lines[i].substring(1);
+            switch (lines[i].charAt(0)) {
+                case '+' -> joined.add(name);
+                case '-' -> left.add(name);
+                default -> throw new IllegalArgumentException("Bad presence entry: " + lines[i]);
+            }
+        }
+        return delta(Long.parseLong(header[1]), Long.parseLong(header[2]), joined, left);
+    }
+}
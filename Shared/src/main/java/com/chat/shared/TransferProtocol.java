@@ -0,0 +1,80 @@
+package com.chat.shared;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+
+/**
+ * Constants of the chunked file transfer protocol. Files are stored on the server by content
+ * hash, and the hash (hex SHA-256) doubles as the {@code transferId}.
+ * <p>Upload:
+ * <ol>
+ * <li>The sender offers a file with a FILE/AUDIO/VIDEO/NOTE message that carries the hash,
+ *     filename and size but no data.</li>
+ * <li>The server answers with a {@link MessageType#FILE_ACK} whose {@code offset} is where to
+ *     resume: 0 for a new file, the stored length of an interrupted upload, or the file size
+ *     if the server already has the content.</li>
+ * <li>The sender streams {@link MessageType#FILE_CHUNK}s from that offset. Every chunk is
+ *     acknowledged once stored, and at most {@link #WINDOW} may be unacknowledged.</li>
+ * <li>A {@link MessageType#FILE_END} finishes the upload (text {@link #CANCELLED} to pause it);
+ *     the server then checks the hash and announces the file to its recipients.</li>
+ * </ol>
+ * Download: the receiver sends a {@link MessageType#FILE_REQUEST} with the hash and the offset
+ * it already has. The server streams chunks from there under the same window, acknowledged by
+ * the receiver, and ends with FILE_END ({@link #CANCELLED} if the file is no longer stored).
+ */
+public final class TransferProtocol {
+    public static final int CHUNK_SIZE = 64 * 1024;
+    public static final int WINDOW = 8;
+    public static final String CANCELLED = "CANCELLED";
+
+    private static final HexFormat HEX = HexFormat.of();
+
+    private TransferProtocol() {
+    }
+
+    public static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+
+    /**
+     * Hashes {@code length} bytes of a file from its start.
+     */
+    public static String hash(FileChannel file, long length) throws IOException {
+        MessageDigest digest = newDigest();
+        ByteBuffer buffer = ByteBuffer.allocateDirect(CHUNK_SIZE * 16);
+        long position = 0;
+        while (position < length) {
+            buffer.clear().limit((int) Math.min(buffer.capacity(), length - position));
+            int n = file.read(buffer, position);
+            if (n < 0) throw new IOException("File shorter than " + length + " bytes");
+            position += n;
+            digest.update(buffer.flip());
+        }
+        return toHex(digest);
+    }
+
+    public static String toHex(MessageDigest digest) {
+        return HEX.formatHex(digest.digest());
+    }
+
+    /**
+     * True for a well-formed content hash. Hashes name files on the server, so anything else
+     * must be rejected.
+     */
+    public static boolean isHash(String id) {
+        if (id == null || id.length() != 64) return false;
+        for (int i = 0; i < id.length(); i++) {
+            char c = id.charAt(i);
+            if ((c < '0' || c > '9') && (c < 'a' || c > 'f')) return false;
+        }
+        return true;
+    }
+}
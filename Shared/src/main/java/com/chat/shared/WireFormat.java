@@ -0,0 +1,19 @@
+package com.chat.shared;
+
+/**
+ * Encoding of a frame body. The first body byte tells them apart: Java serialization streams
+ * always start with {@code 0xACED}, binary frames with {@link BinaryCodec#VERSION}, compressed
+ * ones with {@link FrameCompression#MARKER}.
+ */
+public enum WireFormat {
+    /** Legacy {@code ObjectOutputStream} encoding, still accepted from older clients. */
+    SERIALIZED,
+    /** Compact {@link BinaryCodec} encoding. */
+    BINARY,
+    /** Binary, with larger bodies deflated by {@link FrameCompression}; agreed on at LOGIN. */
+    DEFLATE;
+
+    public boolean isBinary() {
+        return this != SERIALIZED;
+    }
+}
@@ -0,0 +1,187 @@
+package com.chat.shared;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.InvalidObjectException;
+import java.nio.ByteBuffer;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class BinaryCodecTest {
+
+    @Test
+    void roundTripsEveryField() throws Exception {
+        ChatMessage message = new ChatMessage(MessageType.FILE_CHUNK, "alice", 1_700_000_000_123L);
+        message.setRecipient("bob");
+        message.setRoom("lunch");
+        message.setText("see attached");
+        message.setFilename("photo.jpg");
+        message.setFileSize(3_000_000_000L);
+        message.setTransferId("9f86d081884c7d65");
+        message.setOffset(65_536);
+        message.setSequence(42);
+        message.setData(new byte[]{1, 2, 3, -1});
+
+        ChatMessage decoded = roundTrip(message);
+
+        assertEquals(MessageType.FILE_CHUNK, decoded.getType());
+        assertEquals("alice", decoded.getSender());
+        assertEquals(1_700_000_000_123L, decoded.getTimestamp());
+        assertEquals("bob", decoded.getRecipient());
+        assertEquals("lunch", decoded.getRoom());
+        assertEquals("see attached", decoded.getText());
+        assertEquals("photo.jpg", decoded.getFilename());
+        assertEquals(3_000_000_000L, decoded.getFileSize());
+        assertEquals("9f86d081884c7d65", decoded.getTransferId());
+        assertEquals(65_536, decoded.getOffset());
+        assertEquals(42, decoded.getSequence());
+        assertArrayEquals(new byte[]{1, 2, 3, -1}, decoded.getData());
+    }
+
+    @Test
+    void leavesUnsetFieldsUnset() throws Exception {
+        ChatMessage decoded = roundTrip(new ChatMessage(MessageType.PING, "alice", 0));
+
+        assertEquals(MessageType.PING, decoded.getType());
+        assertNull(decoded.getRecipient());
+        assertNull(decoded.getRoom());
+        assertNull(decoded.getText());
+        assertNull(decoded.getFilename());
+        assertNull(decoded.getTransferId());
+        assertNull(decoded.getData());
+        assertEquals(0, decoded.getFileSize());
+        assertEquals(0, decoded.getOffset());
+        assertEquals(0, decoded.getSequence());
+    }
+
+    @Test
+    void keepsAnEmptyPayloadApartFromNone() throws Exception {
+        ChatMessage message = new ChatMessage(MessageType.FILE, "alice", 0);
+        message.setData(new byte[0]);
+
+        assertArrayEquals(new byte[0], roundTrip(message).getData());
+    }
+
+    @Test
+    void encodesTextAsUtf8() throws Exception {
+        // One, two, three and four byte characters
+        String text = "a é € 😀";
+        ChatMessage message = new ChatMessage(MessageType.TEXT, "zoë", 0);
+        message.setText(text);
+
+        ByteBuffer body = BinaryCodec.encode(message, 0);
+
+        assertEquals(BinaryCodec.encodedSize(message), body.remaining());
+        assertEquals(text, BinaryCodec.decode(body).getText());
+    }
+
+    @Test
+    void writesUnpairedSurrogatesAsQuestionMarks() throws Exception {
+        ChatMessage message = new ChatMessage(MessageType.TEXT, "alice", 0);
+        message.setText("x\uD83Dy");
+
+        ByteBuffer body = BinaryCodec.encode(message, 0);
+
+        assertEquals(BinaryCodec.encodedSize(message), body.remaining());
+        assertEquals("x?y", BinaryCodec.decode(body).getText());
+    }
+
+    @Test
+    void headerFollowedByPayloadIsTheWholeBody() {
+        ChatMessage message = new ChatMessage(MessageType.FILE_CHUNK, "alice", 5);
+        message.setTransferId("t");
+        message.setData(new byte[]{7, 8, 9});
+
+        ByteBuffer whole = BinaryCodec.encode(message, 0);
+        ByteBuffer header = BinaryCodec.encodeHeader(message, 0);
+        ByteBuffer joined = ByteBuffer.allocate(header.remaining() + 3).put(header).put(message.getData()).flip();
+
+        assertEquals(whole, joined);
+    }
+
+    @Test
+    void leavesHeadroomInFront() throws Exception {
+        ByteBuffer frame = BinaryCodec.encode(new ChatMessage(MessageType.PING, "alice", 0), FrameCodec.HEADER_SIZE);
+
+        assertEquals(0, frame.position());
+        frame.position(FrameCodec.HEADER_SIZE);
+        assertEquals("alice", BinaryCodec.decode(frame).getSender());
+    }
+
+    @Test
+    void varintsRoundTripAtTheirBoundaries() throws Exception {
+        long[] values = {0, 1, 127, 128, 16_383, 16_384, Integer.MAX_VALUE, Long.MAX_VALUE, -1, Long.MIN_VALUE};
+        ByteBuffer buffer = ByteBuffer.allocate(256);
+        for (long value : values) {
+            buffer.clear();
+            BinaryCodec.putVarLong(buffer, value);
+            assertEquals(BinaryCodec.varLongSize(value), buffer.position());
+            assertEquals(value, BinaryCodec.getVarLong(buffer.flip()));
+        }
+        for (int value : new int[]{0, 127, 128, Integer.MAX_VALUE, -1}) {
+            buffer.clear();
+            BinaryCodec.putVarInt(buffer, value);
+            assertEquals(BinaryCodec.varIntSize(value), buffer.position());
+            assertEquals(value, BinaryCodec.getVarInt(buffer.flip()));
+        }
+    }
+
+    @Test
+    void rejectsAnotherVersion() {
+        ByteBuffer body = BinaryCodec.encode(new ChatMessage(MessageType.PING, "alice", 0), 0);
+        body.put(0, (byte) (BinaryCodec.VERSION + 1));
+
+        assertThrows(InvalidObjectException.class, () -> BinaryCodec.decode(body));
+    }
+
+    @Test
+    void rejectsAnUnknownType() {
+        ByteBuffer body = ByteBuffer.allocate(16);
+        body.put(BinaryCodec.VERSION);
+        BinaryCodec.putVarInt(body, MessageType.values().length);
+        body.put((byte) 0).put((byte) 0).put((byte) 0).flip();
+
+        assertThrows(InvalidObjectException.class, () -> BinaryCodec.decode(body));
+    }
+
+    @Test
+    void rejectsATruncatedBody() {
+        ChatMessage message = new ChatMessage(MessageType.TEXT, "alice", 0);
+        message.setText("hello there");
+        ByteBuffer body = BinaryCodec.encode(message, 0);
+
+        for (int length = 0; length < body.limit(); length++) {
+            ByteBuffer cut = body.duplicate().limit(length);
+            assertThrows(InvalidObjectException.class, () -> BinaryCodec.decode(cut), "cut at " + length);
+        }
+    }
+
+    @Test
+    void rejectsAFieldLongerThanTheBody() {
+        ChatMessage message = new ChatMessage(MessageType.FILE, "alice", 0);
+        message.setData(new byte[10]);
+        ByteBuffer body = BinaryCodec.encode(message, 0);
+        // The payload length is the last varint before the payload
+        body.put(body.limit() - 11, (byte) 100);
+
+        assertThrows(InvalidObjectException.class, () -> BinaryCodec.decode(body));
+    }
+
+    @Test
+    void namesSharingACacheSlotStayApart() throws Exception {
+        // More names than cache slots, twice over: hits and misses must both give the right name
+        for (int round = 0; round < 2; round++) {
+            for (int i = 0; i < 5000; i++) {
+                String sender = "user" + i;
+                assertEquals(sender, roundTrip(new ChatMessage(MessageType.PING, sender, 0)).getSender());
+            }
+        }
+    }
+
+    private static ChatMessage roundTrip(ChatMessage message) throws Exception {
+        return BinaryCodec.decode(BinaryCodec.encode(message, 0));
+    }
+}
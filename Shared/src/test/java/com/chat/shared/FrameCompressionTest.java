@@ -0,0 +1,138 @@
+package com.chat.shared;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.InvalidObjectException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class FrameCompressionTest {
+    private static final String CHATTY = "Are we still on for lunch tomorrow? I can book the usual place. ".repeat(20);
+
+    @Test
+    void compressesALongTextMessage() throws Exception {
+        ChatMessage message = text(CHATTY);
+
+        ByteBuffer body = FrameCompression.encode(message, 0);
+
+        assertEquals(FrameCompression.MARKER, body.get(0));
+        assertTrue(body.remaining() < BinaryCodec.encodedSize(message) / 4);
+        assertEquals(CHATTY, FrameCompression.decode(body).getText());
+    }
+
+    @Test
+    void roundTripsThroughTheFrameCodec() throws Exception {
+        ChatMessage message = text(CHATTY);
+        message.setRecipient("bob");
+
+        ByteBuffer frame = FrameCodec.encode(message, WireFormat.DEFLATE);
+        assertEquals(frame.remaining() - FrameCodec.HEADER_SIZE, frame.getInt(0));
+        ByteBuffer body = frame.position(FrameCodec.HEADER_SIZE).slice();
+
+        assertEquals(WireFormat.DEFLATE, FrameCodec.formatOf(body));
+        ChatMessage decoded = FrameCodec.decode(body);
+        assertEquals(CHATTY, decoded.getText());
+        assertEquals("bob", decoded.getRecipient());
+    }
+
+    @Test
+    void leavesSmallMessagesPlain() {
+        ChatMessage message = text("hi");
+
+        assertFalse(FrameCompression.worthCompressing(message));
+        assertEquals(BinaryCodec.VERSION, FrameCompression.encode(message, 0).get(0));
+    }
+
+    @Test
+    void neverCompressesMediaOrFiles() {
+        for (MessageType type : new MessageType[]{MessageType.AUDIO, MessageType.VIDEO, MessageType.FILE, MessageType.FILE_CHUNK}) {
+            ChatMessage message = new ChatMessage(type, "alice", 0);
+            message.setData(new byte[64 * 1024]);
+
+            assertFalse(FrameCompression.worthCompressing(message), type.name());
+            assertEquals(BinaryCodec.VERSION, FrameCompression.encode(message, 0).get(0), type.name());
+        }
+    }
+
+    @Test
+    void sendsPlainWhatDoesNotShrink() throws Exception {
+        byte[] random = new byte[4096];
+        new Random(42).nextBytes(random);
+        ChatMessage message = new ChatMessage(MessageType.TEXT, "alice", 0);
+        message.setData(random);
+        long before = FrameCompression.incompressibleFrames();
+
+        ByteBuffer body = FrameCompression.encode(message, 0);
+
+        assertEquals(BinaryCodec.VERSION, body.get(0));
+        assertEquals(before + 1, FrameCompression.incompressibleFrames());
+        assertArrayEquals(random, BinaryCodec.decode(body).getData());
+    }
+
+    @Test
+    void leavesHeadroomInFront() throws Exception {
+        ByteBuffer frame = FrameCompression.encode(text(CHATTY), FrameCodec.HEADER_SIZE);
+
+        assertEquals(0, frame.position());
+        assertEquals(FrameCompression.MARKER, frame.get(FrameCodec.HEADER_SIZE));
+        assertEquals(CHATTY, FrameCompression.decode(frame.position(FrameCodec.HEADER_SIZE)).getText());
+    }
+
+    @Test
+    void pooledDeflatersGiveTheSameOutputEachTime() throws Exception {
+        ByteBuffer first = FrameCompression.encode(text(CHATTY), 0);
+        for (int i = 0; i < 100; i++) {
+            // Interleave another message so a pooled deflater carries nothing over
+            FrameCompression.decode(FrameCompression.encode(text("x".repeat(1000 + i)), 0));
+            assertEquals(first, FrameCompression.encode(text(CHATTY), 0));
+        }
+    }
+
+    @Test
+    void rejectsALengthThatDoesNotMatch() throws Exception {
+        ByteBuffer body = FrameCompression.encode(text(CHATTY), 0);
+        int length = BinaryCodec.encodedSize(text(CHATTY));
+        ByteBuffer tooLong = rewriteLength(body, length + 1);
+        ByteBuffer tooShort = rewriteLength(body, length - 1);
+
+        assertThrows(InvalidObjectException.class, () -> FrameCompression.decode(tooLong));
+        assertThrows(InvalidObjectException.class, () -> FrameCompression.decode(tooShort));
+        assertThrows(InvalidObjectException.class, () -> FrameCompression.decode(rewriteLength(body, 0)));
+        assertThrows(InvalidObjectException.class,
+                () -> FrameCompression.decode(rewriteLength(body, FrameCodec.MAX_FRAME_SIZE + 1)));
+    }
+
+    @Test
+    void rejectsATruncatedOrCorruptStream() {
+        ByteBuffer body = FrameCompression.encode(text(CHATTY), 0);
+        ByteBuffer truncated = body.duplicate().limit(body.limit() / 2);
+        ByteBuffer corrupt = ByteBuffer.allocate(body.remaining()).put(body.duplicate()).flip();
+        // Past the marker and length, into the deflate stream: an invalid block type
+        corrupt.put(3, (byte) 0xFF);
+
+        assertThrows(InvalidObjectException.class, () -> FrameCompression.decode(truncated));
+        assertThrows(InvalidObjectException.class, () -> FrameCompression.decode(corrupt));
+    }
+
+    private static ByteBuffer rewriteLength(ByteBuffer body, int length) throws Exception {
+        ByteBuffer original = body.duplicate();
+        original.get();
+        BinaryCodec.getVarInt(original);
+        ByteBuffer rewritten = ByteBuffer.allocate(original.remaining() + 8);
+        rewritten.put(FrameCompression.MARKER);
+        BinaryCodec.putVarInt(rewritten, length);
+        return rewritten.put(original).flip();
+    }
+
+    private static ChatMessage text(String text) {
+        ChatMessage message = new ChatMessage(MessageType.TEXT, "alice", 1_700_000_000_000L);
+        message.setText(text);
+        return message;
+    }
+}
@@ -0,0 +1,91 @@
+package com.chat.shared;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class PresenceUpdateTest {
+
+    @Test
+    void snapshotRoundTrips() {
+        PresenceUpdate parsed = PresenceUpdate.parse(PresenceUpdate.snapshot(7, List.of("alice", "bob")).toText());
+
+        assertTrue(parsed.isSnapshot());
+        assertEquals(7, parsed.getFromVersion());
+        assertEquals(7, parsed.getVersion());
+        assertEquals(List.of("alice", "bob"), parsed.getJoined());
+        assertEquals(List.of(), parsed.getLeft());
+    }
+
+    @Test
+    void emptySnapshotRoundTrips() {
+        assertEquals("SNAPSHOT 0", PresenceUpdate.snapshot(0, List.of()).toText());
+
+        PresenceUpdate parsed = PresenceUpdate.parse("SNAPSHOT 0");
+
+        assertTrue(parsed.isSnapshot());
+        assertEquals(List.of(), parsed.getJoined());
+    }
+
+    @Test
+    void deltaRoundTrips() {
+        PresenceUpdate delta = PresenceUpdate.delta(3, 5, List.of("carol", "dave"), List.of("alice"));
+
+        assertEquals("DELTA 3 5\n+carol\n+dave\n-alice", delta.toText());
+
+        PresenceUpdate parsed = PresenceUpdate.parse(delta.toText());
+        assertFalse(parsed.isSnapshot());
+        assertEquals(3, parsed.getFromVersion());
+        assertEquals(5, parsed.getVersion());
+        assertEquals(List.of("carol", "dave"), parsed.getJoined());
+        assertEquals(List.of("alice"), parsed.getLeft());
+    }
+
+    @Test
+    void keepsNamesWithSpacesAndSigns() {
+        PresenceUpdate parsed = PresenceUpdate.parse(
+                PresenceUpdate.delta(1, 2, List.of("mary jane", "-dash"), List.of("+plus")).toText());
+
+        assertEquals(List.of("mary jane", "-dash"), parsed.getJoined());
+        assertEquals(List.of("+plus"), parsed.getLeft());
+    }
+
+    @Test
+    void skipsEmptyLines() {
+        assertEquals(List.of("alice", "bob"), PresenceUpdate.parse("SNAPSHOT 1\n\nalice\n\nbob\n").getJoined());
+
+        PresenceUpdate delta = PresenceUpdate.parse("DELTA 1 2\n\n+carol\n\n");
+        assertEquals(List.of("carol"), delta.getJoined());
+        assertEquals(List.of(), delta.getLeft());
+    }
+
+    @Test
+    void rejectsAnythingElse() {
+        String[] bad = {
+                null, "", "HELLO 1", "SNAPSHOT", "SNAPSHOT 1 2", "SNAPSHOT x",
+                "DELTA 1", "DELTA 1 2 3", "DELTA a b", "DELTA 1 2\ncarol", "DELTA 1 2\n*carol",
+        };
+        for (String text : bad) {
+            assertThrows(IllegalArgumentException.class, () -> PresenceUpdate.parse(text), String.valueOf(text));
+        }
+    }
+
+    @Test
+    void validNamesStayOnOneLine() {
+        assertTrue(PresenceUpdate.isValidName("alice"));
+        assertTrue(PresenceUpdate.isValidName("mary jane"));
+        assertTrue(PresenceUpdate.isValidName("zoë"));
+
+        assertFalse(PresenceUpdate.isValidName(null));
+        assertFalse(PresenceUpdate.isValidName(""));
+        assertFalse(PresenceUpdate.isValidName("   "));
+        assertFalse(PresenceUpdate.isValidName("alice\nSNAPSHOT 9"));
+        assertFalse(PresenceUpdate.isValidName("bob\r"));
+        assertFalse(PresenceUpdate.isValidName("tab\tbed"));
+    }
+}
@@ -0,0 +1,67 @@
+package com.chat.benchmarks;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks with the usual JMH command line, writing results as JSON to
+ * {@link #RESULT_FILE} unless {@code -rf}/{@code -rff} say otherwise, so runs can be compared.
+ * Each forked JVM keeps its server files under {@code target/bench} and serves no metrics.
+ */
+public final class BenchmarkMain {
+    static final String RESULT_FILE = "target/jmh-result.json";
+
+    private static final String[] SERVER_SANDBOX = {
+            "-Dchat.log.dir=target/bench/history",
+            "-Dchat.inbox.dir=target/bench/inbox",
+            "-Dchat.blobs.dir=target/bench/blobs",
+            "-Dchat.metrics.port=0"
+    };
+
+    private BenchmarkMain() {
+    }
+
+    public static void main(String[] args) throws IOException, RunnerException {
+        CommandLineOptions cmd;
+        try {
+            cmd = new CommandLineOptions(args);
+        } catch (CommandLineOptionException e) {
+            System.err.println("Error parsing command line: " + e.getMessage());
+            System.exit(1);
+            return;
+        }
+        if (cmd.shouldHelp()) {
+            cmd.showHelp();
+            return;
+        }
+
+        List<String> jvmArgs = new ArrayList<>(List.of(SERVER_SANDBOX));
+        if (cmd.getJvmArgsAppend().hasValue()) {
+            jvmArgs.addAll(cmd.getJvmArgsAppend().get());
+        }
+        ChainedOptionsBuilder options = new OptionsBuilder()
+                .parent(cmd)
+                .jvmArgsAppend(jvmArgs.toArray(new String[0]));
+        if (!cmd.getResultFormat().hasValue()) {
+            options.resultFormat(ResultFormatType.JSON);
+            if (!cmd.getResult().hasValue()) {
+                options.result(RESULT_FILE);
+            }
+        }
+
+        Runner runner = new Runner(options.build());
+        if (cmd.shouldList()) {
+            runner.list();
+            return;
+        }
+        runner.run();
+    }
+}
@@ -0,0 +1,93 @@
+package com.chat.benchmarks;
+
+import com.chat.client.services.ConnectionService;
+import com.chat.shared.ChatMessage;
+import com.chat.shared.FrameCodec;
+import com.chat.shared.MessageType;
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Messages per second through the client's {@link ConnectionService}: a burst of
+ * {@link #BURST} chat messages queued from one thread, timed until the last has come out of
+ * the socket. The other end only splits the stream into frames and counts them, so the
+ * score is the client's queues, writer thread and encoding rather than a server.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ClientSendBenchmark {
+    static final int BURST = 1000;
+
+    private ServerSocket listener;
+    private Thread sink;
+    private final Semaphore frames = new Semaphore(0);
+    private ConnectionService connection;
+    private ChatMessage message;
+
+    @Setup
+    public void connect() throws Exception {
+        listener = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+        sink = new Thread(this::countFrames, "sink");
+        sink.setDaemon(true);
+        sink.start();
+
+        connection = new ConnectionService("localhost", listener.getLocalPort(), "alice", message -> {
+        });
+        if (!connection.connect()) {
+            throw new IOException("Cannot connect to the sink");
+        }
+        frames.acquire(); // the LOGIN
+        message = new ChatMessage(MessageType.TEXT, "alice");
+        message.setText("Are we still on for lunch tomorrow? I can book the usual place for noon.");
+    }
+
+    @TearDown
+    public void disconnect() throws IOException, InterruptedException {
+        connection.disconnect();
+        sink.join();
+        listener.close();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BURST)
+    public void burst() throws InterruptedException {
+        for (int i = 0; i < BURST; i++) {
+            connection.sendMessage(message);
+        }
+        frames.acquire(BURST);
+    }
+
+    private void countFrames() {
+        try (Socket socket = listener.accept();
+             DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()))) {
+            while (true) {
+                FrameCodec.readBody(in);
+                frames.release();
+            }
+        } catch (IOException e) {
+            // The client logged out and closed
+        }
+    }
+}
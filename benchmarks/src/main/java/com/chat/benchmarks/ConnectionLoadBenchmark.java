@@ -0,0 +1,113 @@
+package com.chat.benchmarks;
+
+import com.chat.server.ServerMain;
+import com.chat.shared.ChatMessage;
+import com.chat.shared.MessageType;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.ThreadParams;
+
+/**
+ * Private messages on a {@link ServerMain} holding {@code idle} connections that logged in and
+ * went quiet, plus {@code active} ones that take turns sending. Each benchmark thread owns a
+ * slice of the active clients and sends from each one to the next around its slice, so every
+ * active client sends and receives during an iteration. The run fails if the server drops any
+ * idle connection.
+ * <p>
+ * Client and server share the JVM, so the defaults need about 22k file descriptors: raise
+ * {@code ulimit -n} first, or pass smaller counts with {@code -p idle=... -p active=...}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Threads(4)
+@Fork(1)
+public class ConnectionLoadBenchmark {
+    @Param({"nio", "virtual", "blocking"})
+    String mode;
+
+    @Param({"10000"})
+    int idle;
+
+    @Param({"1000"})
+    int active;
+
+    private IdleClients idleClients;
+    private final List<LoopbackClient> activeClients = new ArrayList<>();
+
+    @Setup
+    public void connect() throws Exception {
+        int port = LoopbackServer.start(mode, Map.of("chat.history.replay", "0"));
+        idleClients = IdleClients.login("idle", idle, port);
+        for (int i = 0; i < active; i++) {
+            activeClients.add(LoopbackClient.login("active" + i, port));
+        }
+    }
+
+    @TearDown
+    public void disconnect() throws IOException, InterruptedException {
+        int dropped = idleClients.closed();
+        for (LoopbackClient client : activeClients) {
+            client.close();
+        }
+        idleClients.close();
+        if (dropped > 0) {
+            throw new IllegalStateException("The server dropped " + dropped + " of " + idle + " idle connections");
+        }
+    }
+
+    /**
+     * The active clients one benchmark thread sends from, in turn.
+     */
+    @State(Scope.Thread)
+    public static class Slice {
+        private List<LoopbackClient> clients;
+        private String prefix;
+        private int next;
+        private long sent;
+
+        @Setup
+        public void take(ConnectionLoadBenchmark load, ThreadParams thread) {
+            int threads = thread.getThreadCount();
+            int index = thread.getThreadIndex();
+            int size = load.activeClients.size();
+            clients = load.activeClients.subList(size * index / threads, size * (index + 1) / threads);
+            if (clients.size() < 2) {
+                throw new IllegalStateException("Each thread needs two active clients; raise -p active");
+            }
+            prefix = "thread " + index + " message ";
+        }
+    }
+
+    @Benchmark
+    public ChatMessage privateMessage(Slice slice) throws IOException {
+        LoopbackClient from = slice.clients.get(slice.next);
+        slice.next = (slice.next + 1) % slice.clients.size();
+        LoopbackClient to = slice.clients.get(slice.next);
+
+        String text = slice.prefix + slice.sent++;
+        ChatMessage message = new ChatMessage(MessageType.TEXT, from.username());
+        message.setRecipient(to.username());
+        message.setText(text);
+        from.send(message);
+        return to.await(MessageType.TEXT, text);
+    }
+}
@@ -0,0 +1,166 @@
+package com.chat.benchmarks;
+
+import com.chat.shared.ChatMessage;
+import com.chat.shared.FrameCodec;
+import com.chat.shared.MessageType;
+import com.chat.shared.TransferProtocol;
+import com.chat.shared.WireFormat;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * A 1 GB file sent as FILE_CHUNK frames over loopback to a reader that throws the bytes away,
+ * the way the client uploads: each chunk either goes from the file to the socket with
+ * {@link FileChannel#transferTo} after an encoded header ({@code transferTo}, the current
+ * path), or is read into a heap array and written as a whole frame ({@code heap}, the path
+ * before). The {@code megabytes} counter gives MB/s; run with {@code -prof gc} for the
+ * allocation rate.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class FileChunkBenchmark {
+    static final long FILE_SIZE = 1024L * 1024 * 1024;
+    private static final int MB = 1024 * 1024;
+
+    @Param({"transferTo", "heap"})
+    String path;
+
+    private FileChannel file;
+    private ServerSocketChannel listener;
+    private SocketChannel channel;
+    private DataOutputStream output;
+    private Thread sink;
+    private final ByteBuffer buffer = ByteBuffer.allocate(TransferProtocol.CHUNK_SIZE);
+
+    @Setup
+    public void open() throws IOException {
+        file = FileChannel.open(createFile(Path.of("target/bench/files/1g.bin")), StandardOpenOption.READ);
+
+        listener = ServerSocketChannel.open().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        channel = SocketChannel.open(listener.getLocalAddress());
+        channel.socket().setTcpNoDelay(true);
+        output = new DataOutputStream(new BufferedOutputStream(channel.socket().getOutputStream()));
+        SocketChannel reader = listener.accept();
+        sink = new Thread(() -> discard(reader), "sink");
+        sink.setDaemon(true);
+        sink.start();
+    }
+
+    @TearDown
+    public void close() throws IOException, InterruptedException {
+        channel.close();
+        sink.join();
+        listener.close();
+        file.close();
+    }
+
+    /**
+     * Megabytes sent, reported per second.
+     */
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class Sent {
+        public long megabytes;
+    }
+
+    @Benchmark
+    public void upload(Sent sent) throws IOException {
+        for (long position = 0; position < FILE_SIZE; position += TransferProtocol.CHUNK_SIZE) {
+            int length = (int) Math.min(TransferProtocol.CHUNK_SIZE, FILE_SIZE - position);
+            ChatMessage chunk = new ChatMessage(MessageType.FILE_CHUNK, "alice");
+            chunk.setTransferId("bench");
+            chunk.setOffset(position);
+            if ("transferTo".equals(path)) {
+                sendByTransfer(chunk, position, length);
+            } else {
+                sendFromHeap(chunk, position, length);
+            }
+        }
+        output.flush();
+        sent.megabytes += FILE_SIZE / MB;
+    }
+
+    private void sendByTransfer(ChatMessage chunk, long position, int length) throws IOException {
+        ByteBuffer header = FrameCodec.encodeHeader(chunk, length);
+        output.write(header.array(), header.arrayOffset() + header.position(), header.remaining());
+        output.flush();
+        long sent = 0;
+        while (sent < length) {
+            long n = file.transferTo(position + sent, length - sent, channel);
+            if (n <= 0) throw new EOFException("File truncated while sending");
+            sent += n;
+        }
+    }
+
+    private void sendFromHeap(ChatMessage chunk, long position, int length) throws IOException {
+        buffer.clear().limit(length);
+        while (buffer.hasRemaining()) {
+            if (file.read(buffer, position + buffer.position()) < 0) {
+                throw new EOFException("File truncated while sending");
+            }
+        }
+        chunk.setData(Arrays.copyOf(buffer.array(), length));
+        FrameCodec.write(output, chunk, WireFormat.BINARY);
+    }
+
+    /**
+     * Writes the file once, with random bytes so nothing on the way can take a shortcut.
+     */
+    private static Path createFile(Path path) throws IOException {
+        if (Files.exists(path) && Files.size(path) == FILE_SIZE) {
+            return path;
+        }
+        Files.createDirectories(path.getParent());
+        byte[] block = new byte[MB];
+        new Random(42).nextBytes(block);
+        try (OutputStream out = Files.newOutputStream(path)) {
+            for (long written = 0; written < FILE_SIZE; written += MB) {
+                out.write(block);
+            }
+        }
+        return path;
+    }
+
+    private static void discard(SocketChannel reader) {
+        ByteBuffer bytes = ByteBuffer.allocateDirect(256 * 1024);
+        try (reader) {
+            while (reader.read(bytes.clear()) >= 0) {
+                // nothing to keep
+            }
+        } catch (IOException e) {
+            // the sender closed
+        }
+    }
+}
@@ -0,0 +1,172 @@
+package com.chat.benchmarks;
+
+import com.chat.shared.ChatMessage;
+import com.chat.shared.FrameCodec;
+import com.chat.shared.MessageType;
+import com.chat.shared.WireFormat;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Connections to a {@link LoopbackServer} that log in and then say nothing. One thread reads
+ * and throws away whatever the server sends them (presence, broadcasts), so the server never
+ * has to hold it, and counts the connections the server closes.
+ */
+final class IdleClients {
+    private static final long STARTUP_TIMEOUT = 10_000; // ms
+    private static final long CLOSE_TIMEOUT = 10_000; // ms
+
+    private final List<SocketChannel> channels = new ArrayList<>();
+    private final Selector selector;
+    private final Thread drain;
+    private final AtomicInteger closed = new AtomicInteger();
+    private volatile boolean closing;
+
+    private IdleClients() throws IOException {
+        selector = Selector.open();
+        drain = new Thread(this::drain, "idle-clients");
+        drain.setDaemon(true);
+    }
+
+    /**
+     * Logs in {@code count} users named with the prefix and a number, one after another, each
+     * connection returning once the server has welcomed it. Earlier ones are drained while
+     * later ones log in.
+     */
+    static IdleClients login(String prefix, int count, int port) throws IOException, InterruptedException {
+        IdleClients clients = new IdleClients();
+        clients.drain.start();
+        try {
+            for (int i = 0; i < count; i++) {
+                SocketChannel channel = loginOne(prefix + i, port);
+                clients.channels.add(channel);
+                channel.configureBlocking(false);
+                channel.register(clients.selector, SelectionKey.OP_READ);
+                clients.selector.wakeup();
+            }
+        } catch (IOException e) {
+            clients.close();
+            throw e;
+        }
+        return clients;
+    }
+
+    private static SocketChannel loginOne(String username, int port) throws IOException, InterruptedException {
+        SocketChannel channel = connect(port);
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)));
+            FrameCodec.write(out, new ChatMessage(MessageType.LOGIN, username), WireFormat.BINARY);
+            out.flush();
+            // Whatever the buffer reads past the welcome is thrown away like everything after it
+            DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel)));
+            String welcome = "Welcome to the chat, " + username + "!";
+            ChatMessage message;
+            do {
+                message = FrameCodec.read(in);
+            } while (message.getType() != MessageType.TEXT || !welcome.equals(message.getText()));
+            return channel;
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Connects once the server is listening.
+     */
+    private static SocketChannel connect(int port) throws IOException, InterruptedException {
+        long deadline = System.currentTimeMillis() + STARTUP_TIMEOUT;
+        while (true) {
+            try {
+                return SocketChannel.open(new InetSocketAddress("localhost", port));
+            } catch (ConnectException e) {
+                if (System.currentTimeMillis() > deadline) throw e;
+                Thread.sleep(50);
+            }
+        }
+    }
+
+    int size() {
+        return channels.size();
+    }
+
+    /**
+     * How many of the connections the server has closed so far.
+     */
+    int closed() {
+        return closed.get();
+    }
+
+    private void drain() {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(64 * 1024);
+        try {
+            while (!closing) {
+                selector.select();
+                for (SelectionKey key : selector.selectedKeys()) {
+                    if (!discard((SocketChannel) key.channel(), buffer)) {
+                        key.cancel();
+                        closed.incrementAndGet();
+                    }
+                }
+                selector.selectedKeys().clear();
+            }
+        } catch (IOException | ClosedSelectorException e) {
+            throw new IllegalStateException("Idle clients stopped reading", e);
+        }
+    }
+
+    /**
+     * Reads everything waiting on the channel, returning false once the server has closed it.
+     */
+    private static boolean discard(SocketChannel channel, ByteBuffer buffer) {
+        try {
+            int read;
+            do {
+                buffer.clear();
+                read = channel.read(buffer);
+            } while (read > 0);
+            return read == 0;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Logs the users out by ending their side of the connection, and closes each one once the
+     * server has closed its side. Closing first would leave unread data behind and reset them.
+     */
+    void close() throws IOException, InterruptedException {
+        for (SocketChannel channel : channels) {
+            try {
+                channel.shutdownOutput();
+            } catch (IOException e) {
+                // Already reset: nothing to log out
+            }
+        }
+        long deadline = System.currentTimeMillis() + CLOSE_TIMEOUT;
+        while (closed.get() < channels.size() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        closing = true;
+        selector.wakeup();
+        drain.join();
+        selector.close();
+        for (SocketChannel channel : channels) {
+            channel.close();
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package com.chat.benchmarks;
+
+import com.chat.server.ServerMain;
+import com.chat.shared.ChatMessage;
+import com.chat.shared.MessageType;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Round trips over loopback through a real {@link ServerMain}, started in the benchmark's own
+ * JVM in each threading mode: a PING answered by the server, and a private message from one
+ * client to another.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LoopbackBenchmark {
+    @Param({"blocking", "nio", "virtual"})
+    String mode;
+
+    private LoopbackClient alice;
+    private LoopbackClient bob;
+    // History from earlier runs is replayed at login: keep this run's texts apart
+    private final String prefix = "run " + System.nanoTime() + " message ";
+    private long sent;
+
+    @Setup
+    public void startServer() throws Exception {
+        int port = LoopbackServer.start(mode, Map.of());
+        alice = LoopbackClient.login("alice", port);
+        bob = LoopbackClient.login("bob", port);
+    }
+
+    @TearDown
+    public void stop() throws IOException {
+        alice.close();
+        bob.close();
+    }
+
+    @Benchmark
+    public ChatMessage ping() throws IOException {
+        alice.send(new ChatMessage(MessageType.PING, "alice"));
+        return alice.await(MessageType.PONG, null);
+    }
+
+    @Benchmark
+    public ChatMessage privateMessage() throws IOException {
+        String text = prefix + sent++;
+        ChatMessage message = new ChatMessage(MessageType.TEXT, "alice");
+        message.setRecipient("bob");
+        message.setText(text);
+        alice.send(message);
+        return bob.await(MessageType.TEXT, text);
+    }
+}
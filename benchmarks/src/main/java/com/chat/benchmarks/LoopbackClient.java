@@ -0,0 +1,111 @@
+package com.chat.benchmarks;
+
+import com.chat.shared.ChatMessage;
+import com.chat.shared.FrameCodec;
+import com.chat.shared.MessageType;
+import com.chat.shared.WireFormat;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSocket;
+
+/**
+ * A bare client of a {@link LoopbackServer}: binary frames over a socket, optionally TLS.
+ */
+final class LoopbackClient {
+    private static final long STARTUP_TIMEOUT = 10_000; // ms
+
+    private final Socket socket;
+    private final DataOutputStream out;
+    private final DataInputStream in;
+    private final String username;
+
+    private LoopbackClient(Socket socket, String username) throws IOException {
+        this.socket = socket;
+        this.username = username;
+        socket.setTcpNoDelay(true);
+        out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+    }
+
+    static LoopbackClient login(String username, int port) throws IOException, InterruptedException {
+        return login(username, port, null);
+    }
+
+    /**
+     * Connects once the server is listening and logs in, returning after the welcome message.
+     *
+     * @param tls the context to connect with, which resumes its earlier sessions, or null for plain text
+     */
+    static LoopbackClient login(String username, int port, SSLContext tls) throws IOException, InterruptedException {
+        long deadline = System.currentTimeMillis() + STARTUP_TIMEOUT;
+        while (true) {
+            try {
+                LoopbackClient client = new LoopbackClient(connect(port, tls), username);
+                client.send(new ChatMessage(MessageType.LOGIN, username));
+                client.await(MessageType.TEXT, "Welcome to the chat, " + username + "!");
+                return client;
+            } catch (IOException e) {
+                if (System.currentTimeMillis() > deadline) throw e;
+                Thread.sleep(50);
+            }
+        }
+    }
+
+    private static Socket connect(int port, SSLContext tls) throws IOException {
+        if (tls == null) {
+            return new Socket("localhost", port);
+        }
+        SSLSocket socket = (SSLSocket) tls.getSocketFactory().createSocket("localhost", port);
+        socket.setTcpNoDelay(true);
+        SSLParameters parameters = socket.getSSLParameters();
+        parameters.setEndpointIdentificationAlgorithm("HTTPS");
+        socket.setSSLParameters(parameters);
+        socket.startHandshake();
+        return socket;
+    }
+
+    String username() {
+        return username;
+    }
+
+    void send(ChatMessage message) throws IOException {
+        FrameCodec.write(out, message, WireFormat.BINARY);
+        out.flush();
+    }
+
+    /**
+     * Reads past everything else (presence, history) up to a message of the type, with the
+     * text if one is given.
+     */
+    ChatMessage await(MessageType type, String text) throws IOException {
+        while (true) {
+            ChatMessage message = FrameCodec.read(in);
+            if (message.getType() == type && (text == null || text.equals(message.getText()))) {
+                return message;
+            }
+        }
+    }
+
+    /**
+     * Keeps the TLS session from being resumed by the next connection.
+     */
+    void forgetSession() {
+        if (socket instanceof SSLSocket tls) {
+            tls.getSession().invalidate();
+        }
+    }
+
+    void close() throws IOException {
+        try {
+            send(new ChatMessage(MessageType.LOGOUT, username));
+        } finally {
+            socket.close();
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package com.chat.benchmarks;
+
+import com.chat.server.ServerMain;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.Map;
+
+/**
+ * A real {@link ServerMain} in the benchmark's own JVM, on a free port. The server reads its
+ * settings once, so there is one per forked JVM.
+ */
+final class LoopbackServer {
+    private LoopbackServer() {
+    }
+
+    /**
+     * Starts the server in the given threading mode, with extra settings, and returns its port.
+     * Clients connect with {@link LoopbackClient#login}, which waits for it to listen.
+     */
+    static int start(String mode, Map<String, String> settings) throws IOException {
+        int port = freePort();
+        System.setProperty("chat.port", String.valueOf(port));
+        System.setProperty("chat.cluster.port", String.valueOf(freePort()));
+        System.setProperty("chat.mode", mode);
+        // A round trip every few microseconds is far over the default send budgets
+        for (String limit : new String[]{"user.messages", "user.bytes", "ip.messages", "ip.bytes"}) {
+            System.setProperty("chat.limit." + limit, "0");
+        }
+        settings.forEach(System::setProperty);
+        Thread server = new Thread(() -> ServerMain.main(new String[0]), "server");
+        server.setDaemon(true);
+        server.start();
+        return port;
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package com.chat.benchmarks;
+
+import com.chat.shared.BinaryCodec;
+import com.chat.shared.ChatMessage;
+import com.chat.shared.FrameCodec;
+import com.chat.shared.MessageType;
+import com.chat.shared.WireFormat;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Encoding and decoding one {@link ChatMessage} body in either wire format: a short text
+ * message, and file messages carrying 1 MB and 50 MB. The bodies are measured without the
+ * frame size check, which no file payload this large would pass: files go out in chunks.
+ * Java serialization has no 50 MB case, as reading refuses payloads over the frame limit.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MessageCodecBenchmark {
+    /** Wire format and payload size in bytes; 0 is a plain text message. */
+    @Param({"BINARY:0", "BINARY:1048576", "BINARY:52428800", "SERIALIZED:0", "SERIALIZED:1048576"})
+    String payload;
+
+    private WireFormat format;
+
+    private ChatMessage message;
+    private ByteBuffer body;
+
+    @Setup
+    public void setUp() throws IOException {
+        int colon = payload.indexOf(':');
+        format = WireFormat.valueOf(payload.substring(0, colon));
+        int payloadBytes = Integer.parseInt(payload.substring(colon + 1));
+        if (payloadBytes == 0) {
+            message = new ChatMessage(MessageType.TEXT, "alice");
+            message.setText("Are we still on for lunch tomorrow? I can book the usual place for noon.");
+        } else {
+            byte[] data = new byte[payloadBytes];
+            new Random(42).nextBytes(data);
+            message = new ChatMessage(MessageType.FILE, "alice");
+            message.setFilename("payload.bin");
+            message.setFileSize(data.length);
+            message.setData(data);
+        }
+        message.setRecipient("bob");
+        body = encode(message, format).position(FrameCodec.HEADER_SIZE).slice();
+    }
+
+    @Benchmark
+    public ByteBuffer serialize() throws IOException {
+        return encode(message, format);
+    }
+
+    @Benchmark
+    public ChatMessage deserialize() throws IOException {
+        return FrameCodec.decode(body.duplicate());
+    }
+
+    // What FrameCodec.encode writes, header space included
+    private static ByteBuffer encode(ChatMessage message, WireFormat format) throws IOException {
+        if (format == WireFormat.BINARY) {
+            return BinaryCodec.encode(message, FrameCodec.HEADER_SIZE);
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        bytes.write(new byte[FrameCodec.HEADER_SIZE]);
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(message);
+        }
+        return ByteBuffer.wrap(bytes.toByteArray());
+    }
+}
@@ -0,0 +1,72 @@
+package com.chat.benchmarks;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManagerFactory;
+
+/**
+ * A throwaway server key and self-signed certificate for localhost, made with the JDK's
+ * {@code keytool} into a PKCS12 key store, and a client context that trusts it.
+ */
+final class SelfSignedCert {
+    private static final String ALIAS = "server";
+    private static final String PASSWORD = "benchmark";
+
+    private final Path keyStore;
+
+    private SelfSignedCert(Path keyStore) {
+        this.keyStore = keyStore;
+    }
+
+    /**
+     * Generates a new EC P-256 key and certificate under {@code dir}.
+     */
+    static SelfSignedCert create(Path dir) throws IOException, InterruptedException {
+        Files.createDirectories(dir);
+        Path keyStore = dir.resolve("server-" + ProcessHandle.current().pid() + ".p12");
+        Files.deleteIfExists(keyStore);
+        Process keytool = new ProcessBuilder(
+                Path.of(System.getProperty("java.home"), "bin", "keytool").toString(),
+                "-genkeypair", "-alias", ALIAS, "-keyalg", "EC", "-groupname", "secp256r1",
+                "-dname", "CN=localhost", "-ext", "SAN=dns:localhost,ip:127.0.0.1", "-validity", "1",
+                "-storetype", "PKCS12", "-keystore", keyStore.toString(), "-storepass", PASSWORD)
+                .redirectErrorStream(true)
+                .start();
+        String output = new String(keytool.getInputStream().readAllBytes());
+        if (keytool.waitFor() != 0) {
+            throw new IOException("keytool failed: " + output);
+        }
+        return new SelfSignedCert(keyStore);
+    }
+
+    Path keyStore() {
+        return keyStore;
+    }
+
+    String password() {
+        return PASSWORD;
+    }
+
+    /**
+     * A client context trusting only this certificate. Each context has its own session cache.
+     */
+    SSLContext clientContext() throws IOException, GeneralSecurityException {
+        KeyStore keys = KeyStore.getInstance("PKCS12");
+        try (InputStream in = Files.newInputStream(keyStore)) {
+            keys.load(in, PASSWORD.toCharArray());
+        }
+        KeyStore trusted = KeyStore.getInstance("PKCS12");
+        trusted.load(null, null);
+        trusted.setCertificateEntry(ALIAS, keys.getCertificate(ALIAS));
+        TrustManagerFactory trust = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        trust.init(trusted);
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(null, trust.getTrustManagers(), null);
+        return context;
+    }
+}
@@ -0,0 +1,101 @@
+package com.chat.benchmarks;
+
+import com.chat.server.ServerMain;
+import com.chat.shared.ChatMessage;
+import com.chat.shared.MessageType;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Platform against virtual threads per connection: a {@link ServerMain} in blocking or
+ * virtual mode holding {@code connections} logged-in users, with broadcast latency measured
+ * from one more user to another. The footprint of the connections (resident set and live
+ * threads before and after they log in) is printed with the fork's output, as JMH has no
+ * result type for it.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ThreadingModeBenchmark {
+    @Param({"blocking", "virtual"})
+    String mode;
+
+    @Param({"1000", "10000"})
+    int connections;
+
+    private IdleClients users;
+    private LoopbackClient alice;
+    private LoopbackClient bob;
+    private final String prefix = "run " + System.nanoTime() + " broadcast ";
+    private long sent;
+
+    @Setup
+    public void connect() throws Exception {
+        int port = LoopbackServer.start(mode, Map.of("chat.history.replay", "0"));
+        alice = LoopbackClient.login("alice", port);
+        bob = LoopbackClient.login("bob", port);
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        long rssBefore = residentKb();
+        int threadsBefore = threads.getThreadCount();
+
+        users = IdleClients.login("user", connections, port);
+        System.gc();
+        long rss = residentKb();
+        System.out.printf("%n%s mode, %d connections: resident %d MB (+%d kB per connection), "
+                        + "%d live platform threads (+%d)%n",
+                mode, users.size(), rss / 1024, (rss - rssBefore) / connections,
+                threads.getThreadCount(), threads.getThreadCount() - threadsBefore);
+    }
+
+    @TearDown
+    public void disconnect() throws IOException, InterruptedException {
+        alice.close();
+        bob.close();
+        users.close();
+    }
+
+    @Benchmark
+    public ChatMessage broadcast() throws IOException {
+        String text = prefix + sent++;
+        ChatMessage message = new ChatMessage(MessageType.TEXT, "alice");
+        message.setText(text);
+        alice.send(message);
+        return bob.await(MessageType.TEXT, text);
+    }
+
+    /**
+     * The resident set of this JVM, client side included, from /proc (Linux only), or -1.
+     */
+    private static long residentKb() throws IOException {
+        Path status = Path.of("/proc/self/status");
+        if (!Files.exists(status)) {
+            return -1;
+        }
+        for (String line : Files.readAllLines(status)) {
+            if (line.startsWith("VmRSS:")) {
+                return Long.parseLong(line.replaceAll("\\D", ""));
+            }
+        }
+        return -1;
+    }
+}
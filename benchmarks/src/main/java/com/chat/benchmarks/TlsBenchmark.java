@@ -0,0 +1,96 @@
+package com.chat.benchmarks;
+
+import com.chat.shared.ChatMessage;
+import com.chat.shared.MessageType;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import javax.net.ssl.SSLContext;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * TLS against plain text through a {@link LoopbackServer}, with a fresh self-signed EC
+ * certificate: connections per second with a full handshake and with a resumed session, each
+ * logging in and out, and private messages of {@link #PAYLOAD} characters per second from one
+ * client to another. In plain text both connection benchmarks are the same TCP connect.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TlsBenchmark {
+    static final int PAYLOAD = 64 * 1024;
+
+    @Param({"blocking", "nio"})
+    String mode;
+
+    @Param({"plain", "tls"})
+    String transport;
+
+    private int port;
+    private SSLContext tls;
+    private LoopbackClient alice;
+    private LoopbackClient bob;
+    private final String prefix = "run " + System.nanoTime() + " message ";
+    private final String payload = "x".repeat(PAYLOAD);
+    private long sent;
+    private long users;
+
+    @Setup
+    public void startServer() throws Exception {
+        Map<String, String> settings = Map.of("chat.history.replay", "0");
+        if ("tls".equals(transport)) {
+            SelfSignedCert cert = SelfSignedCert.create(Path.of("target/bench/tls"));
+            settings = Map.of("chat.history.replay", "0",
+                    "chat.tls.keyStore", cert.keyStore().toString(),
+                    "chat.tls.keyStorePassword", cert.password());
+            tls = cert.clientContext();
+        }
+        port = LoopbackServer.start(mode, settings);
+        alice = LoopbackClient.login("alice", port, tls);
+        bob = LoopbackClient.login("bob", port, tls);
+    }
+
+    @TearDown
+    public void stop() throws IOException {
+        alice.close();
+        bob.close();
+    }
+
+    @Benchmark
+    public void fullHandshake() throws Exception {
+        LoopbackClient client = LoopbackClient.login("user" + users++, port, tls);
+        client.forgetSession();
+        client.close();
+    }
+
+    @Benchmark
+    public void resumedHandshake() throws Exception {
+        LoopbackClient client = LoopbackClient.login("user" + users++, port, tls);
+        client.close();
+    }
+
+    @Benchmark
+    public ChatMessage transfer() throws IOException {
+        String text = prefix + sent++ + payload;
+        ChatMessage message = new ChatMessage(MessageType.TEXT, "alice");
+        message.setRecipient("bob");
+        message.setText(text);
+        alice.send(message);
+        return bob.await(MessageType.TEXT, text);
+    }
+}
@@ -0,0 +1,171 @@
+package com.chat.client.controllers;
+
+import com.chat.client.models.DisplayMessage;
+import com.chat.shared.ChatMessage;
+import com.chat.shared.MessageType;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import javafx.application.Platform;
+import javafx.scene.Node;
+import javafx.scene.Parent;
+import javafx.scene.Scene;
+import javafx.scene.control.ListView;
+import javafx.scene.image.WritableImage;
+import javafx.stage.Stage;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The chat window's message list holding {@link #MESSAGES} messages, rendered without a display
+ * by Monocle's software pipeline: the time of a frame after scrolling to a random message, and
+ * after a new message arrives and the list scrolls to it. The list shows {@code listed} of the
+ * messages, keeping the rest aside as the chat window does, or shows them all. The heap after a
+ * GC and the size of the scene graph are printed with the fork's output.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MessageListBenchmark {
+    static final int MESSAGES = 100_000;
+
+    // As many as the chat window keeps in its list, and everything
+    @Param({"1000", "100000"})
+    int listed;
+
+    private final Deque<DisplayMessage> older = new ArrayDeque<>();
+    private ListView<DisplayMessage> list;
+    private Scene scene;
+    private Stage stage;
+    private WritableImage frame;
+    private long received;
+
+    @Setup
+    public void show() throws Exception {
+        // Set here rather than as JVM arguments, which BenchmarkMain replaces with its own
+        System.setProperty("glass.platform", "Monocle");
+        System.setProperty("monocle.platform", "Headless");
+        System.setProperty("prism.order", "sw");
+        Platform.startup(() -> {
+        });
+        Platform.setImplicitExit(false);
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        memory.gc();
+        long heapBefore = memory.getHeapMemoryUsage().getUsed();
+
+        List<DisplayMessage> shown = new ArrayList<>(listed);
+        for (received = 0; received < MESSAGES; received++) {
+            (received < MESSAGES - listed ? older : shown).add(message(received));
+        }
+        onFxThread(() -> {
+            list = new ListView<>();
+            list.setCellFactory(listView -> new MessageCell(download -> {
+            }));
+            list.getItems().setAll(shown);
+            scene = new Scene(list, 400, 600);
+            scene.getStylesheets().add(getClass().getResource("/css/styles.css").toExternalForm());
+            stage = new Stage();
+            stage.setScene(scene);
+            stage.show();
+            list.scrollTo(listed - 1);
+            frame = scene.snapshot(null);
+            return null;
+        });
+        shown.clear();
+
+        memory.gc();
+        long heap = memory.getHeapMemoryUsage().getUsed();
+        int nodes = onFxThread(() -> countNodes(scene.getRoot()));
+        System.out.printf("%n%d messages, %d in the list: heap %d MB after GC (+%d bytes per message), "
+                        + "%d nodes in the scene graph%n",
+                MESSAGES, listed, heap / (1024 * 1024), (heap - heapBefore) / MESSAGES, nodes);
+    }
+
+    @TearDown
+    public void close() throws Exception {
+        onFxThread(() -> {
+            stage.close();
+            return null;
+        });
+        Platform.exit();
+    }
+
+    @Benchmark
+    public WritableImage scroll() throws Exception {
+        int index = ThreadLocalRandom.current().nextInt(listed);
+        return onFxThread(() -> {
+            list.scrollTo(index);
+            return scene.snapshot(frame);
+        });
+    }
+
+    @Benchmark
+    public WritableImage receive() throws Exception {
+        DisplayMessage message = message(received++);
+        return onFxThread(() -> {
+            List<DisplayMessage> items = list.getItems();
+            items.add(message);
+            older.addLast(items.removeFirst());
+            older.removeFirst();
+            list.scrollTo(items.size() - 1);
+            return scene.snapshot(frame);
+        });
+    }
+
+    /**
+     * A chat line as the window shows it, a third of them our own, with a file notice every so often.
+     */
+    private static DisplayMessage message(long n) {
+        String sender = "user" + (n % 50);
+        if (n % 100 == 0) {
+            ChatMessage file = new ChatMessage(MessageType.FILE, sender);
+            file.setFilename("photo" + n + ".jpg");
+            file.setFileSize(1_310_720);
+            return new DisplayMessage(file.getFilename() + " (file, 1.25 MB)\n", false, file);
+        }
+        String text = "Message " + n + ": are we still on for lunch tomorrow? I can book the usual place.";
+        return new DisplayMessage(text + "\n12:" + (n % 60) + " " + sender + ":", n % 3 == 0);
+    }
+
+    private static int countNodes(Node node) {
+        int count = 1;
+        if (node instanceof Parent parent) {
+            for (Node child : parent.getChildrenUnmodifiable()) {
+                count += countNodes(child);
+            }
+        }
+        return count;
+    }
+
+    private static <T> T onFxThread(Callable<T> task) throws Exception {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        Platform.runLater(() -> {
+            try {
+                result.complete(task.call());
+            } catch (Exception | Error e) {
+                result.completeExceptionally(e);
+            }
+        });
+        return result.get(10, TimeUnit.SECONDS);
+    }
+}
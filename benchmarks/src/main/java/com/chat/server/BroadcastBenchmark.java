@@ -0,0 +1,66 @@
+package com.chat.server;
+
+import com.chat.shared.ChatMessage;
+import com.chat.shared.MessageType;
+import com.chat.shared.WireFormat;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * {@link ServerMain#broadcastMessage} to every logged-in client, with the clients being
+ * {@link FakeClients}: encoding once, and handing the shared frame to each connection.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BroadcastBenchmark {
+    @Param({"10", "100", "1000"})
+    int clients;
+
+    @Param({"BINARY", "SERIALIZED"})
+    WireFormat format;
+
+    private final LongAdder frames = new LongAdder();
+    private final List<ClientHandler> handlers = new ArrayList<>();
+    private ChatMessage message;
+
+    @Setup
+    public void login() throws IOException, InterruptedException {
+        for (int i = 0; i < clients; i++) {
+            handlers.add(FakeClients.login("user" + i, format, frames));
+        }
+        FakeClients.awaitQuiet(frames, 500);
+        message = new ChatMessage(MessageType.TEXT, "sender");
+        message.setText("Are we still on for lunch tomorrow? I can book the usual place for noon.");
+    }
+
+    @TearDown
+    public void logout() {
+        for (ClientHandler handler : handlers) {
+            handler.closeConnection();
+        }
+    }
+
+    @Benchmark
+    public void broadcast() {
+        ServerMain.broadcastMessage(message, "sender");
+    }
+}
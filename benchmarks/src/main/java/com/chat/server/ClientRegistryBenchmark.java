@@ -0,0 +1,90 @@
+package com.chat.server;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * The {@link ClientRegistry} under contention from threads doing different things at once, as
+ * on a busy server: logins and logouts, private message lookups and broadcast iterations over
+ * {@code users} registered users. Each operation is reported on its own; {@code -tg} changes
+ * how many threads do each, e.g. {@code -tg 1,4,1}.
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ClientRegistryBenchmark {
+    @Param({"1000"})
+    int users;
+
+    private final ClientRegistry registry = new ClientRegistry();
+    private final AtomicInteger loginThreads = new AtomicInteger();
+    private ClientHandler[] handlers;
+
+    @Setup
+    public void register() {
+        handlers = new ClientHandler[users];
+        for (int i = 0; i < users; i++) {
+            handlers[i] = FakeClients.handler(new LongAdder());
+            registry.register("user" + i, handlers[i]);
+        }
+    }
+
+    /**
+     * Names for one login thread, apart from the registered users and from other threads.
+     */
+    @State(Scope.Thread)
+    public static class Logins {
+        private String prefix;
+        private ClientHandler handler;
+        private long next;
+
+        @Setup
+        public void name(ClientRegistryBenchmark registry) {
+            prefix = "login" + registry.loginThreads.getAndIncrement() + "-";
+            handler = FakeClients.handler(new LongAdder());
+        }
+    }
+
+    @Benchmark
+    @Group("mixed")
+    @GroupThreads(1)
+    public boolean login(Logins logins) {
+        String username = logins.prefix + logins.next++;
+        return registry.register(username, logins.handler) && registry.unregister(username, logins.handler);
+    }
+
+    @Benchmark
+    @Group("mixed")
+    @GroupThreads(2)
+    public ClientHandler privateMessage() {
+        return registry.get("user" + ThreadLocalRandom.current().nextInt(users));
+    }
+
+    @Benchmark
+    @Group("mixed")
+    @GroupThreads(1)
+    public void broadcast(Blackhole blackhole) {
+        for (ClientHandler handler : registry.snapshot()) {
+            blackhole.consume(handler);
+        }
+    }
+}
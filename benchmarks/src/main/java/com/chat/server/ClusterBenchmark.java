@@ -0,0 +1,150 @@
+package com.chat.server;
+
+import com.chat.shared.ChatMessage;
+import com.chat.shared.MessageType;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Three {@link Cluster} nodes in one JVM, linked over loopback: the time from a node sending a
+ * private message to the node its recipient is on receiving it, and from a broadcast to both
+ * other nodes receiving it.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ClusterBenchmark {
+    private static final long CONVERGE_TIMEOUT = 10_000; // ms
+
+    private final Node[] nodes = new Node[3];
+    private long sent;
+
+    @Setup
+    public void start() throws IOException, InterruptedException {
+        int[] ports = new int[nodes.length];
+        for (int i = 0; i < nodes.length; i++) {
+            try (ServerSocket socket = new ServerSocket(0)) {
+                ports[i] = socket.getLocalPort();
+            }
+        }
+        for (int i = 0; i < nodes.length; i++) {
+            List<Cluster.Peer> peers = new ArrayList<>();
+            for (int j = 0; j < nodes.length; j++) {
+                if (j != i) peers.add(new Cluster.Peer("n" + j, "localhost", ports[j]));
+            }
+            nodes[i] = new Node();
+            nodes[i].cluster = new Cluster("n" + i, new InetSocketAddress(InetAddress.getLoopbackAddress(), ports[i]),
+                    "benchmark", peers, nodes[i]);
+        }
+        for (Node node : nodes) {
+            node.cluster.start();
+        }
+
+        // Each node hears of the others' users over the link from them: once every node knows
+        // every other's user, all links are up
+        for (int i = 0; i < nodes.length; i++) {
+            nodes[i].cluster.userJoined("user" + i);
+        }
+        long deadline = System.currentTimeMillis() + CONVERGE_TIMEOUT;
+        while (!connected()) {
+            if (System.currentTimeMillis() > deadline) {
+                throw new IllegalStateException("Nodes did not connect: " + nodes[0].cluster.summary());
+            }
+            Thread.sleep(20);
+        }
+    }
+
+    private boolean connected() {
+        for (int i = 0; i < nodes.length; i++) {
+            for (int j = 0; j < nodes.length; j++) {
+                if (j != i && nodes[i].cluster.nodeOf("user" + j) == null) return false;
+            }
+        }
+        return true;
+    }
+
+    @TearDown
+    public void stop() {
+        for (Node node : nodes) {
+            node.cluster.close();
+        }
+    }
+
+    @Benchmark
+    public void privateMessage() {
+        ChatMessage message = new ChatMessage(MessageType.TEXT, "user0");
+        message.setRecipient("user1");
+        message.setText("Are we still on for lunch tomorrow? I can book the usual place for noon.");
+        message.setSequence(++sent);
+        if (!nodes[0].cluster.sendPrivate(message, "user1")) {
+            throw new IllegalStateException("user1 is not on another node");
+        }
+        nodes[1].await(sent);
+    }
+
+    @Benchmark
+    public void broadcast() {
+        ChatMessage message = new ChatMessage(MessageType.TEXT, "user0");
+        message.setText("Are we still on for lunch tomorrow? I can book the usual place for noon.");
+        message.setSequence(++sent);
+        nodes[0].cluster.broadcast(message);
+        nodes[1].await(sent);
+        nodes[2].await(sent);
+    }
+
+    /**
+     * Keeps the sequence number of the last message a node received; messages carry increasing ones.
+     */
+    private static final class Node implements Cluster.Receiver {
+        Cluster cluster;
+        volatile long received;
+
+        void await(long sequence) {
+            while (received < sequence) {
+                Thread.onSpinWait();
+            }
+        }
+
+        @Override
+        public void broadcast(ChatMessage message) {
+            received = message.getSequence();
+        }
+
+        @Override
+        public void privateMessage(ChatMessage message) {
+            received = message.getSequence();
+        }
+
+        @Override
+        public void roomMessage(ChatMessage message) {
+            received = message.getSequence();
+        }
+
+        @Override
+        public void userJoined(String username) {
+        }
+
+        @Override
+        public void userLeft(String username) {
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package com.chat.server;
+
+import com.chat.shared.ChatMessage;
+import com.chat.shared.FrameCodec;
+import com.chat.shared.MessageType;
+import com.chat.shared.WireFormat;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Clients logged in to this JVM's {@link ServerMain} with no socket behind them: every frame
+ * sent to one is counted and released.
+ */
+final class FakeClients {
+    // Held so the level sticks; otherwise every login logs a line
+    private static final Logger chatLogger = Logger.getLogger("com.chat");
+
+    static {
+        chatLogger.setLevel(Level.WARNING);
+    }
+
+    private FakeClients() {
+    }
+
+    /**
+     * Logs a client in through the same path as a LOGIN frame from the network.
+     */
+    static ClientHandler login(String username, WireFormat format, LongAdder frames) throws IOException {
+        ClientHandler client = handler(frames);
+        ByteBuffer frame = FrameCodec.encode(new ChatMessage(MessageType.LOGIN, username), format);
+        client.handleFrame(frame.position(FrameCodec.HEADER_SIZE).slice());
+        return client;
+    }
+
+    /**
+     * A client that has not logged in, e.g. to register with a registry of one's own.
+     */
+    static ClientHandler handler(LongAdder frames) {
+        return new ClientHandler(new DiscardConnection(frames), ServerMain.clients());
+    }
+
+    /**
+     * Waits until no frame has arrived for {@code quietMillis}, e.g. for the presence updates
+     * after a round of logins to go out.
+     */
+    static void awaitQuiet(LongAdder frames, long quietMillis) throws InterruptedException {
+        long last = -1;
+        while (frames.sum() != last) {
+            last = frames.sum();
+            Thread.sleep(quietMillis);
+        }
+    }
+
+    private static final class DiscardConnection implements Connection {
+        private final LongAdder frames;
+        private final OutboundQueue outbound = OutboundQueue.fromConfig();
+
+        DiscardConnection(LongAdder frames) {
+            this.frames = frames;
+        }
+
+        @Override
+        public void send(Frame frame) {
+            frames.increment();
+            frame.release();
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public OutboundQueue outbound() {
+            return outbound;
+        }
+
+        @Override
+        public String remoteAddress() {
+            return "fake";
+        }
+
+        @Override
+        public String remoteHost() {
+            return "fake";
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package com.chat.server;
+
+import com.chat.shared.ChatMessage;
+import com.chat.shared.MessageType;
+import com.chat.shared.WireFormat;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Room messages per second across 1,000 rooms of 50 members each, from 1,000
+ * {@link FakeClients} that are each in 50 rooms. Every operation is one message to one room,
+ * counted once all 49 other members have been handed it by the room's shard.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RoomFanOutBenchmark {
+    private static final int ROOMS = 1000;
+    private static final int MEMBERS = 50;
+    private static final int USERS = 1000;
+
+    private final LongAdder frames = new LongAdder();
+    private final List<ClientHandler> handlers = new ArrayList<>();
+    private final ClientHandler[] senders = new ClientHandler[ROOMS];
+    private final ChatMessage[] messages = new ChatMessage[ROOMS];
+
+    @Setup
+    public void join() throws IOException, InterruptedException {
+        for (int i = 0; i < USERS; i++) {
+            handlers.add(FakeClients.login("user" + i, WireFormat.BINARY, frames));
+        }
+        RoomRegistry rooms = ServerMain.rooms();
+        for (int r = 0; r < ROOMS; r++) {
+            String room = "room" + r;
+            for (int m = 0; m < MEMBERS; m++) {
+                rooms.join(handlers.get((r * MEMBERS + m) % USERS), room);
+            }
+            senders[r] = handlers.get(r * MEMBERS % USERS);
+            messages[r] = new ChatMessage(MessageType.TEXT, senders[r].getUsername());
+            messages[r].setRoom(room);
+            messages[r].setText("Are we still on for lunch tomorrow? I can book the usual place for noon.");
+        }
+        FakeClients.awaitQuiet(frames, 500);
+    }
+
+    @TearDown
+    public void logout() {
+        for (ClientHandler handler : handlers) {
+            handler.closeConnection();
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ROOMS)
+    public void publishToEveryRoom() {
+        long expected = frames.sum() + (long) ROOMS * (MEMBERS - 1);
+        RoomRegistry rooms = ServerMain.rooms();
+        for (int r = 0; r < ROOMS; r++) {
+            rooms.publish(senders[r], messages[r]);
+        }
+        while (frames.sum() < expected) {
+            Thread.onSpinWait();
+        }
+    }
+}
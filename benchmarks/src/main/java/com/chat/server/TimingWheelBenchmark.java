@@ -0,0 +1,61 @@
+package com.chat.server;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * What a client's activity costs the {@link TimingWheel}: scheduling an idle timeout and
+ * cancelling it again, the wheel's thread unlinking the cancelled ones as it ticks. With
+ * {@code connections} set, that many connections each hold a timeout due 30 to 330 seconds
+ * out, as the idle checks of a busy server would, and {@code activity} moves a random one's
+ * timeout to 300 seconds from now.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TimingWheelBenchmark {
+    private static final Runnable NOTHING = () -> {
+    };
+
+    @Param({"1", "100000"})
+    int connections;
+
+    private TimingWheel wheel;
+    private TimingWheel.Timeout[] timeouts;
+
+    @Setup
+    public void start() {
+        wheel = new TimingWheel("bench-wheel", 100, TimeUnit.MILLISECONDS, 512);
+        timeouts = new TimingWheel.Timeout[connections];
+        for (int i = 0; i < timeouts.length; i++) {
+            long delay = 30_000 + ThreadLocalRandom.current().nextLong(300_000);
+            timeouts[i] = wheel.schedule(NOTHING, delay, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @Benchmark
+    public boolean scheduleAndCancel() {
+        return wheel.schedule(NOTHING, 30, TimeUnit.SECONDS).cancel();
+    }
+
+    @Benchmark
+    public TimingWheel.Timeout activity() {
+        int connection = ThreadLocalRandom.current().nextInt(timeouts.length);
+        timeouts[connection].cancel();
+        return timeouts[connection] = wheel.schedule(NOTHING, 300, TimeUnit.SECONDS);
+    }
+}